@@ -5,13 +5,23 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import com.notesapp.model.Salt;
+import com.notesapp.repository.ReplicaProperties;
 import com.notesapp.repository.SaltRepository;
+import com.notesapp.services.OutboxProperties;
+import com.notesapp.services.PurgeProperties;
+import com.notesapp.storage.PipelineProperties;
+import com.notesapp.storage.RetentionProperties;
 import com.notesapp.storage.StorageProperties;
+import com.notesapp.storage.TransferProperties;
 
 @SpringBootApplication
-@EnableConfigurationProperties(StorageProperties.class)
+@EnableScheduling
+@EnableConfigurationProperties({StorageProperties.class, RetentionProperties.class, 
+		PipelineProperties.class, OutboxProperties.class, PurgeProperties.class,
+		ReplicaProperties.class, TransferProperties.class})
 public class Application {
 
 	public static void main(String[] args) {
@@ -1,40 +1,89 @@
 package com.notesapp.controller;
 
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.InputStream;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.Principal;
 import java.util.Date;
-import javax.mail.MessagingException;
-import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import javax.persistence.EntityManagerFactory;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.transaction.Transactional;
-import javax.xml.bind.DatatypeConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.EntityManagerHolder;
 import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.notesapp.dto.BackUpInfoDTO;
+import com.notesapp.dto.BackupVersionDTO;
+import com.notesapp.dto.MissingPagesDTO;
+import com.notesapp.dto.PageManifestDTO;
 import com.notesapp.dto.ResponseDTO;
+import com.notesapp.dto.UploadJobDTO;
+import com.notesapp.dto.UploadSessionDTO;
+import com.notesapp.model.BackupVersion;
+import com.notesapp.model.UploadSession;
 import com.notesapp.model.User;
+import com.notesapp.repository.BackupVersionRepository;
+import com.notesapp.repository.UploadSessionRepository;
 import com.notesapp.repository.UserRepository;
-import com.notesapp.services.SMTPMailSender;
+import com.notesapp.services.AccountPurger;
+import com.notesapp.services.MailOutbox;
+import com.notesapp.services.OneTimeCodes;
+import com.notesapp.storage.BackupCompactor;
+import com.notesapp.storage.BackupLayout;
+import com.notesapp.storage.BackupLocks;
+import com.notesapp.storage.InvalidDeltaException;
+import com.notesapp.storage.InvalidDeviceException;
+import com.notesapp.storage.PageDeltaService;
+import com.notesapp.storage.StorageChecksumException;
 import com.notesapp.storage.StorageFileNotFoundException;
 import com.notesapp.storage.StorageService;
+import com.notesapp.storage.SizeLimitedInputStream;
+import com.notesapp.storage.StorageProperties;
+import com.notesapp.storage.StoredFile;
+import com.notesapp.storage.TransferProperties;
+import com.notesapp.storage.UploadJob;
+import com.notesapp.storage.UploadPipeline;
+import com.notesapp.storage.UploadRejectedException;
+import com.notesapp.storage.UploadTooLargeException;
 
 /**
  * Controller for handling ajax
@@ -47,84 +96,239 @@ import com.notesapp.storage.StorageService;
 @RequestMapping("api/")
 public class Controller {
 	
+	private static final Logger log = LoggerFactory.getLogger(Controller.class);
+	
+	private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	
+	private static final String GZIP_SUFFIX = ".gz";
+	
+	private static final String DEVICE_ID = "Device-Id";
+	private static final String NEXT_CURSOR = "Next-Cursor";
+	private static final int DEFAULT_PAGE_SIZE = 50;
+	private static final int MAX_PAGE_SIZE = 200;
+	/**
+	 * Creation date the first page of versions is listed before, 9999-12-31.
+	 */
+	private static final long FIRST_PAGE_DATE = 253402214400000L;
+	
 	private final StorageService storageService;
 		
 	@Autowired
-	private SMTPMailSender mailSender;
+	private MailOutbox mailOutbox;
+	
+	@Autowired
+	private OneTimeCodes oneTimeCodes;
 
 	@Autowired
 	private UserRepository userRepository;
 	
+	@Autowired
+	private UploadSessionRepository uploadSessionRepository;
+	
+	@Autowired
+	private PageDeltaService pageDeltaService;
+	
+	@Autowired
+	private BackupVersionRepository versionRepository;
+	
 	@Autowired
 	private ObjectMapper objectMapper;
 	
+	@Autowired
+	private BackupLayout backupLayout;
+	
+	@Autowired
+	private BackupLocks backupLocks;
+	
+	@Autowired
+	private UploadPipeline uploadPipeline;
+	
+	@Autowired
+	private TransferProperties transferProperties;
+	
+	@Autowired
+	private StorageProperties storageProperties;
+	
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+	
 	@Autowired
 	public Controller(StorageService storageService) {
 		this.storageService = storageService;
 	}
 	
-	@PersistenceContext
-	EntityManager entityManager;
-	
 	@Autowired
 	PasswordEncoder passwordEncoder;
 	
 	/**
-	 * Get file from file system.
+	 * Get file from file system. The checksum recorded
+	 * when the backup was uploaded is sent in the header,
+	 * and the file is handed to the container for sendfile
+	 * when supported, or copied with {@link FileChannel#transferTo}
+	 * otherwise, so it is never buffered on the heap.
+	 * A single byte range can be requested to resume
+	 * a download, and a request whose ETag or date still
+	 * matches the backup is answered with 304. A client
+	 * that sends its device id gets the latest backup of
+	 * that device rather than of the whole account.
 	 * 
+	 * @param deviceId device whose backup to get, optional
 	 * @param user authenticated principal
-	 * @return response entity with file in body
+	 * @param request {@link HttpServletRequest}
+	 * @param response {@link HttpServletResponse}
 	 * @throws IOException
-	 * @throws NoSuchAlgorithmException
 	 */
 	@GetMapping("restore")
-	@ResponseBody
-	public ResponseEntity<Resource> serveFile(Principal user) 
-			throws IOException, NoSuchAlgorithmException {
+	public void serveFile(@RequestHeader(value = DEVICE_ID, required = false) String deviceId,
+			Principal user, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
 		
 		User u = userRepository.findByEmail(user.getName());
+		if (deviceId != null) {
+			serveBackup(latestVersion(u.getUserId(), deviceId), request, response);
+			return;
+		}
+		
 		String filename = u.getBackupName();
 		
 		if (filename != null) {
-			Resource file = storageService.loadAsResource(filename);
-			
-			byte[] bytes = file.getInputStream().readAllBytes();
-			MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-			byte[] digest = messageDigest.digest(bytes);
-			String hash = DatatypeConverter.printHexBinary(digest);
+			String hash = u.getBackupChecksum();
+			if (hash == null) {
+				hash = storageService.checksum(filename);
+				userRepository.updateBackupChecksum(u.getUserId(), filename, hash);
+			}
 			
-			String backupInfo = objectMapper
-					.writeValueAsString(new BackUpInfoDTO(u.getLastBackUpDate(), u.getLastBackUpSize()));
-			return ResponseEntity.ok()
-					.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" +
-			file.getFilename() + "\"")
-					.header("Checksum", hash)
-					.header("Info", backupInfo)
-					.body(file);
+			serveBackup(filename, hash, new BackUpInfoDTO(u.getLastBackUpDate(), 
+					u.getLastBackUpSize()), request, response);
 		} else {
-			return ResponseEntity.notFound().build();
+			response.setStatus(404);
 		}
 	}
 	
+	/**
+	 * Get a retained version of a backup.
+	 * 
+	 * @param versionId backup version
+	 * @param user authenticated principal
+	 * @param request {@link HttpServletRequest}
+	 * @param response {@link HttpServletResponse}
+	 * @throws IOException
+	 */
+	@GetMapping("restore/{versionId}")
+	public void serveVersion(@PathVariable long versionId, Principal user, 
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		User u = userRepository.findByEmail(user.getName());
+		serveBackup(versionRepository.findByVersionIdAndUserIdAndDeletedFalse(versionId, 
+				u.getUserId()).orElse(null), request, response);
+	}
+	
+	/**
+	 * Get the retained versions of a user's backup,
+	 * one page at a time. The versions are listed by
+	 * position rather than by offset, so a page costs
+	 * the same however far into the list it is. When
+	 * there may be more versions, the cursor to pass
+	 * for the next page is sent in the Next-Cursor header.
+	 * 
+	 * @param deviceId only list the versions of this device, optional
+	 * @param cursor position after which to list, from a previous page
+	 * @param limit largest number of versions to list
+	 * @param user authenticated principal
+	 * @param response {@link HttpServletResponse}
+	 * @return backup versions, newest first
+	 */
+	@GetMapping("backups")
+	public @ResponseBody List<BackupVersionDTO> listVersions(
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId,
+			@RequestParam(required = false) String cursor,
+			@RequestParam(defaultValue = "" + DEFAULT_PAGE_SIZE) int limit,
+			Principal user, HttpServletResponse response) {
+		Date date = new Date(FIRST_PAGE_DATE);
+		long versionId = Long.MAX_VALUE;
+		if (cursor != null) {
+			String[] position = cursor.split("\\.");
+			try {
+				if (position.length != 2) throw new NumberFormatException(cursor);
+				date = new Date(Long.parseLong(position[0]));
+				versionId = Long.parseLong(position[1]);
+			} catch (NumberFormatException e) {
+				response.setStatus(400);
+				return null;
+			}
+		}
+		
+		User u = userRepository.findByEmail(user.getName());
+		PageRequest page = PageRequest.of(0, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+		List<BackupVersionDTO> versions = deviceId != null
+				? versionRepository.listDeviceVersions(u.getUserId(), deviceId, date, versionId, page)
+				: versionRepository.listVersions(u.getUserId(), date, versionId, page);
+		
+		if (versions.size() == page.getPageSize()) {
+			BackupVersionDTO last = versions.get(versions.size() - 1);
+			response.setHeader(NEXT_CURSOR, last.getDate().getTime() + "." + last.getVersionId());
+		}
+		return versions;
+	}
+	
+	/**
+	 * Get the pages of the stored backup that differ
+	 * from a database the client already holds.
+	 * The body is a stream of page records, and the
+	 * client truncates its database to the size in
+	 * the Backup-Size header.
+	 * 
+	 * @param manifest page size and page hashes of the client's database
+	 * @param deviceId device whose backup to compare with, optional
+	 * @param user authenticated principal
+	 * @param response {@link HttpServletResponse}
+	 * @throws IOException
+	 */
+	@PostMapping("restore/delta")
+	public void serveDelta(@RequestBody PageManifestDTO manifest, 
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId, 
+			Principal user, HttpServletResponse response) throws IOException {
+		pageDeltaService.checkManifest(manifest.getPageSize(), manifest.getPages());
+		User u = userRepository.findByEmail(user.getName());
+		BackupVersion backup = currentBackup(u, deviceId);
+		
+		if (backup == null) {
+			response.setStatus(404);
+			return;
+		}
+		
+		response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+		response.setHeader("Checksum", backup.getChecksum());
+		response.setHeader("Backup-Size", String.valueOf(backup.getSize()));
+		pageDeltaService.writeDelta(backup.getFilename(), manifest.getPageSize(), 
+				manifest.getPages(), response.getOutputStream());
+	}
+	
 	/**
 	 * Upload file to application file system.
+	 * The multipart body is read by the container
+	 * before this method runs, so large backups from
+	 * slow clients should rather be sent with a PUT
+	 * to the same path, which does not hold a thread
+	 * while waiting on the network.
 	 * 
 	 * @param file file to be uploaded
+	 * @param deviceId device sending the backup, optional
 	 * @param user authenticated principal
 	 * @param response {@link HttpServletRequest}
 	 * @return a response dto
 	 */
 	@PostMapping("backup")
 	public @ResponseBody ResponseDTO handleFileUpload(@RequestParam("file") MultipartFile file, 
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId,
 			Principal user, HttpServletResponse response) {
 		if (file != null) {
-			storageService.store(file);
-			
 			User u = userRepository.findByEmail(user.getName());
-			u.setBackupName(file.getOriginalFilename().toString());
-			u.setLastBackUpDate(new Date());
-			u.setLastBackUpSize(file.getSize());
-			userRepository.save(u);
+			StoredFile stored = storageService.store(file, 
+					backupLayout.keyFor(u.getUserId(), file.getOriginalFilename()));
+			uploadPipeline.publish(u.getUserId(), deviceId, stored);
 			
 			String message = "Success";
 			return new ResponseDTO(message, false);
@@ -136,7 +340,304 @@ public class Controller {
 	}
 	
 	/**
-	 * Delete file from application file system.
+	 * Upload a backup sent as the raw request body.
+	 * The body is streamed straight into the stored
+	 * file without being spooled by the multipart
+	 * resolver first, and its size and checksum are
+	 * computed on the way. Large bodies are read with
+	 * non-blocking I/O into a staging file, and the
+	 * response is sent once the backup is stored.
+	 * Bodies over the backup size limit are rejected.
+	 * 
+	 * @param filename name of the uploaded file
+	 * @param checksum hex encoded MD5 digest of the file, optional
+	 * @param deviceId device sending the backup, optional
+	 * @param user authenticated principal
+	 * @param request {@link HttpServletRequest} with the file as its body
+	 * @param response {@link HttpServletResponse}
+	 * @return a response dto
+	 * @throws IOException
+	 */
+	@PutMapping(value = "backup", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public @ResponseBody ResponseDTO handleStreamUpload(
+			@RequestParam(defaultValue = "backup") String filename,
+			@RequestHeader(value = "Checksum", required = false) String checksum,
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId,
+			Principal user, HttpServletRequest request, HttpServletResponse response) 
+					throws IOException {
+		if (request.getContentLengthLong() == 0) {
+			response.setStatus(400);
+			return new ResponseDTO("File cannot be empty", true);
+		}
+		
+		long limit = storageProperties.getMaxBackupSize();
+		InputStream body = limitedBody(request, limit);
+		User u = userRepository.findByEmail(user.getName());
+		long length = request.getContentLengthLong();
+		if (isAsync(request, length < 0 ? Long.MAX_VALUE : length)) {
+			receiveBackup(u.getUserId(), deviceId, filename, checksum, limit, request, response);
+			return null;
+		}
+		
+		StoredFile stored = storageService.store(body, 
+				backupLayout.keyFor(u.getUserId(), filename), checksum);
+		uploadPipeline.publish(u.getUserId(), deviceId, stored);
+		return new ResponseDTO("Success", false);
+	}
+	
+	/**
+	 * Upload a backup for processing in the
+	 * background. The upload is spooled before the
+	 * response is sent, and its progress can be
+	 * followed with the returned job id.
+	 * 
+	 * @param file file to be uploaded
+	 * @param checksum hex encoded MD5 digest of the file, optional
+	 * @param deviceId device sending the backup, optional
+	 * @param user authenticated principal
+	 * @param response {@link HttpServletResponse}
+	 * @return state of the queued job
+	 */
+	@PostMapping("backup/jobs")
+	public @ResponseBody UploadJobDTO submitUpload(@RequestParam("file") MultipartFile file,
+			@RequestHeader(value = "Checksum", required = false) String checksum,
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId,
+			Principal user, HttpServletResponse response) {
+		if (file.isEmpty()) {
+			response.setStatus(400);
+			return null;
+		}
+		
+		User u = userRepository.findByEmail(user.getName());
+		UploadJob job = uploadPipeline.submit(u.getUserId(), deviceId, file, checksum);
+		response.setStatus(202);
+		response.setHeader(HttpHeaders.LOCATION, "/api/backup/jobs/" + job.getJobId());
+		return toDTO(job);
+	}
+	
+	/**
+	 * Get the state of an upload job.
+	 * 
+	 * @param jobId upload job
+	 * @param user authenticated principal
+	 * @param response {@link HttpServletResponse}
+	 * @return state of the job
+	 */
+	@GetMapping("backup/jobs/{jobId}")
+	public @ResponseBody UploadJobDTO getUploadJob(@PathVariable String jobId,
+			Principal user, HttpServletResponse response) {
+		User u = userRepository.findByEmail(user.getName());
+		UploadJob job = uploadPipeline.getJob(jobId, u.getUserId());
+		
+		if (job == null) {
+			response.setStatus(404);
+			return null;
+		}
+		
+		return toDTO(job);
+	}
+	
+	/**
+	 * Compare a page manifest of the client's
+	 * database with the stored backup.
+	 * 
+	 * @param manifest page size and page hashes of the client's database
+	 * @param deviceId device whose backup to compare with, optional
+	 * @param user authenticated principal
+	 * @return pages the client has to send for a delta backup
+	 */
+	@PostMapping("backup/delta/manifest")
+	public @ResponseBody MissingPagesDTO compareManifest(@RequestBody PageManifestDTO manifest,
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId,
+			Principal user) {
+		User u = userRepository.findByEmail(user.getName());
+		BackupVersion backup = currentBackup(u, deviceId);
+		return new MissingPagesDTO(pageDeltaService.missingPages(
+				backup != null ? backup.getFilename() : null, 
+				manifest.getPageSize(), manifest.getPages()));
+	}
+	
+	/**
+	 * Upload the pages that changed since the stored
+	 * backup. The new backup is built from the stored
+	 * one and the pages in the body, and is only kept
+	 * if it matches the checksum. The new backup may not
+	 * pass the backup size limit, and the body may not be
+	 * larger than a delta sending every page.
+	 * 
+	 * @param pageSize database page size
+	 * @param size size of the new database in bytes
+	 * @param filename name of the file being uploaded
+	 * @param checksum hex encoded MD5 digest of the new database
+	 * @param deviceId device sending the backup, optional
+	 * @param user authenticated principal
+	 * @param request {@link HttpServletRequest} with page records as its body
+	 * @return a response dto
+	 * @throws IOException
+	 */
+	@PutMapping("backup/delta")
+	public @ResponseBody ResponseDTO handleDeltaUpload(@RequestParam int pageSize, 
+			@RequestParam long size,
+			@RequestParam(defaultValue = "backup") String filename,
+			@RequestHeader("Checksum") String checksum,
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId,
+			Principal user, HttpServletRequest request) throws IOException {
+		long limit = storageProperties.getMaxBackupSize();
+		if (size > limit) throw new UploadTooLargeException(limit);
+		// every page may be sent, each behind its 4 byte page number
+		long pages = (size + Math.max(pageSize, 1) - 1) / Math.max(pageSize, 1);
+		InputStream delta = limitedBody(request, size + 4 * pages);
+		
+		User u = userRepository.findByEmail(user.getName());
+		BackupVersion backup = currentBackup(u, deviceId);
+		StoredFile stored = pageDeltaService.applyDelta(
+				backup != null ? backup.getFilename() : null, 
+				backupLayout.keyFor(u.getUserId(), filename), 
+				pageSize, size, delta, checksum);
+		uploadPipeline.publish(u.getUserId(), deviceId, stored);
+		return new ResponseDTO("Success", false);
+	}
+	
+	/**
+	 * Start a chunked upload. Any unfinished
+	 * upload by the same user is discarded.
+	 * 
+	 * @param filename name of the file being uploaded
+	 * @param user authenticated principal
+	 * @return state of the new upload
+	 */
+	@PostMapping("backup/sessions")
+	public @ResponseBody UploadSessionDTO createUploadSession(
+			@RequestParam(defaultValue = "backup") String filename, Principal user) {
+		for (UploadSession previous : uploadSessionRepository.findByEmail(user.getName())) {
+			storageService.discard(previous.getSessionId());
+			uploadSessionRepository.delete(previous);
+		}
+		
+		UploadSession session = new UploadSession(UUID.randomUUID().toString(), 
+				user.getName(), filename);
+		uploadSessionRepository.save(session);
+		return toDTO(session);
+	}
+	
+	/**
+	 * Get the state of a chunked upload so
+	 * an interrupted client knows where to resume.
+	 * 
+	 * @param sessionId upload session
+	 * @param user authenticated principal
+	 * @param response {@link HttpServletResponse}
+	 * @return state of the upload
+	 */
+	@GetMapping("backup/sessions/{sessionId}")
+	public @ResponseBody UploadSessionDTO getUploadSession(@PathVariable String sessionId,
+			Principal user, HttpServletResponse response) {
+		UploadSession session = findUploadSession(sessionId, user);
+		
+		if (session == null) {
+			response.setStatus(404);
+			return null;
+		}
+		
+		return toDTO(session);
+	}
+	
+	/**
+	 * Append a chunk to a chunked upload. Chunks
+	 * must be sent in order; resending a chunk
+	 * that was already received is acknowledged
+	 * without writing it again. A chunk may not pass
+	 * the chunk size limit, nor take the upload past
+	 * the backup size limit. The session is locked
+	 * while the chunk is written, so retries of a chunk
+	 * and commits of the session take turns.
+	 * 
+	 * @param sessionId upload session
+	 * @param index zero based chunk number
+	 * @param checksum hex encoded MD5 digest of the chunk
+	 * @param user authenticated principal
+	 * @param request {@link HttpServletRequest} with the chunk as its body
+	 * @param response {@link HttpServletResponse}
+	 * @return state of the upload
+	 * @throws IOException
+	 */
+	@Transactional
+	@PutMapping("backup/sessions/{sessionId}/chunks/{index}")
+	public @ResponseBody UploadSessionDTO uploadChunk(@PathVariable String sessionId, 
+			@PathVariable int index,
+			@RequestHeader(value = "Checksum", required = false) String checksum,
+			Principal user, HttpServletRequest request, 
+			HttpServletResponse response) throws IOException {
+		UploadSession session = owned(uploadSessionRepository.lockById(sessionId), user);
+		
+		if (session == null) {
+			response.setStatus(404);
+			return null;
+		}
+		
+		if (index > session.getReceivedChunks()) {
+			response.setStatus(409);
+			return toDTO(session);
+		}
+		
+		if (index == session.getReceivedChunks()) {
+			long limit = Math.min(storageProperties.getMaxChunkSize(), 
+					storageProperties.getMaxBackupSize() - session.getReceivedBytes());
+			long size = storageService.append(sessionId, session.getReceivedBytes(), 
+					limitedBody(request, limit), checksum);
+			session.setReceivedChunks(index + 1);
+			session.setReceivedBytes(size);
+			uploadSessionRepository.save(session);
+		}
+		
+		return toDTO(session);
+	}
+	
+	/**
+	 * Finish a chunked upload by swapping the
+	 * staged file in as the user's backup. Only the
+	 * first commit of a session goes through, later
+	 * ones find the session gone.
+	 * 
+	 * @param sessionId upload session
+	 * @param deviceId device sending the backup, optional
+	 * @param user authenticated principal
+	 * @param response {@link HttpServletResponse}
+	 * @return a response dto
+	 */
+	@PostMapping("backup/sessions/{sessionId}/commit")
+	public @ResponseBody ResponseDTO commitUploadSession(@PathVariable String sessionId,
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId,
+			Principal user, HttpServletResponse response) {
+		UploadSession session = findUploadSession(sessionId, user);
+		
+		if (session == null) {
+			response.setStatus(404);
+			return new ResponseDTO("Upload not found", true);
+		}
+		
+		if (session.getReceivedBytes() == 0) {
+			response.setStatus(400);
+			return new ResponseDTO("File cannot be empty", true);
+		}
+		
+		if (uploadSessionRepository.claim(sessionId) == 0) {
+			response.setStatus(404);
+			return new ResponseDTO("Upload not found", true);
+		}
+		
+		User u = userRepository.findByEmail(user.getName());
+		StoredFile stored = storageService.commit(sessionId, 
+				backupLayout.keyFor(u.getUserId(), session.getFilename()));
+		uploadPipeline.publish(u.getUserId(), deviceId, stored);
+		
+		return new ResponseDTO("Success", false);
+	}
+	
+	/**
+	 * Delete the backup and all of its retained
+	 * versions. The files are removed later by
+	 * the {@link BackupCompactor}.
 	 * 
 	 * @param user authenticated principal
 	 * @param response {@link HttpServletResponse}
@@ -146,21 +647,75 @@ public class Controller {
 	public @ResponseBody ResponseDTO deleteBackup(Principal user,
 			HttpServletResponse response) {
 		User u = userRepository.findByEmail(user.getName());
-		String filename = u.getBackupName();
 		
-		if (filename != null) {
-			storageService.delete(filename);
-			
-			u.setLastBackUpDate(null);
-			u.setLastBackUpSize(null);
-			u.setBackupName(null);
-			userRepository.save(u);
-			String message = "Success";
-			return new ResponseDTO(message, false);
-		} else {
-			response.setStatus(404);
-			return null;
+		synchronized (backupLocks.lockFor(u.getUserId())) {
+			if (userRepository.clearBackup(u.getUserId()) == 0) {
+				response.setStatus(404);
+				return null;
+			}
+			versionRepository.markDeletedByUserId(u.getUserId());
 		}
+		
+		String message = "Success";
+		return new ResponseDTO(message, false);
+	}
+	
+	/**
+	 * Handle data that does not match its checksum.
+	 * 
+	 * @param exc exception
+	 * @return response entity
+	 */
+	@ExceptionHandler(StorageChecksumException.class)
+	public ResponseEntity<?> handleStorageChecksum(StorageChecksumException exc) {
+		return ResponseEntity.badRequest().body(new ResponseDTO(exc.getMessage(), true));
+	}
+	
+	/**
+	 * Handle an upload while the upload pipeline is full.
+	 * 
+	 * @param exc exception
+	 * @return response entity
+	 */
+	@ExceptionHandler(UploadRejectedException.class)
+	public ResponseEntity<?> handleUploadRejected(UploadRejectedException exc) {
+		return ResponseEntity.status(503).header(HttpHeaders.RETRY_AFTER, "30")
+				.body(new ResponseDTO(exc.getMessage(), true));
+	}
+	
+	/**
+	 * Handle an upload larger than the storage allows.
+	 * 
+	 * @param exc exception
+	 * @return response entity
+	 */
+	@ExceptionHandler(UploadTooLargeException.class)
+	public ResponseEntity<?> handleUploadTooLarge(UploadTooLargeException exc) {
+		return ResponseEntity.status(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE)
+				.body(new ResponseDTO(exc.getMessage(), true));
+	}
+	
+	/**
+	 * Handle a page delta that cannot be applied.
+	 * 
+	 * @param exc exception
+	 * @return response entity
+	 */
+	@ExceptionHandler(InvalidDeltaException.class)
+	public ResponseEntity<?> handleInvalidDelta(InvalidDeltaException exc) {
+		return ResponseEntity.badRequest().body(new ResponseDTO(exc.getMessage(), true));
+	}
+	
+	/**
+	 * Handle a backup sent with a device id
+	 * that cannot be stored.
+	 * 
+	 * @param exc exception
+	 * @return response entity
+	 */
+	@ExceptionHandler(InvalidDeviceException.class)
+	public ResponseEntity<?> handleInvalidDevice(InvalidDeviceException exc) {
+		return ResponseEntity.badRequest().body(new ResponseDTO(exc.getMessage(), true));
 	}
 	
 	/**
@@ -178,8 +733,9 @@ public class Controller {
 	 * Register user. Checks if email is valid 
 	 * before registration. An email is valid if there is no
 	 * active user with the email. If an inactive user exists,
-	 * the user is deleted from the database, and a new user
-	 * is created with the email.
+	 * its registration is started over with the new password.
+	 * Inactive users that are never verified are removed by
+	 * the {@link AccountPurger}.
 	 * 
 	 * @param email user email
 	 * @param password user password
@@ -192,18 +748,22 @@ public class Controller {
 			@RequestParam String password,
 			HttpServletResponse response) {
 		String message;
-		if (!verifyThatEmailIsAvailable(email)) {
+		User user = userRepository.findByEmail(email);
+		if (user != null && user.isEnabled()) {
 			response.setStatus(400);
 			message = "There is an account associated with this email.";
 			return new ResponseDTO(message, true);
 		}
 		
-		User user = new User();
-		user.setEmail(email);
+		if (user == null) {
+			user = new User();
+			user.setEmail(email);
+		} else {
+			user.restartRegistration();
+		}
 		user.setPassword(passwordEncoder.encode(password));
-		user.setOneTimePassword();
 		userRepository.save(user);			
-		sendEmail(email, user.getOneTimePassword());
+		sendEmail(email, oneTimeCodes.issue(user, OneTimeCodes.Purpose.ACCOUNT));
 		
 		message = "Success";
 		return new ResponseDTO(message, false);
@@ -225,9 +785,7 @@ public class Controller {
 			return;
 		}
 		
-		user.setOneTimePassword();
-		userRepository.save(user);
-		sendEmail(email, user.getOneTimePassword());
+		sendEmail(email, oneTimeCodes.issue(user, OneTimeCodes.Purpose.ACCOUNT));
 	}
 
 	/**
@@ -241,6 +799,7 @@ public class Controller {
 	 * @param response {@link HttpServletResponse}
 	 * @return response dto
 	 */
+	@Transactional
 	@PostMapping("enableaccount")
 	public @ResponseBody ResponseDTO verify(@RequestParam String email, 
 			@RequestParam int code,
@@ -257,14 +816,15 @@ public class Controller {
 			return result;
 		}
 		
-		if (user.getOneTimePassword() != code) {
+		OneTimeCodes.Result check = oneTimeCodes.verify(user, OneTimeCodes.Purpose.ACCOUNT, code);
+		if (check == OneTimeCodes.Result.INVALID) {
 			message = "Invalid Verification Code";
 			result.setMessage(message);
 			response.setStatus(401);
 			return result;
 		}
 		
-		if (!user.checkValidVerificationCode()) {
+		if (check == OneTimeCodes.Result.EXPIRED) {
 			message = "Verification Code is Expired";
 			response.setStatus(401);
 			result.setMessage(message);
@@ -281,7 +841,8 @@ public class Controller {
 	
 	/**
 	 * Delete user account and all backups
-	 * associated with the user.
+	 * associated with the user. Backup files
+	 * are removed later by the {@link BackupCompactor}.
 	 * 
 	 * @param user user email
 	 * @return response dto
@@ -289,9 +850,14 @@ public class Controller {
 	@DeleteMapping("deleteaccount")
 	public @ResponseBody ResponseDTO deleteUser(Principal user) {
 		User u = userRepository.findByEmail(user.getName());
-		String filename = u.getBackupName();
-		if (filename != null) storageService.delete(filename);
-		userRepository.delete(u);
+		synchronized (backupLocks.lockFor(u.getUserId())) {
+			userRepository.delete(u);
+			versionRepository.markDeletedByUserId(u.getUserId());
+		}
+		for (UploadSession session : uploadSessionRepository.findByEmail(user.getName())) {
+			storageService.discard(session.getSessionId());
+			uploadSessionRepository.delete(session);
+		}
 		return new ResponseDTO("Account Deleted", false);
 	}
 	
@@ -315,9 +881,7 @@ public class Controller {
 		}
 		
 		if (u.getTwoFactorAuthentication()) {
-			u.setOneTimePassword();
-			userRepository.save(u);
-			sendEmail(email, u.getOneTimePassword());
+			sendEmail(email, oneTimeCodes.issue(u, OneTimeCodes.Purpose.LOGIN));
 		}
 		
 		return u.getTwoFactorAuthentication();
@@ -332,6 +896,7 @@ public class Controller {
 	 * @param response {@link HttpServletResponse}
 	 * @return response dto
 	 */
+	@Transactional
 	@PostMapping("enablemfa")
 	public @ResponseBody ResponseDTO enableTwoFactor(@RequestParam boolean enabled,
 			Principal user, 
@@ -354,6 +919,7 @@ public class Controller {
 	 * @param response {@link HttpServletResponse}
 	 * @return response dto
 	 */
+	@Transactional
 	@PutMapping("resetpassword")
 	public @ResponseBody ResponseDTO resetPassword(@RequestParam String email,
 			@RequestParam String password,
@@ -367,66 +933,535 @@ public class Controller {
 			return new ResponseDTO("Unauthorized", true);
 		}
 		
-		if (user.getOneTimePassword() != code) {
+		OneTimeCodes.Result check = oneTimeCodes.verify(user, OneTimeCodes.Purpose.ACCOUNT, code);
+		if (check == OneTimeCodes.Result.INVALID) {
 			response.setStatus(401);
 			return new ResponseDTO("Invalid Verification Code", true);
 		}
 		
-		if (!user.checkValidVerificationCode()) {
+		if (check == OneTimeCodes.Result.EXPIRED) {
 			response.setStatus(401);
 			return new ResponseDTO("The Verification Code is Expired", true);
 		}
 		
 		user.setPassword(passwordEncoder.encode(password));
+		user.revokeTokens();
 		userRepository.save(user);
 		return new ResponseDTO("Success", false);
 	}
 	
 	/**
-	 * Get information about a user's backup.
+	 * Get information about a user's backup,
+	 * or about the latest backup of a device.
 	 * 
+	 * @param deviceId device whose backup to describe, optional
 	 * @param user authenticated principal
 	 * @return BackUpInfoDTO instance
 	 */
 	@GetMapping("getbackupinfo")
-	public BackUpInfoDTO getLastBackUpDateAndSize(Principal user) {
+	public BackUpInfoDTO getLastBackUpDateAndSize(
+			@RequestHeader(value = DEVICE_ID, required = false) String deviceId, Principal user) {
+		if (deviceId == null) return userRepository.findBackUpInfoByEmail(user.getName());
+		
 		User u = userRepository.findByEmail(user.getName());
-		return new BackUpInfoDTO(u.getLastBackUpDate(), u.getLastBackUpSize());
+		List<BackUpInfoDTO> info = versionRepository.findBackUpInfo(u.getUserId(), deviceId, 
+				PageRequest.of(0, 1));
+		return info.isEmpty() ? new BackUpInfoDTO(null, null) : info.get(0);
 	}
 	
 	/**
-	 * Verify that an email is available.
-	 * An email is available if it has no active user 
-	 * associated with it. If a user with the email
-	 * is inactive, that user is deleted.
+	 * Queue email with verification code
+	 * to provided email address. The email is
+	 * sent once the current transaction commits.
 	 * 
-	 * @param email email to be verified
-	 * @return true if valid or false otherwise
+	 * @param email recipient
+	 * @param code code
 	 */
-	private boolean verifyThatEmailIsAvailable(String email) {
-		User user = userRepository.findByEmail(email);
-		if (user == null) return true;
-		if (!user.isEnabled()) {
-			userRepository.delete(user);
-			
-			entityManager.flush();
-			return true;
+	private void sendEmail(String email, int code) {
+		mailOutbox.send(email, "Verification Code", code);
+	}
+	
+	/**
+	 * Map an upload job to its dto.
+	 * 
+	 * @param job upload job
+	 * @return upload job dto
+	 */
+	private UploadJobDTO toDTO(UploadJob job) {
+		return new UploadJobDTO(job.getJobId(), job.getState().name(), job.getMessage());
+	}
+	
+	/**
+	 * Find an upload session owned by a user.
+	 * 
+	 * @param sessionId upload session
+	 * @param user authenticated principal
+	 * @return the session or null if the user has no such session
+	 */
+	private UploadSession findUploadSession(String sessionId, Principal user) {
+		return owned(uploadSessionRepository.findById(sessionId).orElse(null), user);
+	}
+	
+	/**
+	 * Check that an upload session is owned by a user.
+	 * 
+	 * @param session upload session, may be null
+	 * @param user authenticated principal
+	 * @return the session or null if the user does not own it
+	 */
+	private UploadSession owned(UploadSession session, Principal user) {
+		if (session == null || !session.getEmail().equals(user.getName())) return null;
+		return session;
+	}
+	
+	/**
+	 * Map an upload session to its dto.
+	 * 
+	 * @param session upload session
+	 * @return upload session dto
+	 */
+	private UploadSessionDTO toDTO(UploadSession session) {
+		return new UploadSessionDTO(session.getSessionId(), session.getReceivedChunks(), 
+				session.getReceivedBytes());
+	}
+	
+	/**
+	 * Find the latest backup of a device.
+	 * 
+	 * @param userId owner of the backup
+	 * @param deviceId device that uploaded it
+	 * @return the backup version or null if the device has none
+	 */
+	private BackupVersion latestVersion(long userId, String deviceId) {
+		return versionRepository.findFirstByUserIdAndDeviceIdAndDeletedFalseOrderByCreatedAtDescVersionIdDesc(
+				userId, deviceId).orElse(null);
+	}
+	
+	/**
+	 * Get the backup a delta is taken against: the
+	 * latest backup of a device, or the user's backup
+	 * when no device is given.
+	 * 
+	 * @param u owner of the backup
+	 * @param deviceId device that uploaded it, may be null
+	 * @return the backup or null if there is none
+	 */
+	private BackupVersion currentBackup(User u, String deviceId) {
+		if (deviceId != null) return latestVersion(u.getUserId(), deviceId);
+		if (u.getBackupName() == null) return null;
+		
+		return new BackupVersion(u.getUserId(), u.getBackupName(), 
+				u.getLastBackUpSize() != null ? u.getLastBackUpSize() : 0, 
+				u.getBackupChecksum(), u.getLastBackUpDate());
+	}
+	
+	/**
+	 * Write a stored backup version to the response.
+	 * 
+	 * @param version backup version, answered with 404 if null
+	 * @param request {@link HttpServletRequest}
+	 * @param response {@link HttpServletResponse}
+	 * @throws IOException
+	 */
+	private void serveBackup(BackupVersion version, HttpServletRequest request, 
+			HttpServletResponse response) throws IOException {
+		if (version == null) {
+			response.setStatus(404);
+			return;
+		}
+		serveBackup(version.getFilename(), version.getChecksum(), new BackUpInfoDTO(
+				version.getCreatedAt(), version.getSize()), request, response);
+	}
+	
+	/**
+	 * Write a stored backup and its description
+	 * to the response. A compressed backup is sent as
+	 * it is stored, with a gzip content encoding, to
+	 * clients that accept gzip, and decompressed while
+	 * it is written for all other clients. The ETag is
+	 * derived from the checksum and encoding, so conditional
+	 * requests are answered without reading the file.
+	 * 
+	 * @param filename stored file
+	 * @param checksum hex encoded MD5 digest of the file
+	 * @param info date and size of the backup
+	 * @param request {@link HttpServletRequest}
+	 * @param response {@link HttpServletResponse}
+	 * @throws IOException
+	 */
+	private void serveBackup(String filename, String checksum, BackUpInfoDTO info,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		boolean compressed = storageService.isCompressed(filename);
+		boolean encoded = compressed && acceptsGzip(request);
+		String etag = "\"" + checksum + (encoded ? "-gzip" : "") + "\"";
+		long lastModified = info.getDate() != null ? info.getDate().getTime() : -1;
+		
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		if (compressed) response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) return;
+		
+		Resource file = storageService.loadAsResource(filename);
+		Path path = file.getFile().toPath();
+		long length = compressed && !encoded 
+				? (info.getSize() != null ? info.getSize() : -1) : Files.size(path);
+		
+		long start = 0;
+		long end = length - 1;
+		HttpRange range = requestedRange(request, etag, lastModified, length);
+		if (range != null) {
+			if (!isSatisfiable(range, length)) {
+				response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+				return;
+			}
+			start = range.getRangeStart(length);
+			end = range.getRangeEnd(length);
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+		}
+		
+		String name = file.getFilename();
+		if (compressed) {
+			name = name.substring(0, name.length() - GZIP_SUFFIX.length());
+		}
+		response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" +
+				name + "\"");
+		response.setHeader("Checksum", checksum);
+		response.setHeader("Info", objectMapper.writeValueAsString(info));
+		
+		if (!compressed || encoded) {
+			if (encoded) response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+			transferFile(path, start, end + 1, request, response);
+			return;
+		}
+		
+		if (length >= 0 && isAsync(request, end - start + 1)) {
+			InputStream in = storageService.open(filename);
+			try {
+				if (in.skip(start) < start) throw new IOException("Backup is shorter than " + start);
+				response.setContentLengthLong(end - start + 1);
+				startWriting(ResponseWriteListener.of(in, end - start + 1), request, response);
+			} catch (IOException | RuntimeException e) {
+				in.close();
+				throw e;
+			}
+			return;
+		}
+		
+		try (InputStream in = storageService.open(filename)) {
+			if (length < 0) {
+				in.transferTo(response.getOutputStream());
+			} else {
+				response.setContentLengthLong(end - start + 1);
+				StreamUtils.copyRange(in, response.getOutputStream(), start, end);
+			}
+		}
+	}
+	
+	/**
+	 * Get the byte range a client asked for. The range
+	 * is ignored if it is malformed, if more than one
+	 * range is requested, if the length of the content
+	 * is not known, or if an If-Range validator no
+	 * longer matches the backup.
+	 * 
+	 * @param request {@link HttpServletRequest}
+	 * @param etag ETag of the response
+	 * @param lastModified date of the backup, -1 if unknown
+	 * @param length length of the content, -1 if unknown
+	 * @return the requested range or null to send the whole content
+	 */
+	private HttpRange requestedRange(HttpServletRequest request, String etag, 
+			long lastModified, long length) {
+		String header = request.getHeader(HttpHeaders.RANGE);
+		if (header == null || length < 0) return null;
+		
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange != null) {
+			if (ifRange.startsWith("W/")) return null;
+			if (ifRange.startsWith("\"")) {
+				if (!ifRange.equals(etag)) return null;
+			} else {
+				try {
+					long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+					if (lastModified < 0 || date / 1000 != lastModified / 1000) return null;
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
+		}
+		
+		try {
+			List<HttpRange> ranges = HttpRange.parseRanges(header);
+			return ranges.size() == 1 ? ranges.get(0) : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Check whether a byte range overlaps the content.
+	 * 
+	 * @param range requested range
+	 * @param length length of the content
+	 * @return true if at least one byte can be sent
+	 */
+	private boolean isSatisfiable(HttpRange range, long length) {
+		try {
+			return length > 0 && range.getRangeStart(length) <= range.getRangeEnd(length);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Check whether a client accepts gzip
+	 * encoded responses.
+	 * 
+	 * @param request {@link HttpServletRequest}
+	 * @return true if gzip is accepted
+	 */
+	private boolean acceptsGzip(HttpServletRequest request) {
+		Enumeration<String> headers = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+		while (headers != null && headers.hasMoreElements()) {
+			for (String coding : headers.nextElement().split(",")) {
+				String[] parts = coding.trim().split(";");
+				if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+				
+				for (int i = 1; i < parts.length; i++) {
+					String param = parts[i].trim();
+					if (param.startsWith("q=")) {
+						try {
+							return Double.parseDouble(param.substring(2)) > 0;
+						} catch (NumberFormatException e) {
+							return false;
+						}
+					}
+				}
+				return true;
+			}
 		}
 		return false;
 	}
 	
 	/**
-	 * Send email and verification code
-	 * to provided email address.
+	 * Write part of a file to the response body
+	 * without copying it onto the heap. If the container
+	 * supports sendfile, the file is handed to it
+	 * once the request completes. Otherwise large files
+	 * are written with non-blocking I/O.
 	 * 
-	 * @param email recipient
-	 * @param code code
+	 * @param path file to write
+	 * @param start position of the first byte to write
+	 * @param end position after the last byte to write
+	 * @param request {@link HttpServletRequest}
+	 * @param response {@link HttpServletResponse}
+	 * @throws IOException
 	 */
-	private void sendEmail(String email, int code) {
+	private void transferFile(Path path, long start, long end, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED)) 
+				&& isAsync(request, end - start)) {
+			AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, 
+					StandardOpenOption.READ);
+			try {
+				response.setContentLengthLong(end - start);
+				startWriting(ResponseWriteListener.of(channel, start, end), request, response);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+			return;
+		}
+		
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			response.setContentLengthLong(end - start);
+			
+			if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+				request.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+				request.setAttribute(SENDFILE_START, start);
+				request.setAttribute(SENDFILE_END, end);
+				return;
+			}
+			
+			WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+			long position = start;
+			while (position < end) {
+				position += channel.transferTo(position, end - position, target);
+			}
+		}
+	}
+	
+	/**
+	 * Get the body of an upload that may not be larger
+	 * than a limit. A declared length over the limit is
+	 * rejected before anything is read, and the body
+	 * fails as soon as it passes the limit otherwise.
+	 * 
+	 * @param request {@link HttpServletRequest} with the upload as its body
+	 * @param limit largest number of bytes accepted
+	 * @return the request body
+	 * @throws IOException
+	 */
+	private InputStream limitedBody(HttpServletRequest request, long limit) throws IOException {
+		if (request.getContentLengthLong() > limit) throw new UploadTooLargeException(limit);
+		return new SizeLimitedInputStream(request.getInputStream(), limit);
+	}
+	
+	/**
+	 * Check whether a transfer is large enough to
+	 * be done with non-blocking I/O.
+	 * 
+	 * @param request {@link HttpServletRequest}
+	 * @param length number of bytes to transfer
+	 * @return true to transfer without blocking
+	 */
+	private boolean isAsync(HttpServletRequest request, long length) {
+		return request.isAsyncSupported() && length >= transferProperties.getAsyncThreshold();
+	}
+	
+	/**
+	 * Put a request into asynchronous mode. The
+	 * entity manager opened for the request is closed
+	 * when the request completes, since it is not
+	 * closed when the handler returns.
+	 * 
+	 * @param request {@link HttpServletRequest}
+	 * @param response {@link HttpServletResponse}
+	 * @return context of the request
+	 */
+	private AsyncContext startAsync(HttpServletRequest request, HttpServletResponse response) {
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(transferProperties.getTimeout());
+		
+		EntityManagerHolder holder = (EntityManagerHolder) 
+				TransactionSynchronizationManager.getResource(entityManagerFactory);
+		if (holder != null) {
+			asyncContext.addListener(new AsyncListener() {
+				@Override
+				public void onComplete(AsyncEvent event) {
+					EntityManagerFactoryUtils.closeEntityManager(holder.getEntityManager());
+				}
+				
+				@Override
+				public void onTimeout(AsyncEvent event) {}
+				
+				@Override
+				public void onError(AsyncEvent event) {}
+				
+				@Override
+				public void onStartAsync(AsyncEvent event) {}
+			});
+		}
+		return asyncContext;
+	}
+	
+	/**
+	 * Write the response body without blocking
+	 * once the request thread has returned.
+	 * 
+	 * @param source content to write
+	 * @param request {@link HttpServletRequest}
+	 * @param response {@link HttpServletResponse}
+	 * @throws IOException
+	 */
+	private void startWriting(ResponseWriteListener.Source source, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		AsyncContext asyncContext = startAsync(request, response);
+		response.getOutputStream().setWriteListener(new ResponseWriteListener(asyncContext, 
+				source, transferProperties.getBufferSize()));
+	}
+	
+	/**
+	 * Stage a backup sent as the request body without
+	 * blocking, then store and publish it on the upload
+	 * pool and answer the request from there, so no
+	 * container thread waits on the commit.
+	 * 
+	 * @param userId owner of the backup
+	 * @param deviceId device sending the backup, may be null
+	 * @param filename name of the uploaded file
+	 * @param checksum hex encoded MD5 digest of the file, may be null
+	 * @param limit largest number of bytes accepted
+	 * @param request {@link HttpServletRequest} with the file as its body
+	 * @param response {@link HttpServletResponse}
+	 * @throws IOException
+	 */
+	private void receiveBackup(long userId, String deviceId, String filename, String checksum,
+			long limit, HttpServletRequest request, HttpServletResponse response) 
+					throws IOException {
+		String stagingName = UUID.randomUUID().toString();
+		AsyncContext asyncContext = startAsync(request, response);
+		AsynchronousFileChannel channel = storageService.openStaging(stagingName);
+		
+		request.getInputStream().setReadListener(new RequestReadListener(asyncContext, channel,
+				transferProperties.getBufferSize(), limit, new RequestReadListener.Callback() {
+			@Override
+			public void received(long size, String actual) {
+				if (size == 0 || (checksum != null && !checksum.equalsIgnoreCase(actual))) {
+					storageService.discard(stagingName);
+					finish(asyncContext, 400, new ResponseDTO(size == 0 ? "File cannot be empty" 
+							: "Checksum mismatch for " + filename, true));
+					return;
+				}
+				
+				try {
+					uploadPipeline.publishStaged(userId, deviceId, stagingName, filename)
+					.whenComplete((published, exc) -> {
+						Throwable cause = exc instanceof CompletionException ? exc.getCause() : exc;
+						if (cause == null) {
+							finish(asyncContext, 200, new ResponseDTO("Success", false));
+						} else if (cause instanceof InvalidDeviceException) {
+							finish(asyncContext, 400, new ResponseDTO(cause.getMessage(), true));
+						} else {
+							log.error("Failed to store backup {} of user {}", filename, userId, cause);
+							finish(asyncContext, 500, new ResponseDTO("Failed to store backup", true));
+						}
+					});
+				} catch (UploadRejectedException e) {
+					((HttpServletResponse) asyncContext.getResponse())
+							.setHeader(HttpHeaders.RETRY_AFTER, "30");
+					finish(asyncContext, 503, new ResponseDTO(e.getMessage(), true));
+				}
+			}
+			
+			@Override
+			public void failed(Throwable cause) {
+				storageService.discard(stagingName);
+				if (cause instanceof UploadTooLargeException) {
+					finish(asyncContext, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, 
+							new ResponseDTO(cause.getMessage(), true));
+				} else {
+					finish(asyncContext, 500, new ResponseDTO("Failed to receive backup", true));
+				}
+			}
+		}));
+	}
+	
+	/**
+	 * Answer a request whose body was read without blocking.
+	 * 
+	 * @param asyncContext context of the request
+	 * @param status response status
+	 * @param body response body
+	 */
+	private void finish(AsyncContext asyncContext, int status, ResponseDTO body) {
 		try {
-			mailSender.send(email, "Verification Code", code);
-		} catch (MessagingException e) {
-			e.printStackTrace();
+			HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+			if (!response.isCommitted()) {
+				response.setStatus(status);
+				response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+				objectMapper.writeValue(response.getOutputStream(), body);
+			}
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			try {
+				asyncContext.complete();
+			} catch (IllegalStateException e) {
+				// the request already ended
+			}
 		}
 	}
 }
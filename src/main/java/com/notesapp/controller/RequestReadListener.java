@@ -0,0 +1,227 @@
+package com.notesapp.controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.xml.bind.DatatypeConverter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notesapp.storage.UploadTooLargeException;
+
+/**
+ * A class that stages a request body without
+ * blocking on the network. Only data that has
+ * already arrived is read, and the request thread
+ * is given back as soon as the client has nothing
+ * more to send. Each chunk is written to the staging
+ * file with an {@link AsynchronousFileChannel} while
+ * the next one is read, and the MD5 digest of the
+ * body is computed on the way. Reading stops as soon
+ * as the body passes its size limit.
+ * 
+ * @author stephen
+ *
+ */
+public class RequestReadListener implements ReadListener, AsyncListener {
+	
+	/**
+	 * Receives the outcome of staging a body. Exactly
+	 * one of the methods is called, and it is in charge
+	 * of completing the request.
+	 */
+	public interface Callback {
+		
+		/**
+		 * Called once the whole body is staged
+		 * and the staging file is closed.
+		 * 
+		 * @param size size of the body
+		 * @param checksum hex encoded MD5 digest of the body
+		 */
+		void received(long size, String checksum);
+		
+		/**
+		 * Called if the body could not be staged.
+		 * 
+		 * @param cause what went wrong
+		 */
+		void failed(Throwable cause);
+	}
+	
+	private static final Logger log = LoggerFactory.getLogger(RequestReadListener.class);
+	
+	private static final int BUFFERS = 2;
+	
+	private final AsyncContext asyncContext;
+	
+	private final ServletInputStream in;
+	
+	private final AsynchronousFileChannel channel;
+	
+	private final Callback callback;
+	
+	private final long limit;
+	
+	private final MessageDigest messageDigest;
+	
+	private final ByteBuffer[] buffers = new ByteBuffer[BUFFERS];
+	
+	/**
+	 * Pending write of each buffer and
+	 * the position it was written at.
+	 */
+	private final Future<?>[] writes = new Future<?>[BUFFERS];
+	private final long[] positions = new long[BUFFERS];
+	
+	private int next;
+	
+	private long position;
+	
+	private boolean done;
+	
+	/**
+	 * @param asyncContext context of the request being read
+	 * @param channel staging file to write
+	 * @param bufferSize size of each chunk
+	 * @param limit largest body accepted, in bytes
+	 * @param callback receives the outcome
+	 * @throws IOException
+	 */
+	public RequestReadListener(AsyncContext asyncContext, AsynchronousFileChannel channel,
+			int bufferSize, long limit, Callback callback) throws IOException {
+		this.asyncContext = asyncContext;
+		this.in = asyncContext.getRequest().getInputStream();
+		this.channel = channel;
+		this.callback = callback;
+		this.limit = limit;
+		try {
+			this.messageDigest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Checksum algorithm not available", e);
+		}
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.allocate(bufferSize);
+		}
+		asyncContext.addListener(this);
+	}
+	
+	@Override
+	public synchronized void onDataAvailable() throws IOException {
+		while (!done && in.isReady()) {
+			ByteBuffer buffer = buffers[next];
+			await(next);
+			buffer.clear();
+			
+			int read = in.read(buffer.array(), 0, buffer.capacity());
+			if (read < 0) return;
+			if (position + read > limit) {
+				onError(new UploadTooLargeException(limit));
+				return;
+			}
+			
+			messageDigest.update(buffer.array(), 0, read);
+			buffer.limit(read);
+			positions[next] = position;
+			writes[next] = channel.write(buffer, position);
+			position += read;
+			next = (next + 1) % buffers.length;
+		}
+	}
+	
+	@Override
+	public synchronized void onAllDataRead() throws IOException {
+		if (done) return;
+		try {
+			for (int i = 0; i < buffers.length; i++) {
+				await(i);
+			}
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+			onError(e);
+			return;
+		}
+		
+		done = true;
+		callback.received(position, DatatypeConverter.printHexBinary(messageDigest.digest()));
+	}
+	
+	@Override
+	public synchronized void onError(Throwable t) {
+		if (done) return;
+		done = true;
+		close();
+		callback.failed(t);
+	}
+	
+	@Override
+	public void onComplete(AsyncEvent event) throws IOException {
+		close();
+	}
+	
+	@Override
+	public void onTimeout(AsyncEvent event) throws IOException {
+		onError(new IOException("Upload timed out"));
+	}
+	
+	@Override
+	public void onError(AsyncEvent event) throws IOException {
+		onError(event.getThrowable());
+	}
+	
+	@Override
+	public void onStartAsync(AsyncEvent event) throws IOException {
+		
+	}
+	
+	/**
+	 * Wait for the pending write of a buffer, finishing
+	 * it if only part of the buffer was written. Writes
+	 * to a local file rarely keep anyone waiting, as
+	 * the next chunk is read while they run.
+	 * 
+	 * @param index buffer to wait for
+	 * @throws IOException
+	 */
+	private void await(int index) throws IOException {
+		Future<?> write = writes[index];
+		if (write == null) return;
+		writes[index] = null;
+		
+		ByteBuffer buffer = buffers[index];
+		try {
+			long at = positions[index] + (Integer) write.get();
+			while (buffer.hasRemaining()) {
+				at += channel.write(buffer, at).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while staging upload", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to stage upload", e.getCause());
+		}
+	}
+	
+	/**
+	 * Close the staging file.
+	 */
+	private void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Could not close staging file", e);
+		}
+	}
+}
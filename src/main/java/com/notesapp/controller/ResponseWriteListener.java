@@ -0,0 +1,266 @@
+package com.notesapp.controller;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A class that writes a response body without
+ * blocking on the network. The next chunk is only
+ * read once the client has taken the previous one,
+ * and the request thread is given back whenever the
+ * client is not ready for more. File content is read
+ * with an {@link AsynchronousFileChannel}, so no
+ * thread waits on the disk either.
+ * 
+ * @author stephen
+ *
+ */
+public class ResponseWriteListener implements WriteListener, AsyncListener {
+	
+	private static final Logger log = LoggerFactory.getLogger(ResponseWriteListener.class);
+	
+	/**
+	 * Content of a response body, read one chunk at a time.
+	 */
+	public interface Source extends Closeable {
+		
+		/**
+		 * Read the next chunk of content.
+		 * 
+		 * @param buffer buffer to read into
+		 * @return number of bytes read, or -1 at the end of the content
+		 */
+		CompletableFuture<Integer> read(ByteBuffer buffer);
+	}
+	
+	private final AsyncContext asyncContext;
+	
+	private final ServletOutputStream out;
+	
+	private final Source source;
+	
+	private final ByteBuffer buffer;
+	
+	private boolean finished;
+	
+	private boolean closed;
+	
+	/**
+	 * @param asyncContext context of the request being answered
+	 * @param source content to write
+	 * @param bufferSize size of each chunk
+	 * @throws IOException
+	 */
+	public ResponseWriteListener(AsyncContext asyncContext, Source source, 
+			int bufferSize) throws IOException {
+		this.asyncContext = asyncContext;
+		this.out = asyncContext.getResponse().getOutputStream();
+		this.source = source;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.buffer.limit(0);
+		asyncContext.addListener(this);
+	}
+	
+	/**
+	 * Read a range of a file.
+	 * 
+	 * @param channel file to read
+	 * @param start position of the first byte to read
+	 * @param end position after the last byte to read
+	 * @return content source
+	 */
+	public static Source of(AsynchronousFileChannel channel, long start, long end) {
+		return new Source() {
+			private long position = start;
+			
+			@Override
+			public CompletableFuture<Integer> read(ByteBuffer buffer) {
+				CompletableFuture<Integer> result = new CompletableFuture<>();
+				if (position >= end) {
+					result.complete(-1);
+					return result;
+				}
+				
+				buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), end - position));
+				channel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+					@Override
+					public void completed(Integer read, Void attachment) {
+						if (read > 0) position += read;
+						result.complete(read);
+					}
+
+					@Override
+					public void failed(Throwable exc, Void attachment) {
+						result.completeExceptionally(exc);
+					}
+				});
+				return result;
+			}
+			
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+	
+	/**
+	 * Read a stream, such as a backup that is
+	 * decompressed as it is read.
+	 * 
+	 * @param in stream to read
+	 * @param length number of bytes to read
+	 * @return content source
+	 */
+	public static Source of(InputStream in, long length) {
+		return new Source() {
+			private long remaining = length;
+			
+			@Override
+			public CompletableFuture<Integer> read(ByteBuffer buffer) {
+				try {
+					int read = remaining == 0 ? -1 : in.read(buffer.array(), buffer.position(),
+							(int) Math.min(buffer.remaining(), remaining));
+					if (read > 0) {
+						buffer.position(buffer.position() + read);
+						remaining -= read;
+					}
+					return CompletableFuture.completedFuture(read);
+				} catch (IOException e) {
+					return CompletableFuture.failedFuture(e);
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				in.close();
+			}
+		};
+	}
+	
+	@Override
+	public synchronized void onWritePossible() throws IOException {
+		while (!closed && out.isReady()) {
+			if (buffer.hasRemaining()) {
+				out.write(buffer.array(), buffer.position(), buffer.remaining());
+				buffer.position(buffer.limit());
+			} else if (finished) {
+				asyncContext.complete();
+				return;
+			} else {
+				buffer.clear();
+				CompletableFuture<Integer> read = source.read(buffer);
+				if (!read.isDone()) {
+					// the client is still ready, so carry on once the chunk is in
+					read.whenComplete((count, exc) -> resume(read));
+					return;
+				}
+				filled(read);
+			}
+		}
+	}
+	
+	@Override
+	public void onError(Throwable t) {
+		abort();
+	}
+	
+	@Override
+	public void onComplete(AsyncEvent event) throws IOException {
+		close();
+	}
+	
+	@Override
+	public void onTimeout(AsyncEvent event) throws IOException {
+		abort();
+	}
+	
+	@Override
+	public void onError(AsyncEvent event) throws IOException {
+		close();
+	}
+	
+	@Override
+	public void onStartAsync(AsyncEvent event) throws IOException {
+		
+	}
+	
+	/**
+	 * Continue writing on a request thread
+	 * after a chunk was read.
+	 * 
+	 * @param read completed read
+	 */
+	private void resume(CompletableFuture<Integer> read) {
+		try {
+			asyncContext.start(() -> {
+				synchronized (this) {
+					try {
+						if (closed) return;
+						filled(read);
+						onWritePossible();
+					} catch (IOException | CompletionException e) {
+						abort();
+					}
+				}
+			});
+		} catch (IllegalStateException e) {
+			// the request already ended
+			close();
+		}
+	}
+	
+	/**
+	 * Prepare a chunk that was read for writing.
+	 * 
+	 * @param read completed read
+	 */
+	private void filled(CompletableFuture<Integer> read) {
+		if (read.join() < 0) {
+			finished = true;
+			buffer.limit(0);
+		} else {
+			buffer.flip();
+		}
+	}
+	
+	/**
+	 * Give up on the response.
+	 */
+	private synchronized void abort() {
+		close();
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			// the request already ended
+		}
+	}
+	
+	/**
+	 * Release the content source.
+	 */
+	private synchronized void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			source.close();
+		} catch (IOException e) {
+			log.warn("Could not close response source", e);
+		}
+	}
+}
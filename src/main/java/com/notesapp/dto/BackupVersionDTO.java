@@ -0,0 +1,90 @@
+package com.notesapp.dto;
+
+import java.util.Date;
+
+/**
+ * A class to map a stored backup
+ * version to a json object.
+ * 
+ * @author stephen
+ *
+ */
+public class BackupVersionDTO {
+	/**
+	 * Version identifier.
+	 */
+	private long versionId;
+	/**
+	 * Device that uploaded the back up, null for the account.
+	 */
+	private String deviceId;
+	/**
+	 * Date of the back up.
+	 */
+	private Date date;
+	/**
+	 * Size of the back up.
+	 */
+	private long size;
+	/**
+	 * Hex encoded MD5 digest of the back up.
+	 */
+	private String checksum;
+	
+	/**
+	 * @param versionId
+	 * @param deviceId
+	 * @param date
+	 * @param size
+	 * @param checksum
+	 */
+	public BackupVersionDTO(long versionId, String deviceId, Date date, long size, 
+			String checksum) {
+		super();
+		this.versionId = versionId;
+		this.deviceId = deviceId;
+		this.date = date;
+		this.size = size;
+		this.checksum = checksum;
+	}
+
+	public long getVersionId() {
+		return versionId;
+	}
+
+	public void setVersionId(long versionId) {
+		this.versionId = versionId;
+	}
+
+	public String getDeviceId() {
+		return deviceId;
+	}
+
+	public void setDeviceId(String deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	public void setDate(Date date) {
+		this.date = date;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+	public void setChecksum(String checksum) {
+		this.checksum = checksum;
+	}
+}
@@ -0,0 +1,34 @@
+package com.notesapp.dto;
+
+import java.util.List;
+
+/**
+ * A class to map the pages a client has
+ * to send for a delta backup.
+ * 
+ * @author stephen
+ *
+ */
+public class MissingPagesDTO {
+	/**
+	 * Page numbers, starting at 1, that 
+	 * differ from the stored backup.
+	 */
+	private List<Integer> pages;
+	
+	/**
+	 * @param pages
+	 */
+	public MissingPagesDTO(List<Integer> pages) {
+		super();
+		this.pages = pages;
+	}
+
+	public List<Integer> getPages() {
+		return pages;
+	}
+
+	public void setPages(List<Integer> pages) {
+		this.pages = pages;
+	}
+}
@@ -0,0 +1,52 @@
+package com.notesapp.dto;
+
+import java.util.List;
+
+/**
+ * A class to map a page manifest of a SQLite
+ * database sent by a client. Page n of the
+ * database is described by the n-1th hash.
+ * 
+ * @author stephen
+ *
+ */
+public class PageManifestDTO {
+	/**
+	 * Database page size in bytes.
+	 */
+	private int pageSize;
+	/**
+	 * Hex encoded MD5 digest of each page.
+	 */
+	private List<String> pages;
+	
+	public PageManifestDTO() {
+		
+	}
+	
+	/**
+	 * @param pageSize
+	 * @param pages
+	 */
+	public PageManifestDTO(int pageSize, List<String> pages) {
+		super();
+		this.pageSize = pageSize;
+		this.pages = pages;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public List<String> getPages() {
+		return pages;
+	}
+
+	public void setPages(List<String> pages) {
+		this.pages = pages;
+	}
+}
@@ -0,0 +1,59 @@
+package com.notesapp.dto;
+
+/**
+ * A class to map the state of an upload
+ * job to a json object.
+ * 
+ * @author stephen
+ *
+ */
+public class UploadJobDTO {
+	/**
+	 * Upload job identifier.
+	 */
+	private String jobId;
+	/**
+	 * Processing state of the job.
+	 */
+	private String state;
+	/**
+	 * Outcome of the job once it finished.
+	 */
+	private String message;
+	
+	/**
+	 * @param jobId
+	 * @param state
+	 * @param message
+	 */
+	public UploadJobDTO(String jobId, String state, String message) {
+		super();
+		this.jobId = jobId;
+		this.state = state;
+		this.message = message;
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
@@ -0,0 +1,60 @@
+package com.notesapp.dto;
+
+/**
+ * A class to map the state of a chunked
+ * upload to a json object.
+ * 
+ * @author stephen
+ *
+ */
+public class UploadSessionDTO {
+	/**
+	 * Upload session identifier.
+	 */
+	private String sessionId;
+	/**
+	 * Number of chunks received so far. This
+	 * is also the index of the next chunk expected.
+	 */
+	private int receivedChunks;
+	/**
+	 * Number of bytes received so far.
+	 */
+	private long receivedBytes;
+	
+	/**
+	 * @param sessionId
+	 * @param receivedChunks
+	 * @param receivedBytes
+	 */
+	public UploadSessionDTO(String sessionId, int receivedChunks, long receivedBytes) {
+		super();
+		this.sessionId = sessionId;
+		this.receivedChunks = receivedChunks;
+		this.receivedBytes = receivedBytes;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public int getReceivedChunks() {
+		return receivedChunks;
+	}
+
+	public void setReceivedChunks(int receivedChunks) {
+		this.receivedChunks = receivedChunks;
+	}
+
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	public void setReceivedBytes(long receivedBytes) {
+		this.receivedBytes = receivedBytes;
+	}
+}
@@ -0,0 +1,161 @@
+package com.notesapp.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A class representing one stored version of
+ * a user's backup. Each version belongs to the device
+ * that uploaded it, so devices sharing an account keep
+ * their own backups; versions uploaded without a device
+ * id belong to the account itself. Versions that fall out
+ * of the retention policy, or whose backup was deleted,
+ * are marked as deleted and their files are removed
+ * later by the compactor.
+ * 
+ * @author stephen
+ *
+ */
+@Entity
+@Table(indexes = {
+		@Index(columnList = "userId, createdAt"),
+		@Index(columnList = "userId, deviceId, createdAt")
+})
+public class BackupVersion {
+	/**
+	 * Longest device id a client may send.
+	 */
+	public static final int MAX_DEVICE_ID_LENGTH = 64;
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long versionId;
+	@Column(nullable = false)
+	private long userId;
+	@Column(length = MAX_DEVICE_ID_LENGTH)
+	private String deviceId;
+	@Column(nullable = false)
+	private String filename;
+	private long size;
+	private String checksum;
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(nullable = false)
+	private Date createdAt;
+	private boolean deleted;
+	
+	/**
+	 * Creates an instance of the BackupVersion entity.
+	 */
+	public BackupVersion() {
+		
+	}
+	
+	/**
+	 * Creates an instance of the BackupVersion entity.
+	 * 
+	 * @param userId owner of the backup
+	 * @param filename name the file is stored under
+	 * @param size size of the backup
+	 * @param checksum hex encoded MD5 digest of the backup
+	 * @param createdAt time the backup was uploaded
+	 */
+	public BackupVersion(long userId, String filename, long size, String checksum, 
+			Date createdAt) {
+		this(userId, null, filename, size, checksum, createdAt);
+	}
+	
+	/**
+	 * Creates an instance of the BackupVersion entity.
+	 * 
+	 * @param userId owner of the backup
+	 * @param deviceId device that uploaded the backup, may be null
+	 * @param filename name the file is stored under
+	 * @param size size of the backup
+	 * @param checksum hex encoded MD5 digest of the backup
+	 * @param createdAt time the backup was uploaded
+	 */
+	public BackupVersion(long userId, String deviceId, String filename, long size, 
+			String checksum, Date createdAt) {
+		super();
+		this.userId = userId;
+		this.deviceId = deviceId;
+		this.filename = filename;
+		this.size = size;
+		this.checksum = checksum;
+		this.createdAt = createdAt;
+		this.deleted = false;
+	}
+
+	public long getVersionId() {
+		return versionId;
+	}
+
+	public void setVersionId(long versionId) {
+		this.versionId = versionId;
+	}
+
+	public long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(long userId) {
+		this.userId = userId;
+	}
+
+	public String getDeviceId() {
+		return deviceId;
+	}
+
+	public void setDeviceId(String deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public void setFilename(String filename) {
+		this.filename = filename;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+	public void setChecksum(String checksum) {
+		this.checksum = checksum;
+	}
+
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(Date createdAt) {
+		this.createdAt = createdAt;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(boolean deleted) {
+		this.deleted = deleted;
+	}
+}
@@ -0,0 +1,55 @@
+package com.notesapp.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * A class representing the verification codes issued
+ * to a user for one purpose. Only the time step of the
+ * first code still in use and the number of codes
+ * checked against it are stored, the codes themselves
+ * are derived again when they are checked. A used code
+ * uses up the row until the next code is issued.
+ * 
+ * @author stephen
+ *
+ */
+@Entity
+public class CodeIssuance {
+	@Id
+	private String issuanceId;
+	private long step;
+	private int attempts;
+	
+	/**
+	 * Creates an instance of the CodeIssuance entity.
+	 */
+	public CodeIssuance() {
+		
+	}
+	
+	/**
+	 * Creates an issuance without any attempts.
+	 * 
+	 * @param issuanceId user and purpose of the codes
+	 * @param step time step of the first code
+	 */
+	public CodeIssuance(String issuanceId, long step) {
+		super();
+		this.issuanceId = issuanceId;
+		this.step = step;
+		this.attempts = 0;
+	}
+
+	public String getIssuanceId() {
+		return issuanceId;
+	}
+
+	public long getStep() {
+		return step;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+}
@@ -0,0 +1,136 @@
+package com.notesapp.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A class representing a verification email waiting
+ * to be sent. The email is written in the same
+ * transaction as the code it carries and removed once
+ * it has been handed to the mail server. Failed
+ * attempts are retried at increasing intervals until
+ * the attempts run out. An email that failed keeps the
+ * time it failed as its next attempt, so it can be
+ * removed once it has been kept long enough.
+ * 
+ * @author stephen
+ *
+ */
+@Entity
+@Table(indexes = @Index(columnList = "failed, nextAttemptAt"))
+public class OutgoingMail {
+	private static final int MAX_ERROR_LENGTH = 255;
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long mailId;
+	@Column(nullable = false)
+	private String recipient;
+	@Column(nullable = false)
+	private String subject;
+	private int code;
+	private int attempts;
+	private boolean failed;
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(nullable = false)
+	private Date nextAttemptAt;
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date createdAt;
+	@Column(length = MAX_ERROR_LENGTH)
+	private String lastError;
+	
+	/**
+	 * Creates an instance of the OutgoingMail entity.
+	 */
+	public OutgoingMail() {
+		
+	}
+	
+	/**
+	 * Creates an email that is due right away.
+	 * 
+	 * @param recipient address to send to
+	 * @param subject email subject
+	 * @param code verification code
+	 */
+	public OutgoingMail(String recipient, String subject, int code) {
+		super();
+		this.recipient = recipient;
+		this.subject = subject;
+		this.code = code;
+		this.attempts = 0;
+		this.failed = false;
+		this.createdAt = new Date();
+		this.nextAttemptAt = this.createdAt;
+	}
+
+	public long getMailId() {
+		return mailId;
+	}
+
+	public String getRecipient() {
+		return recipient;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public void setFailed(boolean failed) {
+		this.failed = failed;
+	}
+
+	public Date getNextAttemptAt() {
+		return nextAttemptAt;
+	}
+
+	public void setNextAttemptAt(Date nextAttemptAt) {
+		this.nextAttemptAt = nextAttemptAt;
+	}
+
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Set the error of the last attempt, cut
+	 * to the length of the column.
+	 * 
+	 * @param lastError error message
+	 */
+	public void setLastError(String lastError) {
+		if (lastError != null && lastError.length() > MAX_ERROR_LENGTH) {
+			lastError = lastError.substring(0, MAX_ERROR_LENGTH);
+		}
+		this.lastError = lastError;
+	}
+}
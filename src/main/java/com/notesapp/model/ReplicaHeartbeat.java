@@ -0,0 +1,46 @@
+package com.notesapp.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * A class representing the heartbeat row used
+ * to measure replication lag. The row is written
+ * on the primary database and read back from the
+ * replica, so the age of the replica's copy shows
+ * how far behind the replica is.
+ * 
+ * @author stephen
+ *
+ */
+@Entity
+public class ReplicaHeartbeat {
+	@Id
+	private int heartbeatId;
+	@Column(nullable = false)
+	private long beatAt;
+	
+	/**
+	 * Creates an instance of the ReplicaHeartbeat entity.
+	 */
+	public ReplicaHeartbeat() {
+		
+	}
+
+	public int getHeartbeatId() {
+		return heartbeatId;
+	}
+
+	public void setHeartbeatId(int heartbeatId) {
+		this.heartbeatId = heartbeatId;
+	}
+
+	public long getBeatAt() {
+		return beatAt;
+	}
+
+	public void setBeatAt(long beatAt) {
+		this.beatAt = beatAt;
+	}
+}
@@ -0,0 +1,106 @@
+package com.notesapp.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A class representing a chunked upload in progress.
+ * Chunks are appended to a staging file in order, and
+ * the session records how much of the file has been
+ * received so an interrupted upload can be resumed.
+ * Sessions that are not committed within the staging
+ * retention are discarded with their staging file.
+ * 
+ * @author stephen
+ *
+ */
+@Entity
+public class UploadSession {
+	@Id
+	private String sessionId;
+	@Column(nullable = false)
+	private String email;
+	@Column(nullable = false)
+	private String filename;
+	private int receivedChunks;
+	private long receivedBytes;
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date createdAt;
+	
+	/**
+	 * Creates an instance of the UploadSession entity.
+	 */
+	public UploadSession() {
+		
+	}
+	
+	/**
+	 * Creates an instance of the UploadSession entity.
+	 * 
+	 * @param sessionId session identifier
+	 * @param email owner of the upload
+	 * @param filename name of the file being uploaded
+	 */
+	public UploadSession(String sessionId, String email, String filename) {
+		super();
+		this.sessionId = sessionId;
+		this.email = email;
+		this.filename = filename;
+		this.receivedChunks = 0;
+		this.receivedBytes = 0;
+		this.createdAt = new Date();
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+
+	public void setEmail(String email) {
+		this.email = email;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public void setFilename(String filename) {
+		this.filename = filename;
+	}
+
+	public int getReceivedChunks() {
+		return receivedChunks;
+	}
+
+	public void setReceivedChunks(int receivedChunks) {
+		this.receivedChunks = receivedChunks;
+	}
+
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	public void setReceivedBytes(long receivedBytes) {
+		this.receivedBytes = receivedBytes;
+	}
+
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(Date createdAt) {
+		this.createdAt = createdAt;
+	}
+}
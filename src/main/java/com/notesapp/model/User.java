@@ -1,13 +1,14 @@
 package com.notesapp.model;
 
 import java.util.Date;
-import java.util.Random;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.PrePersist;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
@@ -18,8 +19,8 @@ import javax.persistence.TemporalType;
  *
  */
 @Entity
+@EntityListeners(UserEntityListener.class)
 public class User {
-	private static int OTPEXPIRATION = 5;
 	@Id
 	@GeneratedValue(strategy = GenerationType.IDENTITY)
 	private long userId;
@@ -28,14 +29,15 @@ public class User {
 	@Column(nullable = false)
 	private String password;
 	private boolean enabled;
-	private int oneTimePassword;
-	@Temporal(TemporalType.TIMESTAMP)
-	private Date oneTimePasswordDateAdded;
 	private boolean twoFactorAuthentication;
 	@Temporal(TemporalType.TIMESTAMP)
 	private Date lastBackUpDate;
 	private Long lastBackUpSize;
 	private String backupName;
+	private String backupChecksum;
+	private int tokenVersion;
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date createdAt;
 	
 	/**
 	 * Creates an instance of the User entity.
@@ -52,10 +54,35 @@ public class User {
 		this.email = email;
 		this.password = password;
 		this.enabled = false;
-		this.oneTimePassword = 0;
-		this.oneTimePasswordDateAdded = null;
 		this.twoFactorAuthentication = false;
 	}
+	
+	/**
+	 * Creates a detached copy of a User entity.
+	 * 
+	 * @param other user to copy
+	 */
+	public User(User other) {
+		this.userId = other.userId;
+		this.email = other.email;
+		this.password = other.password;
+		this.enabled = other.enabled;
+		this.twoFactorAuthentication = other.twoFactorAuthentication;
+		this.lastBackUpDate = other.lastBackUpDate;
+		this.lastBackUpSize = other.lastBackUpSize;
+		this.backupName = other.backupName;
+		this.backupChecksum = other.backupChecksum;
+		this.tokenVersion = other.tokenVersion;
+		this.createdAt = other.createdAt;
+	}
+	
+	/**
+	 * Stamp the creation date of a new user.
+	 */
+	@PrePersist
+	protected void onCreate() {
+		if (createdAt == null) createdAt = new Date();
+	}
 
 	public long getUserId() {
 		return userId;
@@ -89,48 +116,6 @@ public class User {
 		this.enabled = enabled;
 	}
 
-	public int getOneTimePassword() {
-		return oneTimePassword;
-	}
-
-	/**
-	 * Generate a random 4 digit number between 
-	 * 1000 and 9999.
-	 */
-	public void setOneTimePassword() {
-		Random rand = new Random();
-		int OTP = rand.nextInt(9000) + 1000;
-		this.oneTimePassword = OTP;
-		this.oneTimePasswordDateAdded = new Date();
-	}
-
-	public Date getOneTimePasswordDateAdded() {
-		return oneTimePasswordDateAdded;
-	}
-	
-	public void setOneTimePasswordDateAdded(Date date) {
-		 this.oneTimePasswordDateAdded = date;
-	}
-	
-	/**
-	 * Check if code is expired. A code is expired after
-	 * 5 minutes.
-	 * 
-	 * @return true if code is valid
-	 * or false otherwise
-	 */
-	public boolean checkValidVerificationCode() {
-		if (oneTimePassword == 0) {
-			return false;
-		}
-		
-		Date d = new Date();
-		long currentTime = d.getTime();
-		long timeDiffInMinutes = (currentTime - oneTimePasswordDateAdded
-				.getTime()) / 1000 / 60;
-		return timeDiffInMinutes <= OTPEXPIRATION;
-	}
-	
 	public boolean getTwoFactorAuthentication() {
 		return twoFactorAuthentication;
 	}
@@ -162,5 +147,49 @@ public class User {
 	public String getBackupName() {
 		return backupName;
 	}
+	
+	public void setBackupChecksum(String checksum) {
+		backupChecksum = checksum;
+	}
+	
+	public String getBackupChecksum() {
+		return backupChecksum;
+	}
+	
+	public int getTokenVersion() {
+		return tokenVersion;
+	}
+	
+	/**
+	 * Invalidate every token issued to the user
+	 * so far.
+	 */
+	public void revokeTokens() {
+		tokenVersion++;
+	}
+	
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+	
+	public void setCreatedAt(Date createdAt) {
+		this.createdAt = createdAt;
+	}
+	
+	/**
+	 * Start the registration of an unverified
+	 * account over, as if the user was new. The
+	 * account keeps its id.
+	 */
+	public void restartRegistration() {
+		this.enabled = false;
+		this.twoFactorAuthentication = false;
+		this.lastBackUpDate = null;
+		this.lastBackUpSize = null;
+		this.backupName = null;
+		this.backupChecksum = null;
+		this.createdAt = new Date();
+		revokeTokens();
+	}
 
 }
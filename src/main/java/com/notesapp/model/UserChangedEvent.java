@@ -0,0 +1,36 @@
+package com.notesapp.model;
+
+/**
+ * An event published when a user is
+ * updated or deleted.
+ * 
+ * @author stephen
+ *
+ */
+public class UserChangedEvent {
+	/**
+	 * Id of the changed user.
+	 */
+	private final long userId;
+	/**
+	 * Email of the changed user.
+	 */
+	private final String email;
+
+	/**
+	 * @param userId id of the changed user
+	 * @param email email of the changed user
+	 */
+	public UserChangedEvent(long userId, String email) {
+		this.userId = userId;
+		this.email = email;
+	}
+
+	public long getUserId() {
+		return userId;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+}
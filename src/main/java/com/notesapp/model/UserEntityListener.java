@@ -0,0 +1,31 @@
+package com.notesapp.model;
+
+import javax.persistence.PostUpdate;
+import javax.persistence.PreRemove;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+/**
+ * A class that publishes a {@link UserChangedEvent}
+ * whenever a user entity is updated or removed, so
+ * anything caching user data can drop it. Bulk update
+ * queries bypass entity callbacks and therefore must
+ * only touch columns nobody caches.
+ * 
+ * @author stephen
+ *
+ */
+@Component
+public class UserEntityListener {
+
+	@Autowired
+	private ApplicationEventPublisher publisher;
+
+	@PostUpdate
+	@PreRemove
+	public void userChanged(User user) {
+		publisher.publishEvent(new UserChangedEvent(user.getUserId(), user.getEmail()));
+	}
+}
@@ -0,0 +1,188 @@
+package com.notesapp.repository;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.notesapp.dto.BackUpInfoDTO;
+import com.notesapp.dto.BackupVersionDTO;
+import com.notesapp.model.BackupVersion;
+
+/**
+ * Repository for querying stored backup versions.
+ * 
+ * @author stephen
+ *
+ */
+public interface BackupVersionRepository extends CrudRepository<BackupVersion, Long>{
+	List<BackupVersion> findByUserIdAndDeletedFalseOrderByCreatedAtDescVersionIdDesc(long userId);
+	
+	@Transactional(readOnly = true)
+	Optional<BackupVersion> findByVersionIdAndUserIdAndDeletedFalse(long versionId, long userId);
+	
+	/**
+	 * Find the latest live version of a device.
+	 * 
+	 * @param userId owner of the versions
+	 * @param deviceId device that uploaded them
+	 * @return the version or empty if the device has none
+	 */
+	@Transactional(readOnly = true)
+	Optional<BackupVersion> findFirstByUserIdAndDeviceIdAndDeletedFalseOrderByCreatedAtDescVersionIdDesc(
+			long userId, String deviceId);
+	
+	/**
+	 * Get the date and size of the live versions
+	 * of a device, newest first, without loading them.
+	 * 
+	 * @param userId owner of the versions
+	 * @param deviceId device that uploaded them
+	 * @param pageable number of versions
+	 * @return backup info
+	 */
+	@Transactional(readOnly = true)
+	@Query("select new com.notesapp.dto.BackUpInfoDTO(v.createdAt, v.size) from BackupVersion v "
+			+ "where v.userId = :userId and v.deviceId = :deviceId and v.deleted = false "
+			+ "order by v.createdAt desc, v.versionId desc")
+	List<BackUpInfoDTO> findBackUpInfo(@Param("userId") long userId, 
+			@Param("deviceId") String deviceId, Pageable pageable);
+	
+	/**
+	 * List the live versions of a user, newest first,
+	 * that come after a position in that order.
+	 * 
+	 * @param userId owner of the versions
+	 * @param date creation date of the last version already listed
+	 * @param versionId id of the last version already listed
+	 * @param pageable page size
+	 * @return backup versions
+	 */
+	@Transactional(readOnly = true)
+	@Query("select new com.notesapp.dto.BackupVersionDTO(v.versionId, v.deviceId, v.createdAt, "
+			+ "v.size, v.checksum) from BackupVersion v "
+			+ "where v.userId = :userId and v.deleted = false "
+			+ "and (v.createdAt < :date or (v.createdAt = :date and v.versionId < :versionId)) "
+			+ "order by v.createdAt desc, v.versionId desc")
+	List<BackupVersionDTO> listVersions(@Param("userId") long userId, @Param("date") Date date,
+			@Param("versionId") long versionId, Pageable pageable);
+	
+	/**
+	 * List the live versions of a device, newest
+	 * first, that come after a position in that order.
+	 * 
+	 * @param userId owner of the versions
+	 * @param deviceId device that uploaded them
+	 * @param date creation date of the last version already listed
+	 * @param versionId id of the last version already listed
+	 * @param pageable page size
+	 * @return backup versions
+	 */
+	@Transactional(readOnly = true)
+	@Query("select new com.notesapp.dto.BackupVersionDTO(v.versionId, v.deviceId, v.createdAt, "
+			+ "v.size, v.checksum) from BackupVersion v "
+			+ "where v.userId = :userId and v.deviceId = :deviceId and v.deleted = false "
+			+ "and (v.createdAt < :date or (v.createdAt = :date and v.versionId < :versionId)) "
+			+ "order by v.createdAt desc, v.versionId desc")
+	List<BackupVersionDTO> listDeviceVersions(@Param("userId") long userId, 
+			@Param("deviceId") String deviceId, @Param("date") Date date,
+			@Param("versionId") long versionId, Pageable pageable);
+	
+	/**
+	 * Find versions marked as deleted, in id order.
+	 * 
+	 * @param versionId id to continue after
+	 * @param pageable maximum number of versions to return
+	 * @return deleted versions with a larger id
+	 */
+	List<BackupVersion> findByDeletedTrueAndVersionIdGreaterThanOrderByVersionId(long versionId,
+			Pageable pageable);
+	
+	/**
+	 * Count live versions stored in a file.
+	 * 
+	 * @param filename stored file name
+	 * @return number of versions referencing the file
+	 */
+	long countByFilenameAndDeletedFalse(String filename);
+	
+	/**
+	 * Count versions, live or deleted, stored in a file.
+	 * 
+	 * @param filename stored file name
+	 * @return number of versions referencing the file
+	 */
+	long countByFilename(String filename);
+	
+	/**
+	 * Find live versions, in id order, whose file
+	 * name does not match a pattern.
+	 * 
+	 * @param after only return versions with a greater id
+	 * @param pattern like pattern of names to skip
+	 * @param pageable batch size
+	 * @return versions
+	 */
+	List<BackupVersion> findByVersionIdGreaterThanAndDeletedFalseAndFilenameNotLikeOrderByVersionId(
+			long after, String pattern, Pageable pageable);
+	
+	/**
+	 * Find users, in id order, that have more live
+	 * versions on one device than the given number.
+	 * 
+	 * @param after only return users with a greater id
+	 * @param keep number of versions always retained
+	 * @param pageable batch size
+	 * @return user ids
+	 */
+	@Query("select distinct v.userId from BackupVersion v where v.deleted = false "
+			+ "and v.userId > :after group by v.userId, v.deviceId having count(v) > :keep "
+			+ "order by v.userId")
+	List<Long> findUserIdsWithMoreVersionsThan(@Param("after") long after, 
+			@Param("keep") long keep, Pageable pageable);
+	
+	/**
+	 * Mark every version of a user as deleted.
+	 * 
+	 * @param userId owner of the versions
+	 * @return number of versions marked
+	 */
+	@Transactional
+	@Modifying
+	@Query("update BackupVersion v set v.deleted = true where v.userId = :userId")
+	int markDeletedByUserId(@Param("userId") long userId);
+	
+	/**
+	 * Mark versions as deleted without
+	 * writing any of their other columns.
+	 * 
+	 * @param versionIds versions to mark
+	 * @return number of versions marked
+	 */
+	@Transactional
+	@Modifying
+	@Query("update BackupVersion v set v.deleted = true where v.versionId in :versionIds")
+	int markDeletedByIds(@Param("versionIds") Collection<Long> versionIds);
+	
+	/**
+	 * Point the versions of a user at a new file.
+	 * 
+	 * @param userId owner of the versions
+	 * @param filename current file name
+	 * @param target new file name
+	 * @return number of versions updated
+	 */
+	@Transactional
+	@Modifying(flushAutomatically = true, clearAutomatically = true)
+	@Query("update BackupVersion v set v.filename = :target "
+			+ "where v.userId = :userId and v.filename = :filename")
+	int renameFile(@Param("userId") long userId, @Param("filename") String filename, 
+			@Param("target") String target);
+}
@@ -0,0 +1,73 @@
+package com.notesapp.repository;
+
+import java.util.Date;
+
+import com.notesapp.model.User;
+
+/**
+ * Repository fragment for the user queries that
+ * go through the user cache. Every write that
+ * bypasses the entity lifecycle is declared here
+ * too, so it can drop the entries it changes.
+ * 
+ * @author stephen
+ *
+ */
+public interface CachingUserRepository {
+	
+	/**
+	 * Find a user by email. Outside of a transaction
+	 * the user may come from the cache or the read
+	 * replica, as a detached copy that can be out of
+	 * date. Users that are going to be changed must be
+	 * read in a read-write transaction, so that saving
+	 * them cannot undo changes made on the primary.
+	 * 
+	 * @param email email of the user
+	 * @return the user or null if there is none
+	 */
+	User findByEmail(String email);
+	
+	/**
+	 * Point a user's backup at a new file, unless
+	 * it was replaced in the meantime.
+	 * 
+	 * @param userId owner of the backup
+	 * @param backupName current file name
+	 * @param target new file name
+	 * @return number of users updated
+	 */
+	int renameBackup(long userId, String backupName, String target);
+	
+	/**
+	 * Point a user's backup at a file without
+	 * touching any other column of the user.
+	 * 
+	 * @param userId owner of the backup
+	 * @param backupName stored file name, null to clear the backup
+	 * @param date date of the backup
+	 * @param size size of the backup
+	 * @param checksum hex encoded MD5 digest of the backup
+	 * @return number of users updated
+	 */
+	int updateBackup(long userId, String backupName, Date date, Long size, String checksum);
+	
+	/**
+	 * Clear a user's backup in one statement.
+	 * 
+	 * @param userId owner of the backup
+	 * @return number of users updated, 0 if there was no backup
+	 */
+	int clearBackup(long userId);
+	
+	/**
+	 * Record the checksum of a user's backup,
+	 * unless it was replaced in the meantime.
+	 * 
+	 * @param userId owner of the backup
+	 * @param backupName stored file name
+	 * @param checksum hex encoded MD5 digest of the backup
+	 * @return number of users updated
+	 */
+	int updateBackupChecksum(long userId, String backupName, String checksum);
+}
@@ -0,0 +1,223 @@
+package com.notesapp.repository;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.notesapp.model.User;
+import com.notesapp.model.UserChangedEvent;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Implementation of {@link CachingUserRepository}
+ * that keeps recently read users in a bounded cache
+ * keyed by email. Users are cached only when read
+ * outside a transaction, so code that changes a user
+ * inside a read-write transaction always works on the
+ * managed entity, read from the primary. Entries are dropped when a user is updated
+ * or removed, once right away and once more after the
+ * change commits, and expire after a short while to
+ * pick up changes made on other nodes. Users missing
+ * from the cache are read in a read-only transaction,
+ * so they can come from the read replica. The hit rate is
+ * published as the {@code cache.*} metrics of the
+ * {@code users} cache.
+ * 
+ * @author stephen
+ *
+ */
+public class CachingUserRepositoryImpl implements CachingUserRepository {
+
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	@Autowired
+	private MeterRegistry meterRegistry;
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	@Value("${user.cache.maximum-size:10000}")
+	private long cacheSize;
+	
+	@Value("${user.cache.expire-after-write:30000}")
+	private long cacheExpiry;
+	
+	private Cache<String, User> users;
+	
+	private TransactionTemplate readOnlyTransaction;
+	
+	@PostConstruct
+	public void init() {
+		readOnlyTransaction = new TransactionTemplate(transactionManager);
+		readOnlyTransaction.setReadOnly(true);
+		users = Caffeine.newBuilder()
+				.maximumSize(cacheSize)
+				.expireAfterWrite(cacheExpiry, TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(meterRegistry, users, "users");
+	}
+	
+	@Override
+	public User findByEmail(String email) {
+		if (TransactionSynchronizationManager.isActualTransactionActive()) {
+			return query(email);
+		}
+		
+		User cached = users.getIfPresent(email);
+		if (cached != null) return new User(cached);
+		
+		User user = readOnlyTransaction.execute(status -> {
+			User loaded = query(email);
+			// a read-only entity left in the session would ignore later saves
+			if (loaded != null) entityManager.detach(loaded);
+			return loaded;
+		});
+		if (user != null) users.put(email, new User(user));
+		return user;
+	}
+	
+	@Override
+	@Transactional
+	public int renameBackup(long userId, String backupName, String target) {
+		entityManager.flush();
+		String email = emailOf(userId);
+		int updated = entityManager.createQuery("update User u set u.backupName = :target "
+				+ "where u.userId = :userId and u.backupName = :backupName")
+				.setParameter("userId", userId)
+				.setParameter("backupName", backupName)
+				.setParameter("target", target)
+				.executeUpdate();
+		entityManager.clear();
+		evict(email);
+		return updated;
+	}
+	
+	@Override
+	@Transactional
+	public int updateBackup(long userId, String backupName, Date date, Long size, 
+			String checksum) {
+		entityManager.flush();
+		String email = emailOf(userId);
+		int updated = entityManager.createQuery("update User u set u.backupName = :backupName, "
+				+ "u.lastBackUpDate = :date, u.lastBackUpSize = :size, "
+				+ "u.backupChecksum = :checksum where u.userId = :userId")
+				.setParameter("userId", userId)
+				.setParameter("backupName", backupName)
+				.setParameter("date", date)
+				.setParameter("size", size)
+				.setParameter("checksum", checksum)
+				.executeUpdate();
+		entityManager.clear();
+		evict(email);
+		return updated;
+	}
+	
+	@Override
+	@Transactional
+	public int clearBackup(long userId) {
+		entityManager.flush();
+		String email = emailOf(userId);
+		int updated = entityManager.createQuery("update User u set u.backupName = null, "
+				+ "u.lastBackUpDate = null, u.lastBackUpSize = null, u.backupChecksum = null "
+				+ "where u.userId = :userId and u.backupName is not null")
+				.setParameter("userId", userId)
+				.executeUpdate();
+		entityManager.clear();
+		evict(email);
+		return updated;
+	}
+	
+	@Override
+	@Transactional
+	public int updateBackupChecksum(long userId, String backupName, String checksum) {
+		entityManager.flush();
+		String email = emailOf(userId);
+		int updated = entityManager.createQuery("update User u set u.backupChecksum = :checksum "
+				+ "where u.userId = :userId and u.backupName = :backupName")
+				.setParameter("userId", userId)
+				.setParameter("backupName", backupName)
+				.setParameter("checksum", checksum)
+				.executeUpdate();
+		entityManager.clear();
+		evict(email);
+		return updated;
+	}
+	
+	/**
+	 * Drop the cached copy of a user that changed.
+	 * 
+	 * @param event user changed event
+	 */
+	@EventListener
+	public void onUserChanged(UserChangedEvent event) {
+		evict(event.getEmail());
+	}
+	
+	/**
+	 * Load a user from the database.
+	 * 
+	 * @param email email of the user
+	 * @return the user or null if there is none
+	 */
+	private User query(String email) {
+		List<User> result = entityManager
+				.createQuery("select u from User u where u.email = :email", User.class)
+				.setParameter("email", email)
+				.getResultList();
+		return result.isEmpty() ? null : result.get(0);
+	}
+	
+	/**
+	 * Get the email a user is cached under.
+	 * 
+	 * @param userId id of the user
+	 * @return email of the user or null if there is none
+	 */
+	private String emailOf(long userId) {
+		List<String> result = entityManager
+				.createQuery("select u.email from User u where u.userId = :userId", String.class)
+				.setParameter("userId", userId)
+				.getResultList();
+		return result.isEmpty() ? null : result.get(0);
+	}
+	
+	/**
+	 * Drop a cached user now and, if a transaction
+	 * is running, again once it has committed, so
+	 * a read racing the commit cannot leave the old
+	 * state cached.
+	 * 
+	 * @param email email of the user to drop, may be null
+	 */
+	private void evict(String email) {
+		if (email == null) return;
+		users.invalidate(email);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					users.invalidate(email);
+				}
+			});
+		}
+	}
+}
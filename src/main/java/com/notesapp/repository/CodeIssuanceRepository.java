@@ -0,0 +1,85 @@
+package com.notesapp.repository;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.notesapp.model.CodeIssuance;
+
+/**
+ * Repository for querying issued verification codes.
+ * 
+ * @author stephen
+ *
+ */
+public interface CodeIssuanceRepository extends CrudRepository<CodeIssuance, String>{
+	
+	/**
+	 * Start the codes over from a step, unless the
+	 * codes issued before are still in use.
+	 * 
+	 * @param issuanceId user and purpose of the codes
+	 * @param step time step of the new code
+	 * @param oldest earliest step still in use
+	 * @param maxAttempts number of attempts that uses the codes up
+	 * @return 1 if the codes were started over or 0 otherwise
+	 */
+	@Transactional
+	@Modifying
+	@Query("update CodeIssuance c set c.step = :step, c.attempts = 0 "
+			+ "where c.issuanceId = :issuanceId "
+			+ "and (c.attempts >= :maxAttempts or c.step > :step or c.step < :oldest)")
+	int renew(@Param("issuanceId") String issuanceId, @Param("step") long step,
+			@Param("oldest") long oldest, @Param("maxAttempts") int maxAttempts);
+	
+	/**
+	 * Count an attempt to check a code, unless the
+	 * codes are used up. The row stays locked until
+	 * the transaction ends, so checks of the same
+	 * codes take turns.
+	 * 
+	 * @param issuanceId user and purpose of the codes
+	 * @param maxAttempts number of attempts that uses the codes up
+	 * @return 1 if the attempt was counted or 0 otherwise
+	 */
+	@Transactional
+	@Modifying
+	@Query("update CodeIssuance c set c.attempts = c.attempts + 1 "
+			+ "where c.issuanceId = :issuanceId and c.attempts < :maxAttempts")
+	int countAttempt(@Param("issuanceId") String issuanceId, @Param("maxAttempts") int maxAttempts);
+	
+	/**
+	 * Find the step of the first code in use.
+	 * 
+	 * @param issuanceId user and purpose of the codes
+	 * @return time step or null if no codes were issued
+	 */
+	@Query("select c.step from CodeIssuance c where c.issuanceId = :issuanceId")
+	Long findStep(@Param("issuanceId") String issuanceId);
+	
+	/**
+	 * Use up the codes. The row is kept so codes
+	 * issued later can start over in place.
+	 * 
+	 * @param issuanceId user and purpose of the codes
+	 * @param maxAttempts number of attempts that uses the codes up
+	 * @return 1 if the codes were used up or 0 otherwise
+	 */
+	@Transactional
+	@Modifying
+	@Query("update CodeIssuance c set c.attempts = :maxAttempts where c.issuanceId = :issuanceId")
+	int burn(@Param("issuanceId") String issuanceId, @Param("maxAttempts") int maxAttempts);
+	
+	/**
+	 * Remove codes issued before a step.
+	 * 
+	 * @param step earliest step to keep
+	 * @return number of rows removed
+	 */
+	@Transactional
+	@Modifying
+	@Query("delete from CodeIssuance c where c.step < :step")
+	int deleteByStepBefore(@Param("step") long step);
+}
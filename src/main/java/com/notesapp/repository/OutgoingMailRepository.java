@@ -0,0 +1,60 @@
+package com.notesapp.repository;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.notesapp.model.OutgoingMail;
+
+/**
+ * Repository for querying the mail outbox.
+ * 
+ * @author stephen
+ *
+ */
+public interface OutgoingMailRepository extends CrudRepository<OutgoingMail, Long>{
+	
+	/**
+	 * Find emails that are due to be sent.
+	 * 
+	 * @param now current time
+	 * @param pageable maximum number of emails to return
+	 * @return due emails, longest waiting first
+	 */
+	List<OutgoingMail> findByFailedFalseAndNextAttemptAtLessThanEqualOrderByNextAttemptAt(Date now,
+			Pageable pageable);
+	
+	/**
+	 * Claim a due email by pushing its next attempt
+	 * past the time it may take to send it. Only one
+	 * caller can claim an email for each attempt.
+	 * 
+	 * @param mailId email to claim
+	 * @param now current time
+	 * @param lease time the claim runs out
+	 * @return 1 if the email was claimed or 0 otherwise
+	 */
+	@Transactional
+	@Modifying(flushAutomatically = true, clearAutomatically = true)
+	@Query("update OutgoingMail m set m.nextAttemptAt = :lease where m.mailId = :mailId "
+			+ "and m.failed = false and m.nextAttemptAt <= :now")
+	int claim(@Param("mailId") long mailId, @Param("now") Date now, @Param("lease") Date lease);
+	
+	/**
+	 * Remove emails that ran out of attempts before
+	 * the given time.
+	 * 
+	 * @param cutoff time of failure to remove up to
+	 * @return number of emails removed
+	 */
+	@Transactional
+	@Modifying(flushAutomatically = true, clearAutomatically = true)
+	@Query("delete from OutgoingMail m where m.failed = true and m.nextAttemptAt < :cutoff")
+	int deleteFailedBefore(@Param("cutoff") Date cutoff);
+}
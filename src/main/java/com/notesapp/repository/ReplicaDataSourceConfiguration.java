@@ -0,0 +1,97 @@
+package com.notesapp.repository;
+
+import javax.sql.DataSource;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.PhysicalConnectionHandlingMode;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Configuration that splits database access
+ * between the primary, configured with the usual
+ * {@code spring.datasource} properties, and a read
+ * replica configured with {@code datasource.replica}.
+ * Only active when a replica url is set; otherwise
+ * the single default data source is used.
+ * 
+ * @author stephen
+ *
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "datasource.replica", name = "url")
+public class ReplicaDataSourceConfiguration {
+	
+	@Bean
+	@ConfigurationProperties("spring.datasource.hikari")
+	public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+		HikariDataSource dataSource = properties.initializeDataSourceBuilder()
+				.type(HikariDataSource.class).build();
+		dataSource.setPoolName("primary");
+		return dataSource;
+	}
+	
+	@Bean
+	public HikariDataSource replicaDataSource(ReplicaProperties properties) {
+		HikariDataSource dataSource = DataSourceBuilder.create()
+				.type(HikariDataSource.class)
+				.url(properties.getUrl())
+				.username(properties.getUsername())
+				.password(properties.getPassword())
+				.driverClassName(properties.getDriverClassName())
+				.build();
+		dataSource.setPoolName("replica");
+		dataSource.setMaximumPoolSize(properties.getPoolSize());
+		dataSource.setReadOnly(true);
+		return dataSource;
+	}
+	
+	@Bean
+	public ReplicaLagMonitor replicaLagMonitor(
+			@Qualifier("primaryDataSource") DataSource primary,
+			@Qualifier("replicaDataSource") DataSource replica,
+			ReplicaProperties properties, MeterRegistry meterRegistry) {
+		return new ReplicaLagMonitor(primary, replica, properties.getMaxLag(), meterRegistry);
+	}
+	
+	/**
+	 * The data source used by the application. Connections
+	 * are only obtained once a statement runs, by which time
+	 * the transaction they belong to is known.
+	 * 
+	 * @return routing data source
+	 */
+	@Bean
+	@Primary
+	public DataSource dataSource(@Qualifier("primaryDataSource") DataSource primary,
+			@Qualifier("replicaDataSource") DataSource replica, ReplicaLagMonitor monitor) {
+		return new LazyConnectionDataSourceProxy(
+				new ReplicaRoutingDataSource(primary, replica, monitor));
+	}
+	
+	/**
+	 * Give connections back after every transaction.
+	 * A session kept open for the whole request would
+	 * otherwise hold on to the connection of its first
+	 * transaction, and could write to the replica.
+	 * 
+	 * @return customizer of the hibernate properties
+	 */
+	@Bean
+	public HibernatePropertiesCustomizer releaseConnectionsAfterTransaction() {
+		return properties -> properties.put(AvailableSettings.CONNECTION_HANDLING, 
+				PhysicalConnectionHandlingMode.DELAYED_ACQUISITION_AND_RELEASE_AFTER_TRANSACTION);
+	}
+}
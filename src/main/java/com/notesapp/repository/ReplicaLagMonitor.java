@@ -0,0 +1,112 @@
+package com.notesapp.repository;
+
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * A class that measures how far the read replica
+ * is behind the primary. Each check stamps the
+ * heartbeat row on the primary with the current time
+ * and reads the replica's copy of it; the replica is
+ * at least as recent as that copy. The replica is
+ * only used while its copy is younger than the lag
+ * tolerance, so it is dropped as soon as it falls
+ * behind, stops answering, or the checks stop. The
+ * lag is published as {@code datasource.replica.lag}.
+ * 
+ * @author stephen
+ *
+ */
+public class ReplicaLagMonitor {
+	
+	private static final Logger log = LoggerFactory.getLogger(ReplicaLagMonitor.class);
+	
+	private static final int HEARTBEAT_ID = 1;
+	
+	private final JdbcTemplate primary;
+	
+	private final JdbcTemplate replica;
+	
+	private final long maxLag;
+	
+	/**
+	 * Time of the heartbeat last read from the
+	 * replica, or -1 if it could not be read.
+	 */
+	private volatile long replicaBeat = -1;
+	
+	/**
+	 * @param primary primary database
+	 * @param replica read replica
+	 * @param maxLag milliseconds the replica may fall behind
+	 * @param meterRegistry registry to publish the lag to
+	 */
+	public ReplicaLagMonitor(DataSource primary, DataSource replica, long maxLag, 
+			MeterRegistry meterRegistry) {
+		this.primary = new JdbcTemplate(primary);
+		this.replica = new JdbcTemplate(replica);
+		this.maxLag = maxLag;
+		Gauge.builder("datasource.replica.lag", this, ReplicaLagMonitor::getLag)
+				.baseUnit("milliseconds")
+				.register(meterRegistry);
+	}
+	
+	/**
+	 * Stamp the heartbeat on the primary and
+	 * read it back from the replica.
+	 */
+	@Scheduled(fixedDelayString = "${datasource.replica.check-interval:1000}")
+	public void check() {
+		long now = System.currentTimeMillis();
+		try {
+			if (primary.update("update replica_heartbeat set beat_at = ? where heartbeat_id = ?",
+					now, HEARTBEAT_ID) == 0) {
+				primary.update("insert into replica_heartbeat (heartbeat_id, beat_at) values (?, ?)",
+						HEARTBEAT_ID, now);
+			}
+		} catch (DataAccessException e) {
+			log.warn("Could not stamp the replica heartbeat on the primary", e);
+		}
+		
+		try {
+			List<Long> beats = replica.queryForList(
+					"select beat_at from replica_heartbeat where heartbeat_id = ?", 
+					Long.class, HEARTBEAT_ID);
+			replicaBeat = beats.isEmpty() ? -1 : beats.get(0);
+		} catch (DataAccessException e) {
+			// replica unreachable, reads stay on the primary
+			if (replicaBeat != -1) log.warn("Could not read the heartbeat from the replica", e);
+			replicaBeat = -1;
+		}
+	}
+	
+	/**
+	 * Check whether reads may go to the replica.
+	 * 
+	 * @return true if the replica is within the lag tolerance
+	 */
+	public boolean isReplicaUsable() {
+		long beat = replicaBeat;
+		return beat >= 0 && System.currentTimeMillis() - beat <= maxLag;
+	}
+	
+	/**
+	 * Get the lag of the replica.
+	 * 
+	 * @return milliseconds behind the primary, or -1 if unknown
+	 */
+	public long getLag() {
+		long beat = replicaBeat;
+		return beat < 0 ? -1 : Math.max(0, System.currentTimeMillis() - beat);
+	}
+}
@@ -0,0 +1,87 @@
+package com.notesapp.repository;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * A class for configuring the read replica.
+ * Read-only transactions are only sent to a
+ * replica when its url is set.
+ * 
+ * @author stephen
+ *
+ */
+@ConfigurationProperties("datasource.replica")
+public class ReplicaProperties {
+
+	/**
+	 * JDBC url of the replica.
+	 */
+	private String url;
+	
+	private String username;
+	
+	private String password;
+	
+	private String driverClassName;
+	
+	/**
+	 * Number of connections kept to the replica.
+	 */
+	private int poolSize = 10;
+	
+	/**
+	 * Milliseconds the replica may fall behind the
+	 * primary before reads go to the primary instead.
+	 * Should be well above the check interval, since
+	 * the heartbeat only moves once per check.
+	 */
+	private long maxLag = 5000;
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	public String getDriverClassName() {
+		return driverClassName;
+	}
+
+	public void setDriverClassName(String driverClassName) {
+		this.driverClassName = driverClassName;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	public long getMaxLag() {
+		return maxLag;
+	}
+
+	public void setMaxLag(long maxLag) {
+		this.maxLag = maxLag;
+	}
+}
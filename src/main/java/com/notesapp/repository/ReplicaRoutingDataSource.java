@@ -0,0 +1,55 @@
+package com.notesapp.repository;
+
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A data source that sends read-only transactions
+ * to the read replica and everything else to the
+ * primary. Work outside of a read-only transaction,
+ * or while the replica is too far behind, always
+ * goes to the primary. The choice is made when a
+ * connection is obtained, so it has to sit behind a
+ * {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}
+ * for the transaction to be known by then.
+ * 
+ * @author stephen
+ *
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+	
+	/**
+	 * Database a connection is taken from.
+	 */
+	enum Route {
+		PRIMARY, REPLICA
+	}
+	
+	private final ReplicaLagMonitor monitor;
+	
+	/**
+	 * @param primary primary database
+	 * @param replica read replica
+	 * @param monitor lag monitor of the replica
+	 */
+	public ReplicaRoutingDataSource(DataSource primary, DataSource replica, 
+			ReplicaLagMonitor monitor) {
+		this.monitor = monitor;
+		setTargetDataSources(Map.of(Route.PRIMARY, primary, Route.REPLICA, replica));
+		setDefaultTargetDataSource(primary);
+		afterPropertiesSet();
+	}
+
+	@Override
+	protected Object determineCurrentLookupKey() {
+		if (TransactionSynchronizationManager.isCurrentTransactionReadOnly() 
+				&& monitor.isReplicaUsable()) {
+			return Route.REPLICA;
+		}
+		return Route.PRIMARY;
+	}
+}
@@ -0,0 +1,57 @@
+package com.notesapp.repository;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.LockModeType;
+
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.notesapp.model.UploadSession;
+
+/**
+ * Repository for querying chunked upload sessions.
+ * 
+ * @author stephen
+ *
+ */
+public interface UploadSessionRepository extends CrudRepository<UploadSession, String>{
+	List<UploadSession> findByEmail(String email);
+	
+	/**
+	 * Find sessions started before a point in time.
+	 * 
+	 * @param cutoff time to compare against
+	 * @return sessions started before the cutoff
+	 */
+	List<UploadSession> findByCreatedAtBefore(Date cutoff);
+	
+	/**
+	 * Find a session and lock it until the
+	 * transaction ends.
+	 * 
+	 * @param sessionId upload session
+	 * @return the session or null if there is none
+	 */
+	@Lock(LockModeType.PESSIMISTIC_WRITE)
+	@Query("select s from UploadSession s where s.sessionId = :sessionId")
+	UploadSession lockById(@Param("sessionId") String sessionId);
+	
+	/**
+	 * Remove a session so it can no longer be
+	 * written to or committed. Waits for a chunk
+	 * that is being written to the session.
+	 * 
+	 * @param sessionId upload session
+	 * @return 1 if the session was removed by this call or 0 otherwise
+	 */
+	@Transactional
+	@Modifying
+	@Query("delete from UploadSession s where s.sessionId = :sessionId")
+	int claim(@Param("sessionId") String sessionId);
+}
@@ -1,7 +1,17 @@
 package com.notesapp.repository;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.notesapp.dto.BackUpInfoDTO;
 import com.notesapp.model.User;
 
 /**
@@ -10,6 +20,77 @@ import com.notesapp.model.User;
  * @author stephen
  *
  */
-public interface UserRepository extends CrudRepository<User, Long>{
-	User findByEmail(String email);
+public interface UserRepository extends CrudRepository<User, Long>, CachingUserRepository {
+	
+	/**
+	 * Count users whose backup points at a file.
+	 * 
+	 * @param backupName stored file name
+	 * @return number of users referencing the file
+	 */
+	long countByBackupName(String backupName);
+	
+	/**
+	 * Get the date and size of a user's backup
+	 * without loading the user.
+	 * 
+	 * @param email email of the user
+	 * @return backup info or null if there is no such user
+	 */
+	@Transactional(readOnly = true)
+	@Query("select new com.notesapp.dto.BackUpInfoDTO(u.lastBackUpDate, u.lastBackUpSize) "
+			+ "from User u where u.email = :email")
+	BackUpInfoDTO findBackUpInfoByEmail(@Param("email") String email);
+	
+	/**
+	 * Find users, in id order, whose backup
+	 * name does not match a pattern.
+	 * 
+	 * @param after only return users with a greater id
+	 * @param pattern like pattern of names to skip
+	 * @param pageable batch size
+	 * @return users
+	 */
+	List<User> findByUserIdGreaterThanAndBackupNameNotLikeOrderByUserId(long after, 
+			String pattern, Pageable pageable);
+	
+	/**
+	 * Find unverified users, in id order, 
+	 * created before a point in time.
+	 * 
+	 * @param after only return users with a greater id
+	 * @param cutoff only return users created before this
+	 * @param pageable batch size
+	 * @return users
+	 */
+	List<User> findByUserIdGreaterThanAndEnabledFalseAndCreatedAtBeforeOrderByUserId(long after,
+			Date cutoff, Pageable pageable);
+	
+	/**
+	 * Delete users that are still unverified and
+	 * were created before a point in time. Users that
+	 * were verified or registered again since they
+	 * were found are left alone.
+	 * 
+	 * @param userIds users to delete
+	 * @param cutoff only delete users created before this
+	 * @return number of users deleted
+	 */
+	@Transactional
+	@Modifying
+	@Query("delete from User u where u.userId in :userIds "
+			+ "and u.enabled = false and u.createdAt < :cutoff")
+	int deleteUnverified(@Param("userIds") Collection<Long> userIds, @Param("cutoff") Date cutoff);
+	
+	/**
+	 * Stamp users created before creation dates
+	 * were recorded, so they age from now on.
+	 * 
+	 * @param now current time
+	 * @return number of users stamped
+	 */
+	@Transactional
+	@Modifying
+	@Query("update User u set u.createdAt = :now where u.createdAt is null")
+	int stampMissingCreatedAt(@Param("now") Date now);
 }
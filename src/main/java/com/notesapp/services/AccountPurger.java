@@ -0,0 +1,86 @@
+package com.notesapp.services;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.notesapp.model.User;
+import com.notesapp.model.UserChangedEvent;
+import com.notesapp.repository.UserRepository;
+
+/**
+ * A class that removes accounts that were never
+ * verified in the background. Each run walks the
+ * unverified accounts older than the configured age
+ * in id order and deletes them a batch at a time, with
+ * one statement per batch, until the run's delete
+ * budget is spent. Request threads never remove
+ * unverified accounts. Accounts created before creation
+ * dates were recorded are stamped once, at startup, and
+ * age from then on.
+ * 
+ * @author stephen
+ *
+ */
+@Component
+public class AccountPurger {
+
+	@Autowired
+	private UserRepository userRepository;
+	
+	@Autowired
+	private PurgeProperties properties;
+	
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
+	
+	/**
+	 * Stamp the users created before creation dates
+	 * were recorded. New users are stamped when they
+	 * are saved, so this only has to run once.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void stampLegacyUsers() {
+		userRepository.stampMissingCreatedAt(new Date());
+	}
+	
+	/**
+	 * Run one purge pass.
+	 * 
+	 * @return number of accounts removed
+	 */
+	@Scheduled(initialDelayString = "${account.purge.interval:600000}",
+			fixedDelayString = "${account.purge.interval:600000}")
+	public synchronized int purge() {
+		Date cutoff = new Date(System.currentTimeMillis() - properties.getUnverifiedAge());
+		
+		int deleted = 0;
+		long cursor = 0;
+		while (deleted < properties.getMaxDeletesPerRun()) {
+			int size = Math.min(properties.getBatchSize(), properties.getMaxDeletesPerRun() - deleted);
+			List<User> users = userRepository
+					.findByUserIdGreaterThanAndEnabledFalseAndCreatedAtBeforeOrderByUserId(cursor, 
+							cutoff, PageRequest.of(0, size));
+			if (users.isEmpty()) break;
+			
+			List<Long> userIds = new ArrayList<>(users.size());
+			for (User user : users) userIds.add(user.getUserId());
+			deleted += userRepository.deleteUnverified(userIds, cutoff);
+			cursor = userIds.get(userIds.size() - 1);
+			
+			// bulk deletes skip the entity listener
+			for (User user : users) {
+				eventPublisher.publishEvent(new UserChangedEvent(user.getUserId(), user.getEmail()));
+			}
+		}
+		return deleted;
+	}
+}
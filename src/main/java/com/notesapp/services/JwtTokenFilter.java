@@ -1,39 +1,84 @@
 package com.notesapp.services;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.bind.DatatypeConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
 import org.springframework.web.filter.OncePerRequestFilter;
 import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTDecodeException;
-import com.notesapp.model.User;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.Claim;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.notesapp.repository.UserRepository;
 
 /**
  * Class that represents a custom Jwt authentication
- * filter.
+ * filter. Tokens carry the user id, enabled flag and
+ * token version of their user, so the principal is
+ * built from the claims alone and the token is only
+ * checked against the {@link TokenVersionRegistry}.
+ * Verified tokens are cached by their hash, so a
+ * repeated token also skips the signature check.
+ * Tokens issued before the claims existed are still
+ * accepted after looking up their user.
  * 
  * @author stephen
  */
 @Service
 public class JwtTokenFilter extends OncePerRequestFilter{
+	
+	public static final String USER_ID_CLAIM = "uid";
+	public static final String ENABLED_CLAIM = "enabled";
+	public static final String VERSION_CLAIM = "ver";
 
+	@Autowired
+	private TokenVersionRegistry tokenVersions;
+	
 	@Autowired
 	private UserRepository userRepository;
 	
 	@Value("${secret}")
 	private String secret;
 	
+	@Value("${jwt.cache.maximum-size:10000}")
+	private long cacheSize;
+	
+	@Value("${jwt.cache.expire-after-write:300000}")
+	private long cacheExpiry;
+	
+	private JWTVerifier verifier;
+	
+	private Cache<String, VerifiedToken> tokens;
+	
+	@PostConstruct
+	public void init() {
+		verifier = JWT.require(Algorithm.HMAC512(secret)).build();
+		tokens = Caffeine.newBuilder()
+				.maximumSize(cacheSize)
+				.expireAfterWrite(cacheExpiry, TimeUnit.MILLISECONDS)
+				.build();
+	}
+	
 	@Override
 	protected void doFilterInternal(HttpServletRequest request, 
 			HttpServletResponse response, FilterChain filterChain)
@@ -46,31 +91,26 @@ public class JwtTokenFilter extends OncePerRequestFilter{
 		}
 		
 		String token = header.split(" ")[1].trim();
+		String key = hash(token);
 		
-		String email = "";
-		
-		try {
-			email= JWT.require(Algorithm.HMAC512(secret))
-					.build()
-					.verify(token)
-					.getSubject();
-		} catch (Exception e) {
-			filterChain.doFilter(request, response);
-			return;	
+		VerifiedToken verified = tokens.getIfPresent(key);
+		if (verified == null || verified.isExpired()) {
+			verified = verify(token);
+			if (verified == null) {
+				filterChain.doFilter(request, response);
+				return;
+			}
+			tokens.put(key, verified);
 		}
 		
-		User user = userRepository.findByEmail(email);
-		
-		if (user == null) {
+		if (!isValid(verified)) {
 			filterChain.doFilter(request, response);
-			return;	
+			return;
 		}
 		
-		UserDetails userDetails = new MyUserDetails(user);
-		
 		UsernamePasswordAuthenticationToken authentication = 
-				new UsernamePasswordAuthenticationToken(userDetails.getUsername(), null, 
-						userDetails.getAuthorities());
+				new UsernamePasswordAuthenticationToken(verified.getEmail(), null, 
+						Collections.emptyList());
 		
 		authentication.setDetails(new MyWebAuthenticationDetailsSource().buildDetails(request));
 		
@@ -78,5 +118,102 @@ public class JwtTokenFilter extends OncePerRequestFilter{
 		filterChain.doFilter(request, response);
 		
 	}
+	
+	/**
+	 * Verify the signature of a token and read its claims.
+	 * 
+	 * @param token encoded token
+	 * @return the verified token or null if the signature is not valid
+	 */
+	private VerifiedToken verify(String token) {
+		DecodedJWT jwt;
+		try {
+			jwt = verifier.verify(token);
+		} catch (JWTVerificationException e) {
+			return null;
+		}
+		
+		Claim userId = jwt.getClaim(USER_ID_CLAIM);
+		Claim enabled = jwt.getClaim(ENABLED_CLAIM);
+		Claim version = jwt.getClaim(VERSION_CLAIM);
+		if (userId.isNull() || enabled.isNull() || version.isNull()) {
+			return new VerifiedToken(jwt.getSubject(), null, false, 0, jwt.getExpiresAt());
+		}
+		return new VerifiedToken(jwt.getSubject(), userId.asLong(), enabled.asBoolean(), 
+				version.asInt(), jwt.getExpiresAt());
+	}
+	
+	/**
+	 * Check that a verified token has not been revoked.
+	 * Tokens without claims are checked against their
+	 * user in the database.
+	 * 
+	 * @param token verified token
+	 * @return true if the token may be used
+	 */
+	private boolean isValid(VerifiedToken token) {
+		if (token.getUserId() == null) {
+			return userRepository.findByEmail(token.getEmail()) != null;
+		}
+		return token.isEnabled() 
+				&& tokenVersions.isCurrent(token.getUserId(), token.getVersion());
+	}
+	
+	/**
+	 * Hash a token so the cache does not hold
+	 * usable credentials.
+	 * 
+	 * @param token encoded token
+	 * @return hex encoded SHA-256 digest
+	 */
+	private String hash(String token) {
+		try {
+			return DatatypeConverter.printHexBinary(MessageDigest.getInstance("SHA-256")
+					.digest(token.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * The claims of a token whose signature
+	 * has been verified.
+	 */
+	private static class VerifiedToken {
+		private final String email;
+		private final Long userId;
+		private final boolean enabled;
+		private final int version;
+		private final Date expiresAt;
+		
+		VerifiedToken(String email, Long userId, boolean enabled, int version, 
+				Date expiresAt) {
+			this.email = email;
+			this.userId = userId;
+			this.enabled = enabled;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+		
+		String getEmail() {
+			return email;
+		}
+		
+		Long getUserId() {
+			return userId;
+		}
+		
+		boolean isEnabled() {
+			return enabled;
+		}
+		
+		int getVersion() {
+			return version;
+		}
+		
+		boolean isExpired() {
+			return expiresAt != null && expiresAt.before(new Date());
+		}
+	}
 
 }
@@ -0,0 +1,283 @@
+package com.notesapp.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.PostConstruct;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.notesapp.model.OutgoingMail;
+import com.notesapp.repository.OutgoingMailRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * A class that sends verification emails off the
+ * request thread. Requests only write the email to the
+ * outbox, in their own transaction, and a bounded pool
+ * of threads hands it to the mail server once that
+ * transaction has committed. The outbox is also polled,
+ * so emails that could not be queued, failed, or were
+ * left behind by a restart are still sent. Failed
+ * attempts are retried with exponential backoff.
+ * Each thread sends its batch over one pooled SMTP
+ * connection. The number of batches waiting for a
+ * thread is published as {@code mail.outbox.queue}.
+ * Emails that ran out of attempts stay in the outbox
+ * for inspection until their retention runs out.
+ * 
+ * @author stephen
+ *
+ */
+@Service
+public class MailOutbox {
+
+	private static final Logger log = LoggerFactory.getLogger(MailOutbox.class);
+
+	private final ThreadPoolExecutor executor;
+	
+	private final OutboxProperties properties;
+	
+	@Autowired
+	private OutgoingMailRepository mailRepository;
+	
+	@Autowired
+	private SMTPMailSender mailSender;
+	
+	@Autowired
+	private MeterRegistry meterRegistry;
+	
+	@Autowired
+	public MailOutbox(OutboxProperties properties) {
+		this.properties = properties;
+		this.executor = new ThreadPoolExecutor(properties.getThreads(), properties.getThreads(),
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, properties.getQueueCapacity())),
+				new CustomizableThreadFactory("mail-"));
+	}
+	
+	@PostConstruct
+	public void init() {
+		meterRegistry.gauge("mail.outbox.queue", executor, e -> e.getQueue().size());
+	}
+	
+	/**
+	 * Queue an email with a verification code.
+	 * 
+	 * @param to address to send to
+	 * @param subject email subject
+	 * @param code verification code
+	 */
+	public void send(String to, String subject, int code) {
+		OutgoingMail mail = mailRepository.save(new OutgoingMail(to, subject, code));
+		long mailId = mail.getMailId();
+		
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					schedule(List.of(mailId));
+				}
+			});
+		} else {
+			schedule(List.of(mailId));
+		}
+	}
+	
+	/**
+	 * Queue the due emails of the outbox for the
+	 * sending threads, split into one batch per thread.
+	 */
+	@Scheduled(initialDelayString = "${mail.outbox.poll-interval:10000}",
+			fixedDelayString = "${mail.outbox.poll-interval:10000}")
+	public void poll() {
+		List<Long> mailIds = ids(dueMails());
+		int batch = (mailIds.size() + properties.getThreads() - 1) / properties.getThreads();
+		for (int i = 0; i < mailIds.size(); i += batch) {
+			if (!schedule(mailIds.subList(i, Math.min(i + batch, mailIds.size())))) return;
+		}
+	}
+	
+	/**
+	 * Send every due email of the outbox on the
+	 * calling thread. Every attempt either removes
+	 * an email or moves its next attempt into the
+	 * future, so this always comes to an end.
+	 * 
+	 * @return number of emails sent
+	 */
+	public int drain() {
+		int sent = 0;
+		List<OutgoingMail> mails;
+		while (!(mails = dueMails()).isEmpty()) {
+			sent += deliver(ids(mails));
+		}
+		return sent;
+	}
+	
+	/**
+	 * Remove the emails that ran out of attempts
+	 * longer ago than their retention.
+	 * 
+	 * @return number of emails removed
+	 */
+	@Scheduled(initialDelayString = "${mail.outbox.purge-interval:3600000}",
+			fixedDelayString = "${mail.outbox.purge-interval:3600000}")
+	public int purge() {
+		return mailRepository.deleteFailedBefore(
+				new Date(System.currentTimeMillis() - properties.getFailedRetention()));
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	/**
+	 * Claim a batch of emails and send the ones claimed
+	 * over one connection. Sent emails are removed from
+	 * the outbox, failed ones are rescheduled, or marked
+	 * as failed once they have run out of attempts.
+	 * 
+	 * @param mailIds emails to send
+	 * @return number of emails sent
+	 */
+	int deliver(List<Long> mailIds) {
+		Map<MimeMessage, OutgoingMail> messages = new LinkedHashMap<>();
+		Date now = new Date();
+		Date lease = new Date(now.getTime() + properties.getLease());
+		for (long mailId : mailIds) {
+			if (mailRepository.claim(mailId, now, lease) == 0) continue;
+			OutgoingMail mail = mailRepository.findById(mailId).orElse(null);
+			if (mail == null) continue;
+			try {
+				messages.put(mailSender.createMessage(mail.getRecipient(), mail.getSubject(),
+						mail.getCode()), mail);
+			} catch (MessagingException e) {
+				retryLater(mail, e);
+			}
+		}
+		if (messages.isEmpty()) return 0;
+		
+		Map<Object, Exception> failures = Collections.emptyMap();
+		try {
+			mailSender.send(new ArrayList<>(messages.keySet()));
+		} catch (MailSendException e) {
+			failures = e.getFailedMessages();
+		} catch (MailException e) {
+			failures = new HashMap<>();
+			for (MimeMessage message : messages.keySet()) failures.put(message, e);
+		}
+		
+		for (Map.Entry<MimeMessage, OutgoingMail> entry : messages.entrySet()) {
+			Exception failure = failures.get(entry.getKey());
+			if (failure == null) {
+				mailRepository.delete(entry.getValue());
+			} else {
+				retryLater(entry.getValue(), failure);
+			}
+		}
+		return messages.size() - failures.size();
+	}
+	
+	/**
+	 * Record a failed attempt and schedule the next one,
+	 * or mark the email as failed with the time it failed.
+	 * 
+	 * @param mail email that could not be sent
+	 * @param e cause of the failure
+	 */
+	private void retryLater(OutgoingMail mail, Exception e) {
+		int attempts = mail.getAttempts() + 1;
+		boolean failed = attempts >= properties.getMaxAttempts();
+		mail.setAttempts(attempts);
+		mail.setLastError(String.valueOf(e.getMessage()));
+		mail.setFailed(failed);
+		if (failed) {
+			log.error("Giving up on email {} after {} attempts", mail.getMailId(), attempts, e);
+			mail.setNextAttemptAt(new Date());
+		} else {
+			log.warn("Could not send email {}, attempt {}", mail.getMailId(), attempts, e);
+			mail.setNextAttemptAt(new Date(System.currentTimeMillis() + backoff(attempts)));
+		}
+		mailRepository.save(mail);
+	}
+	
+	/**
+	 * Get the wait before the next attempt.
+	 * 
+	 * @param attempts number of failed attempts
+	 * @return wait in milliseconds
+	 */
+	private long backoff(int attempts) {
+		long wait = properties.getInitialBackoff() << Math.min(attempts - 1, 30);
+		return Math.min(wait, properties.getMaxBackoff());
+	}
+	
+	/**
+	 * Read a batch of due emails.
+	 * 
+	 * @return due emails
+	 */
+	private List<OutgoingMail> dueMails() {
+		return mailRepository.findByFailedFalseAndNextAttemptAtLessThanEqualOrderByNextAttemptAt(
+				new Date(), PageRequest.of(0, properties.getBatchSize()));
+	}
+	
+	/**
+	 * Get the ids of emails.
+	 * 
+	 * @param mails emails
+	 * @return ids in the same order
+	 */
+	private List<Long> ids(List<OutgoingMail> mails) {
+		List<Long> ids = new ArrayList<>(mails.size());
+		for (OutgoingMail mail : mails) ids.add(mail.getMailId());
+		return ids;
+	}
+	
+	/**
+	 * Queue a batch of emails for the sending threads.
+	 * 
+	 * @param mailIds emails to send
+	 * @return false if the queue is full
+	 */
+	private boolean schedule(List<Long> mailIds) {
+		List<Long> batch = new ArrayList<>(mailIds);
+		try {
+			executor.execute(() -> {
+				try {
+					deliver(batch);
+				} catch (RuntimeException e) {
+					log.error("Could not deliver emails {}", batch, e);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+}
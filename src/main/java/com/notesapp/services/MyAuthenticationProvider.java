@@ -6,6 +6,7 @@ import org.springframework.security.authentication.UsernamePasswordAuthenticatio
 import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.userdetails.UserDetails;
 
 import com.notesapp.model.User;
 import com.notesapp.repository.UserRepository;
@@ -20,11 +21,17 @@ public class MyAuthenticationProvider extends DaoAuthenticationProvider {
 	@Autowired
 	private UserRepository userRepository;
 	
+	@Autowired
+	private OneTimeCodes oneTimeCodes;
+	
 	@Override
 	public Authentication authenticate(Authentication auth) throws AuthenticationException{
 		User user = userRepository.findByEmail(auth.getName());
 		
 		if (user == null) throw new BadCredentialsException("Invalid Username or Password");
+		if (auth.getDetails() instanceof MyWebAuthenticationDetails) {
+			((MyWebAuthenticationDetails) auth.getDetails()).setUser(user);
+		}
 		
 		if (user.getTwoFactorAuthentication()) {
 			String code = ((MyWebAuthenticationDetails) auth
@@ -33,19 +40,29 @@ public class MyAuthenticationProvider extends DaoAuthenticationProvider {
 			
 			final int verificationCode = Integer.parseInt(((MyWebAuthenticationDetails) auth
 					.getDetails()).getVerificationCode());
-			int validCode = user.getOneTimePassword();
+			OneTimeCodes.Result check = oneTimeCodes.verify(user, 
+					OneTimeCodes.Purpose.LOGIN, verificationCode);
 			
-			if (verificationCode != validCode) 
+			if (check == OneTimeCodes.Result.INVALID) 
 				throw new BadCredentialsException("Invalid Verification Code");
 			
-			if (!user.checkValidVerificationCode())
+			if (check == OneTimeCodes.Result.EXPIRED)
 				throw new BadCredentialsException("Verification Code is Expired");
 			
 		}
 		
-		final Authentication result = super.authenticate(auth);
-		return new UsernamePasswordAuthenticationToken(auth.getName(), 
-				result.getCredentials(), result.getAuthorities());
+		// check the user loaded above instead of loading it again
+		UsernamePasswordAuthenticationToken credentials = (UsernamePasswordAuthenticationToken) auth;
+		UserDetails userDetails = new MyUserDetails(user);
+		getPreAuthenticationChecks().check(userDetails);
+		additionalAuthenticationChecks(userDetails, credentials);
+		getPostAuthenticationChecks().check(userDetails);
+		
+		final Authentication result = createSuccessAuthentication(userDetails, credentials, userDetails);
+		UsernamePasswordAuthenticationToken token = new UsernamePasswordAuthenticationToken(
+				auth.getName(), result.getCredentials(), result.getAuthorities());
+		token.setDetails(auth.getDetails());
+		return token;
 	}
 	
 	@Override
@@ -2,8 +2,25 @@ package com.notesapp.services;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 
@@ -12,52 +29,183 @@ import com.notesapp.repository.SaltRepository;
 
 /**
  * A class that represents a custom password
- * encoder. It uses a salt retrieved from
- * the database to hash a password.
- * 
+ * encoder. In the default {@code legacy} mode it
+ * hashes passwords with SHA-256 and the salt stored
+ * in the database, which is read once and kept in
+ * memory. In {@code pbkdf2} mode every password gets
+ * its own random salt and is hashed with PBKDF2 using
+ * a configurable number of iterations, on a bounded
+ * pool of hashing threads. Hashes of either kind can
+ * always be checked, and hashes that are not of the
+ * current mode and work factor are reported for
+ * upgrade on the next successful login.
+ *
  * @author stephen
  */
 @Service
 public class MyPasswordEncoder implements PasswordEncoder{
-	
+
+	private static final String PBKDF2_PREFIX = "{pbkdf2}";
+	private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 256;
+
 	@Autowired
 	SaltRepository saltRepository;
-	
+
+	@Value("${password.encoder.mode:legacy}")
+	private String mode;
+
+	@Value("${password.encoder.iterations:310000}")
+	private int iterations;
+
+	@Value("${password.encoder.threads:0}")
+	private int threads;
+
+	@Value("${password.encoder.queue-capacity:64}")
+	private int queueCapacity;
+
+	private final SecureRandom secureRandom = new SecureRandom();
+
+	private ThreadPoolExecutor executor;
+
+	private volatile byte[] salt;
+
+	@PostConstruct
+	public void init() {
+		int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity),
+				new CustomizableThreadFactory("password-hash-"));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+	}
+
 	@Override
 	public String encode(CharSequence rawPassword) {
+		if (!isPbkdf2Mode()) return encodeLegacy(rawPassword);
+
+		byte[] salt = new byte[SALT_LENGTH];
+		secureRandom.nextBytes(salt);
+		byte[] hash = hash(rawPassword, salt, iterations);
+		return PBKDF2_PREFIX + iterations + "$" + Base64.getEncoder().encodeToString(salt)
+				+ "$" + Base64.getEncoder().encodeToString(hash);
+	}
+
+	@Override
+	public boolean matches(CharSequence rawPassword, String encodedPassword) {
+		if (encodedPassword == null) return false;
+		if (!encodedPassword.startsWith(PBKDF2_PREFIX)) {
+			return encodeLegacy(rawPassword).equals(encodedPassword);
+		}
+
+		String[] parts = encodedPassword.substring(PBKDF2_PREFIX.length()).split("\\$");
+		if (parts.length != 3) return false;
+		try {
+			byte[] salt = Base64.getDecoder().decode(parts[1]);
+			byte[] expected = Base64.getDecoder().decode(parts[2]);
+			byte[] actual = hash(rawPassword, salt, Integer.parseInt(parts[0]));
+			return MessageDigest.isEqual(expected, actual);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean upgradeEncoding(String encodedPassword) {
+		if (!isPbkdf2Mode() || encodedPassword == null) return false;
+		if (!encodedPassword.startsWith(PBKDF2_PREFIX)) return true;
+
+		String rounds = encodedPassword.substring(PBKDF2_PREFIX.length()).split("\\$")[0];
+		try {
+			return Integer.parseInt(rounds) < iterations;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Hash a password with SHA-256 and the default salt.
+	 *
+	 * @param rawPassword password to hash
+	 * @return hex encoded hash
+	 */
+	private String encodeLegacy(CharSequence rawPassword) {
 		byte[] salt = getSalt();
 		StringBuilder builder = new StringBuilder();
-		
+
 		MessageDigest md;
 		try {
 			md = MessageDigest.getInstance("SHA-256");
 			md.update(salt);
 			byte[] bytes = md.digest(rawPassword.toString().getBytes());
-			
+
 			for (int i = 0; i < bytes.length; i++) {
 				builder.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
 			}
-			
+
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 		}
-		
+
 		return builder.toString();
 	}
 
-	@Override
-	public boolean matches(CharSequence rawPassword, String encodedPassword) {
-		String hashed = encode(rawPassword);
-		return hashed.equals(encodedPassword);
+	/**
+	 * Hash a password with PBKDF2 on the hashing
+	 * pool. The calling thread waits for the result,
+	 * but no more hashes run at once than there are
+	 * hashing threads, and a request is turned away
+	 * when the queue in front of them is full.
+	 *
+	 * @param rawPassword password to hash
+	 * @param salt salt of the password
+	 * @param rounds number of iterations
+	 * @return hash
+	 */
+	private byte[] hash(CharSequence rawPassword, byte[] salt, int rounds) {
+		char[] password = rawPassword.toString().toCharArray();
+		try {
+			Future<byte[]> result = executor.submit(() -> {
+				KeySpec spec = new PBEKeySpec(password, salt, rounds, HASH_LENGTH);
+				return SecretKeyFactory.getInstance(PBKDF2_ALGORITHM).generateSecret(spec).getEncoded();
+			});
+			return result.get();
+		} catch (RejectedExecutionException e) {
+			throw new AuthenticationServiceException("Too many password checks, try again later", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AuthenticationServiceException("Password check was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Password hashing failed", e.getCause());
+		}
 	}
-	
+
+	/**
+	 * Check whether new passwords are hashed with PBKDF2.
+	 *
+	 * @return true in pbkdf2 mode
+	 */
+	private boolean isPbkdf2Mode() {
+		return "pbkdf2".equalsIgnoreCase(mode);
+	}
+
 	/**
-	 * Get default salt from the database.
-	 * 
+	 * Get default salt, reading it from
+	 * the database the first time.
+	 *
 	 * @return salt
 	 */
 	private byte[] getSalt() {
-		Salt salt = saltRepository.findBySaltName("Default");
-		return salt.getSalt();
+		byte[] cached = salt;
+		if (cached == null) {
+			Salt stored = saltRepository.findBySaltName("Default");
+			cached = stored.getSalt();
+			salt = cached;
+		}
+		return cached;
 	}
 }
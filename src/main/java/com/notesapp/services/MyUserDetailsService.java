@@ -3,9 +3,11 @@ package com.notesapp.services;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import com.notesapp.model.User;
 import com.notesapp.repository.UserRepository;
@@ -16,7 +18,7 @@ import com.notesapp.repository.UserRepository;
  * @author stephen
  */
 @Service
-public class MyUserDetailsService implements UserDetailsService {
+public class MyUserDetailsService implements UserDetailsService, UserDetailsPasswordService {
 
 	@Autowired
 	UserRepository userRepository;
@@ -30,4 +32,19 @@ public class MyUserDetailsService implements UserDetailsService {
 		return new MyUserDetails(user);
 	}
 
+	/**
+	 * Store a password rehashed after a successful
+	 * login because its hash was out of date.
+	 */
+	@Override
+	@Transactional
+	public UserDetails updatePassword(UserDetails details, String newPassword) {
+		User user = userRepository.findByEmail(details.getUsername());
+		if (user == null) return details;
+		
+		user.setPassword(newPassword);
+		userRepository.save(user);
+		return new MyUserDetails(user);
+	}
+
 }
@@ -4,10 +4,14 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.springframework.security.web.authentication.WebAuthenticationDetails;
 
+import com.notesapp.model.User;
+
 /**
  * A class that enables the retrieval of information
  * from a request. We use the to retrieve a verification
- * code parameter in the request.
+ * code parameter in the request, and to carry the
+ * user loaded during authentication to the success
+ * handler so a login reads the user only once.
  * 
  * @author stephen
  *
@@ -21,6 +25,10 @@ public class MyWebAuthenticationDetails extends WebAuthenticationDetails{
 	 * MFA verification code.
 	 */
 	private String verificationCode;
+	/**
+	 * User being authenticated, once loaded.
+	 */
+	private transient User user;
 	
 	/**
 	 * Creates an instance of the class.
@@ -39,4 +47,22 @@ public class MyWebAuthenticationDetails extends WebAuthenticationDetails{
 	public String getVerificationCode() {
 		return verificationCode;
 	}
+	
+	/**
+	 * Get user loaded during authentication.
+	 * 
+	 * @return user or null if it was not loaded yet
+	 */
+	public User getUser() {
+		return user;
+	}
+	
+	/**
+	 * Set user loaded during authentication.
+	 * 
+	 * @param user user being authenticated
+	 */
+	public void setUser(User user) {
+		this.user = user;
+	}
 }
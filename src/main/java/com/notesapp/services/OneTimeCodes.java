@@ -0,0 +1,216 @@
+package com.notesapp.services;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.notesapp.model.CodeIssuance;
+import com.notesapp.model.User;
+import com.notesapp.repository.CodeIssuanceRepository;
+
+/**
+ * A class that issues and checks the 4 digit
+ * verification codes sent by email. A code is derived
+ * from an HMAC over the user id, the purpose of the
+ * code and the time step it was issued in, so checking
+ * a code only recomputes the codes of recent steps. The
+ * step of the first code issued to a user for a purpose
+ * is stored with the number of codes checked against
+ * it, so every node accepts the same codes. Only codes
+ * of that step or later are accepted, for {@code otp.steps}
+ * steps after the one they were issued in. A valid code
+ * uses up every code issued before it, and
+ * {@code otp.max-attempts} wrong codes do the same. Codes
+ * asked for twice within one step are the same code.
+ * 
+ * @author stephen
+ *
+ */
+@Component
+public class OneTimeCodes {
+
+	private static final String ALGORITHM = "HmacSHA256";
+	
+	/**
+	 * What a code may be used for.
+	 */
+	public enum Purpose {
+		/**
+		 * Enabling an account or resetting its password.
+		 */
+		ACCOUNT,
+		/**
+		 * Signing in with two factor authentication.
+		 */
+		LOGIN
+	}
+	
+	/**
+	 * Outcome of checking a code.
+	 */
+	public enum Result {
+		VALID,
+		INVALID,
+		EXPIRED
+	}
+	
+	@Value("${otp.secret:${secret}}")
+	private String secret;
+	
+	@Value("${otp.step:60000}")
+	private long step;
+	
+	@Value("${otp.steps:5}")
+	private int steps;
+	
+	@Value("${otp.max-attempts:5}")
+	private int maxAttempts;
+	
+	@Autowired
+	private CodeIssuanceRepository issuances;
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	private SecretKeySpec key;
+	
+	private TransactionTemplate transaction;
+	
+	private TransactionTemplate newTransaction;
+	
+	@PostConstruct
+	public void init() {
+		key = new SecretKeySpec(("otp:" + secret).getBytes(StandardCharsets.UTF_8), ALGORITHM);
+		transaction = new TransactionTemplate(transactionManager);
+		newTransaction = new TransactionTemplate(transactionManager);
+		newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+	}
+	
+	/**
+	 * Issue a code for a user.
+	 * 
+	 * @param user user the code is for
+	 * @param purpose what the code may be used for
+	 * @return verification code
+	 */
+	public int issue(User user, Purpose purpose) {
+		return issue(user, purpose, new Date());
+	}
+	
+	/**
+	 * Issue the code a user would have been
+	 * given at a point in time.
+	 * 
+	 * @param user user the code is for
+	 * @param purpose what the code may be used for
+	 * @param date time of issue
+	 * @return verification code
+	 */
+	public int issue(User user, Purpose purpose, Date date) {
+		long s = date.getTime() / step;
+		String issuanceId = key(user, purpose);
+		boolean issued = transaction.execute(status -> 
+				issuances.renew(issuanceId, s, s - 2 * steps, maxAttempts) > 0 
+						|| issuances.existsById(issuanceId));
+		if (!issued) {
+			try {
+				newTransaction.executeWithoutResult(status -> 
+						issuances.save(new CodeIssuance(issuanceId, s)));
+			} catch (DataIntegrityViolationException e) {
+				// issued by another request at the same time
+			}
+		}
+		return code(user.getUserId(), purpose, s);
+	}
+	
+	/**
+	 * Check a code and use it up if it is valid.
+	 * Codes of steps that are no longer accepted
+	 * are reported as expired for a while longer.
+	 * Every check counts as an attempt.
+	 * 
+	 * @param user user the code was issued to
+	 * @param purpose what the code is used for
+	 * @param code code to check
+	 * @return result of the check
+	 */
+	public Result verify(User user, Purpose purpose, int code) {
+		String issuanceId = key(user, purpose);
+		return transaction.execute(status -> {
+			if (issuances.countAttempt(issuanceId, maxAttempts) == 0) return Result.INVALID;
+			long issuedStep = issuances.findStep(issuanceId);
+			
+			long current = System.currentTimeMillis() / step;
+			long first = Math.max(issuedStep, current - steps);
+			for (long s = current; s >= first; s--) {
+				if (code(user.getUserId(), purpose, s) == code) {
+					issuances.burn(issuanceId, maxAttempts);
+					return Result.VALID;
+				}
+			}
+			
+			for (long s = first - 1; s >= issuedStep && s > current - 2 * steps - 1; s--) {
+				if (code(user.getUserId(), purpose, s) == code) return Result.EXPIRED;
+			}
+			return Result.INVALID;
+		});
+	}
+	
+	/**
+	 * Remove the codes that can no longer
+	 * be accepted or reported as expired.
+	 * 
+	 * @return number of issuances removed
+	 */
+	@Scheduled(initialDelayString = "${otp.purge-interval:3600000}",
+			fixedDelayString = "${otp.purge-interval:3600000}")
+	public int purge() {
+		return issuances.deleteByStepBefore(System.currentTimeMillis() / step - 2 * steps);
+	}
+	
+	/**
+	 * Get the key codes of a user are issued under.
+	 * 
+	 * @param user user the codes are for
+	 * @param purpose what the codes may be used for
+	 * @return issuance id
+	 */
+	private String key(User user, Purpose purpose) {
+		return user.getUserId() + ":" + purpose;
+	}
+	
+	/**
+	 * Derive the code of a step.
+	 * 
+	 * @param userId user the code is for
+	 * @param purpose what the code may be used for
+	 * @param s time step
+	 * @return number between 1000 and 9999
+	 */
+	private int code(long userId, Purpose purpose, long s) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			byte[] hash = mac.doFinal(ByteBuffer.allocate(20)
+					.putLong(userId).putInt(purpose.ordinal()).putLong(s).array());
+			int value = ByteBuffer.wrap(hash).getInt() & Integer.MAX_VALUE;
+			return value % 9000 + 1000;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Code algorithm not available", e);
+		}
+	}
+}
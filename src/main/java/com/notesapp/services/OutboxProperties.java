@@ -0,0 +1,124 @@
+package com.notesapp.services;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * A class for configuring the delivery
+ * of queued verification emails.
+ * 
+ * @author stephen
+ *
+ */
+@ConfigurationProperties("mail.outbox")
+public class OutboxProperties {
+
+	/**
+	 * Number of threads sending emails.
+	 */
+	private int threads = 2;
+	
+	/**
+	 * Number of emails that may wait for a thread.
+	 * Emails that do not fit are picked up by the
+	 * next poll of the outbox.
+	 */
+	private int queueCapacity = 100;
+	
+	/**
+	 * Maximum number of due emails read per poll.
+	 */
+	private int batchSize = 50;
+	
+	/**
+	 * Number of attempts before an email is
+	 * marked as failed.
+	 */
+	private int maxAttempts = 8;
+	
+	/**
+	 * Milliseconds to wait after the first failed
+	 * attempt, doubled after every further one.
+	 */
+	private long initialBackoff = 5000;
+	
+	/**
+	 * Upper bound of the wait between attempts in milliseconds.
+	 */
+	private long maxBackoff = 60L * 60 * 1000;
+	
+	/**
+	 * Milliseconds a claimed email is reserved for the
+	 * thread sending it before others may retry it.
+	 */
+	private long lease = 60000;
+	
+	/**
+	 * Milliseconds an email that ran out of attempts
+	 * is kept in the outbox before it is removed.
+	 */
+	private long failedRetention = 7L * 24 * 60 * 60 * 1000;
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	public void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	public long getLease() {
+		return lease;
+	}
+
+	public void setLease(long lease) {
+		this.lease = lease;
+	}
+
+	public long getFailedRetention() {
+		return failedRetention;
+	}
+
+	public void setFailedRetention(long failedRetention) {
+		this.failedRetention = failedRetention;
+	}
+}
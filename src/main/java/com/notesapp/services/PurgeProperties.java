@@ -0,0 +1,54 @@
+package com.notesapp.services;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * A class for configuring the removal of
+ * accounts that were never verified.
+ * 
+ * @author stephen
+ *
+ */
+@ConfigurationProperties("account.purge")
+public class PurgeProperties {
+
+	/**
+	 * Milliseconds an account may stay
+	 * unverified before it is removed.
+	 */
+	private long unverifiedAge = 24L * 60 * 60 * 1000;
+	
+	/**
+	 * Number of accounts removed per statement.
+	 */
+	private int batchSize = 100;
+	
+	/**
+	 * Maximum number of accounts removed in one run.
+	 */
+	private int maxDeletesPerRun = 1000;
+
+	public long getUnverifiedAge() {
+		return unverifiedAge;
+	}
+
+	public void setUnverifiedAge(long unverifiedAge) {
+		this.unverifiedAge = unverifiedAge;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getMaxDeletesPerRun() {
+		return maxDeletesPerRun;
+	}
+
+	public void setMaxDeletesPerRun(int maxDeletesPerRun) {
+		this.maxDeletesPerRun = maxDeletesPerRun;
+	}
+}
@@ -1,20 +1,25 @@
 package com.notesapp.services;
 
 import java.io.UnsupportedEncodingException;
+import java.util.List;
 
+import javax.activation.DataHandler;
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.util.ByteArrayDataSource;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Component;
-import org.thymeleaf.TemplateEngine;
-import org.thymeleaf.context.Context;
 
 /**
- * A class for handling outgoing emails.
+ * A class for handling outgoing emails. Messages
+ * are sent over the pooled connections of the
+ * {@link SmtpTransportPool}.
  *  
  * @author stephen
  *
@@ -22,11 +27,18 @@ import org.thymeleaf.context.Context;
 @Component
 public class SMTPMailSender {
 	
+	private static final String HTML = "text/html; charset=UTF-8";
+	
+	private static final InternetAddress FROM = from();
+	
 	@Autowired
 	private JavaMailSender javaMailSender;
 	
 	@Autowired
-	private TemplateEngine templateEngine;
+	private VerificationTemplate verificationTemplate;
+	
+	@Autowired
+	private SmtpTransportPool transportPool;
 	
 	/**
 	 * Send email with verification code.
@@ -38,30 +50,58 @@ public class SMTPMailSender {
 	 */
 	public void send(String to, String subject, int code) 
 			throws MessagingException {
-		Context context = new Context();
-		context.setVariable("receiver", to);
-		context.setVariable("receiverFirstLetter", String.valueOf(to.charAt(0)).toUpperCase());
-		context.setVariable("code", code);
-		
-		String process = templateEngine.process("verification", context);
-		
+		send(List.of(createMessage(to, subject, code)));
+	}
+	
+	/**
+	 * Send messages over one pooled connection.
+	 * 
+	 * @param messages messages to send
+	 * @throws MailSendException listing the messages that could not be sent
+	 */
+	public void send(List<MimeMessage> messages) {
+		transportPool.send(messages);
+	}
+	
+	/**
+	 * Build email with verification code. The body
+	 * comes from the precompiled {@link VerificationTemplate}.
+	 * 
+	 * @param to address to send to
+	 * @param subject email subject
+	 * @param code verification code
+	 * @return message ready to send
+	 * @throws MessagingException
+	 */
+	public MimeMessage createMessage(String to, String subject, int code) 
+			throws MessagingException {
 		MimeMessage message = javaMailSender.createMimeMessage();
 		MimeMessageHelper helper;
 		
 		helper = new MimeMessageHelper(message, true);
 		
-		try {
-			helper.setFrom(new InternetAddress("orangenotes@gmail.com", 
-					"Orange Notes"));
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		} catch (MessagingException e) {
-			e.printStackTrace();
-		}
+		helper.setFrom(FROM);
 		helper.setSubject(subject);
 		helper.setTo(to);
-		helper.setText(process, true);
 		
-		javaMailSender.send(message);
+		MimeBodyPart body = new MimeBodyPart();
+		body.setDataHandler(new DataHandler(
+				new ByteArrayDataSource(verificationTemplate.render(to, code), HTML)));
+		helper.getMimeMultipart().addBodyPart(body);
+		
+		return message;
+	}
+	
+	/**
+	 * Create the sender address.
+	 * 
+	 * @return sender address
+	 */
+	private static InternetAddress from() {
+		try {
+			return new InternetAddress("orangenotes@gmail.com", "Orange Notes");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 }
@@ -17,7 +17,6 @@ import org.springframework.security.config.annotation.web.configuration.WebSecur
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
-import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.authentication.AuthenticationFailureHandler;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
@@ -46,7 +45,7 @@ import com.notesapp.repository.UserRepository;
 public class SecurityConfiguration extends WebSecurityConfigurerAdapter{
 		
 	@Autowired
-	UserDetailsService userDetailsService;
+	MyUserDetailsService userDetailsService;
 	
 	@Autowired
 	BasicAuthenticationEntryPoint authenticationEntryPoint;
@@ -112,6 +111,7 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter{
 		MyAuthenticationProvider authProvider = new MyAuthenticationProvider();
 		authProvider.setUserDetailsService(userDetailsService);
 		authProvider.setPasswordEncoder(passwordEncoder);
+		authProvider.setUserDetailsPasswordService(userDetailsService);
 		return authProvider;
 	}
 	
@@ -146,9 +146,16 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter{
 		public void onAuthenticationSuccess(HttpServletRequest request, HttpServletResponse response,
 				Authentication authentication) throws IOException, ServletException {
 			response.setStatus(200);
-			User u = userRepository.findByEmail(authentication.getName());
+			User u = null;
+			if (authentication.getDetails() instanceof MyWebAuthenticationDetails) {
+				u = ((MyWebAuthenticationDetails) authentication.getDetails()).getUser();
+			}
+			if (u == null) u = userRepository.findByEmail(authentication.getName());
 			String jwt = JWT.create().withSubject(authentication.getName())
 					.withIssuedAt(new Date())
+					.withClaim(JwtTokenFilter.USER_ID_CLAIM, u.getUserId())
+					.withClaim(JwtTokenFilter.ENABLED_CLAIM, u.isEnabled())
+					.withClaim(JwtTokenFilter.VERSION_CLAIM, u.getTokenVersion())
 					.sign(Algorithm.HMAC512(secret));
 			LoginDTO result = new LoginDTO("Success", false, jwt);
 			result.setTwoFactor(u.getTwoFactorAuthentication());
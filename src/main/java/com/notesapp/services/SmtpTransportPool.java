@@ -0,0 +1,250 @@
+package com.notesapp.services;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * A class that keeps a small pool of connected and
+ * authenticated SMTP transports, so emails do not pay
+ * for a new connection, STARTTLS and AUTH each time.
+ * A batch of messages is sent over one transport. A
+ * transport that has been idle longer than the server
+ * is likely to keep it open is replaced before use,
+ * and a message that fails on a pooled transport is
+ * retried once on a new one, after the other idle
+ * transports are dropped as likely stale too.
+ * 
+ * @author stephen
+ *
+ */
+@Component
+public class SmtpTransportPool {
+
+	@Autowired
+	private JavaMailSenderImpl javaMailSender;
+	
+	@Autowired
+	private MeterRegistry meterRegistry;
+	
+	@Value("${mail.transport.pool-size:2}")
+	private int poolSize;
+	
+	@Value("${mail.transport.idle-timeout:30000}")
+	private long idleTimeout;
+	
+	private final BlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+	
+	private Semaphore permits;
+	
+	private Timer sent;
+	
+	private Timer failed;
+	
+	private Counter connects;
+	
+	@PostConstruct
+	public void init() {
+		permits = new Semaphore(poolSize);
+		sent = Timer.builder("mail.send").tag("outcome", "success")
+				.description("Time to send one email").register(meterRegistry);
+		failed = Timer.builder("mail.send").tag("outcome", "failure")
+				.description("Time to send one email").register(meterRegistry);
+		connects = Counter.builder("mail.transport.connects")
+				.description("SMTP connections opened").register(meterRegistry);
+		meterRegistry.gauge("mail.transport.idle", idle, BlockingDeque::size);
+	}
+	
+	/**
+	 * Send messages over one pooled transport.
+	 * Every message is attempted even if some fail.
+	 * 
+	 * @param messages messages to send
+	 * @throws MailSendException listing the messages that could not be sent
+	 */
+	public void send(List<MimeMessage> messages) {
+		Map<Object, Exception> failures = new LinkedHashMap<>();
+		PooledTransport transport = null;
+		try {
+			for (MimeMessage message : messages) {
+				long start = System.nanoTime();
+				try {
+					if (transport == null) transport = borrow();
+					sendMessage(transport, message);
+				} catch (SendFailedException e) {
+					// rejected by the server, the transport is fine
+					failures.put(message, e);
+				} catch (MessagingException e) {
+					// the pooled transports may have gone stale
+					discard(transport);
+					transport = null;
+					closeIdle();
+					try {
+						transport = borrow();
+						sendMessage(transport, message);
+					} catch (MessagingException retry) {
+						discard(transport);
+						transport = null;
+						failures.put(message, retry);
+					}
+				}
+				(failures.containsKey(message) ? failed : sent)
+						.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			release(transport);
+		}
+		if (!failures.isEmpty()) throw new MailSendException(failures);
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		closeIdle();
+	}
+	
+	/**
+	 * Close all transports waiting in the pool.
+	 */
+	private void closeIdle() {
+		PooledTransport transport;
+		while ((transport = idle.pollFirst()) != null) {
+			close(transport);
+		}
+	}
+	
+	/**
+	 * Take a transport from the pool, waiting while
+	 * all of them are in use. An idle transport that
+	 * may have been dropped by the server is replaced.
+	 * 
+	 * @return connected transport
+	 * @throws MessagingException if no connection could be made
+	 */
+	private PooledTransport borrow() throws MessagingException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted while waiting for a mail connection", e);
+		}
+		
+		try {
+			PooledTransport transport = idle.pollFirst();
+			if (transport != null 
+					&& System.currentTimeMillis() - transport.lastUsed > idleTimeout) {
+				close(transport);
+				transport = null;
+			}
+			if (transport == null) transport = connect();
+			return transport;
+		} catch (MessagingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Return a transport to the pool.
+	 * 
+	 * @param transport transport to return, may be null
+	 */
+	private void release(PooledTransport transport) {
+		if (transport == null) return;
+		transport.lastUsed = System.currentTimeMillis();
+		idle.offerFirst(transport);
+		permits.release();
+	}
+	
+	/**
+	 * Close a broken transport instead of
+	 * returning it to the pool.
+	 * 
+	 * @param transport transport to close, may be null
+	 */
+	private void discard(PooledTransport transport) {
+		if (transport == null) return;
+		close(transport);
+		permits.release();
+	}
+	
+	/**
+	 * Open and authenticate a new transport
+	 * with the mail sender's settings.
+	 * 
+	 * @return connected transport
+	 * @throws MessagingException
+	 */
+	private PooledTransport connect() throws MessagingException {
+		Transport transport = javaMailSender.getSession().getTransport(
+				javaMailSender.getProtocol() != null ? javaMailSender.getProtocol() : "smtp");
+		transport.connect(javaMailSender.getHost(), javaMailSender.getPort(), 
+				javaMailSender.getUsername(), javaMailSender.getPassword());
+		connects.increment();
+		return new PooledTransport(transport);
+	}
+	
+	/**
+	 * Send one message.
+	 * 
+	 * @param transport transport to send over
+	 * @param message message to send
+	 * @throws MessagingException
+	 */
+	private void sendMessage(PooledTransport transport, MimeMessage message) 
+			throws MessagingException {
+		if (message.getSentDate() == null) message.setSentDate(new Date());
+		message.saveChanges();
+		Address[] recipients = message.getAllRecipients();
+		transport.transport.sendMessage(message, recipients != null ? recipients : new Address[0]);
+	}
+	
+	/**
+	 * Close a transport, ignoring errors.
+	 * 
+	 * @param transport transport to close
+	 */
+	private void close(PooledTransport transport) {
+		try {
+			transport.transport.close();
+		} catch (MessagingException e) {
+			// already closed by the server
+		}
+	}
+	
+	/**
+	 * A connected transport and the time
+	 * it was last returned to the pool.
+	 */
+	private static class PooledTransport {
+		private final Transport transport;
+		private long lastUsed;
+		
+		PooledTransport(Transport transport) {
+			this.transport = transport;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+}
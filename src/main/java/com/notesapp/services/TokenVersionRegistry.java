@@ -0,0 +1,93 @@
+package com.notesapp.services;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.notesapp.model.User;
+import com.notesapp.model.UserChangedEvent;
+import com.notesapp.repository.UserRepository;
+
+/**
+ * A class that knows the current token version
+ * of recently active users. A token is only honoured
+ * while the version it was issued with is current,
+ * so bumping the version of a user revokes all of
+ * the user's tokens. A remembered version is trusted,
+ * so old and revoked tokens are turned away without a
+ * database read. Versions are read from the database
+ * when none is remembered, or when a token is newer
+ * than the remembered version, which only happens when
+ * the version was bumped on another node. They are
+ * forgotten whenever the user changes on this node or
+ * after a short while, to pick up changes made on
+ * other nodes.
+ * 
+ * @author stephen
+ *
+ */
+@Component
+public class TokenVersionRegistry {
+	
+	/**
+	 * Version remembered for users that may
+	 * not use any token.
+	 */
+	private static final int REVOKED = -1;
+
+	@Autowired
+	private UserRepository userRepository;
+	
+	@Value("${jwt.version-cache.maximum-size:100000}")
+	private long cacheSize;
+	
+	@Value("${jwt.version-cache.expire-after-write:60000}")
+	private long cacheExpiry;
+	
+	private Cache<Long, Integer> versions;
+	
+	@PostConstruct
+	public void init() {
+		versions = Caffeine.newBuilder()
+				.maximumSize(cacheSize)
+				.expireAfterWrite(cacheExpiry, TimeUnit.MILLISECONDS)
+				.build();
+	}
+	
+	/**
+	 * Check whether a token version is the
+	 * current one of a user.
+	 * 
+	 * @param userId owner of the token
+	 * @param version version the token was issued with
+	 * @return true if the token may be used
+	 */
+	public boolean isCurrent(long userId, int version) {
+		Integer current = versions.getIfPresent(userId);
+		if (current != null && (current == REVOKED || version <= current)) {
+			return current == version;
+		}
+		
+		User user = userRepository.findById(userId).orElse(null);
+		current = user != null && user.isEnabled() ? user.getTokenVersion() : REVOKED;
+		versions.put(userId, current);
+		return current == version;
+	}
+	
+	/**
+	 * Forget the version of a user that changed.
+	 * 
+	 * @param event user changed event
+	 */
+	@EventListener
+	public void onUserChanged(UserChangedEvent event) {
+		versions.invalidate(event.getUserId());
+	}
+}
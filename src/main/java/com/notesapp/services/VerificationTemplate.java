@@ -0,0 +1,125 @@
+package com.notesapp.services;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.HtmlUtils;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+
+/**
+ * A class that renders the verification email without
+ * running the template engine for every message. The
+ * template is rendered once at startup with a unique
+ * marker in place of each variable, and the result is
+ * cut at the markers into fixed UTF-8 fragments. A
+ * message is then the fragments with the HTML escaped
+ * values written between them, which is what the
+ * engine would have produced for the same values.
+ * 
+ * @author stephen
+ *
+ */
+@Component
+public class VerificationTemplate {
+
+	private static final String TEMPLATE = "verification";
+	
+	/**
+	 * Variables of the template, in the order
+	 * their values are passed to {@link #render}.
+	 */
+	private static final String[] VARIABLES = {"receiver", "receiverFirstLetter", "code"};
+	
+	/**
+	 * Fixed parts of the rendered template.
+	 * There is one more than there are slots.
+	 */
+	private final byte[][] fragments;
+	
+	/**
+	 * Variable written after each fragment
+	 * but the last, as an index into {@link #VARIABLES}.
+	 */
+	private final int[] slots;
+	
+	private final int fixedLength;
+	
+	@Autowired
+	public VerificationTemplate(TemplateEngine templateEngine) {
+		String[] markers = new String[VARIABLES.length];
+		Context context = new Context();
+		for (int i = 0; i < VARIABLES.length; i++) {
+			markers[i] = "slot" + i + UUID.randomUUID().toString().replace("-", "");
+			context.setVariable(VARIABLES[i], markers[i]);
+		}
+		String rendered = templateEngine.process(TEMPLATE, context);
+		
+		List<byte[]> parts = new ArrayList<>();
+		List<Integer> order = new ArrayList<>();
+		int position = 0;
+		while (true) {
+			int next = -1;
+			int variable = -1;
+			for (int i = 0; i < markers.length; i++) {
+				int found = rendered.indexOf(markers[i], position);
+				if (found != -1 && (next == -1 || found < next)) {
+					next = found;
+					variable = i;
+				}
+			}
+			if (next == -1) break;
+			parts.add(rendered.substring(position, next).getBytes(StandardCharsets.UTF_8));
+			order.add(variable);
+			position = next + markers[variable].length();
+		}
+		parts.add(rendered.substring(position).getBytes(StandardCharsets.UTF_8));
+		
+		this.fragments = parts.toArray(new byte[0][]);
+		this.slots = order.stream().mapToInt(Integer::intValue).toArray();
+		int length = 0;
+		for (byte[] fragment : fragments) length += fragment.length;
+		this.fixedLength = length;
+	}
+	
+	/**
+	 * Render the verification email for a recipient.
+	 * 
+	 * @param to address the email is sent to
+	 * @param code verification code
+	 * @return UTF-8 encoded HTML body
+	 */
+	public byte[] render(String to, int code) {
+		byte[][] values = {
+				escape(to),
+				escape(String.valueOf(to.charAt(0)).toUpperCase()),
+				escape(String.valueOf(code))
+		};
+		
+		int length = fixedLength;
+		for (int slot : slots) length += values[slot].length;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+		for (int i = 0; i < slots.length; i++) {
+			out.writeBytes(fragments[i]);
+			out.writeBytes(values[slots[i]]);
+		}
+		out.writeBytes(fragments[fragments.length - 1]);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Escape a value the way the template
+	 * engine escapes text.
+	 * 
+	 * @param value text to escape
+	 * @return UTF-8 encoded escaped text
+	 */
+	private byte[] escape(String value) {
+		return HtmlUtils.htmlEscape(value, "UTF-8").getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,207 @@
+package com.notesapp.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.notesapp.model.BackupVersion;
+import com.notesapp.repository.BackupVersionRepository;
+
+/**
+ * A class that enforces the backup retention policy
+ * in the background. Each run marks versions that are
+ * no longer retained as deleted, then removes the files
+ * of deleted versions until the run's delete budget is
+ * spent. The byte budget counts the space the removed
+ * files took on disk. A version is only dropped once its
+ * file is gone, so a failed delete or a crash leaves the
+ * version marked for the next run instead of an
+ * unreferenced file. Request threads never delete backup files.
+ *
+ * @author stephen
+ *
+ */
+@Component
+public class BackupCompactor {
+
+	private static final Logger log = LoggerFactory.getLogger(BackupCompactor.class);
+
+	@Autowired
+	private BackupVersionRepository versionRepository;
+
+	@Autowired
+	private StorageService storageService;
+
+	@Autowired
+	private RetentionProperties properties;
+
+	/**
+	 * Id of the last user whose versions were checked,
+	 * so successive runs work through all users.
+	 */
+	private long retentionCursor = 0;
+
+	/**
+	 * Run one compaction pass.
+	 */
+	@Scheduled(initialDelayString = "${backup.retention.interval:60000}",
+			fixedDelayString = "${backup.retention.interval:60000}")
+	public synchronized void compact() {
+		applyRetention();
+		deleteMarkedVersions();
+	}
+
+	/**
+	 * Mark the versions of one batch of users
+	 * that fall outside the retention policy. The
+	 * policy applies to each device on its own, so
+	 * one busy device cannot push out the backups
+	 * of another.
+	 */
+	private void applyRetention() {
+		List<Long> userIds = versionRepository.findUserIdsWithMoreVersionsThan(retentionCursor,
+				properties.getKeepLast(), PageRequest.of(0, properties.getBatchSize()));
+
+		for (long userId : userIds) {
+			List<BackupVersion> versions = versionRepository
+					.findByUserIdAndDeletedFalseOrderByCreatedAtDescVersionIdDesc(userId);
+			Map<String, List<BackupVersion>> devices = new HashMap<>();
+			for (BackupVersion version : versions) {
+				devices.computeIfAbsent(version.getDeviceId(), d -> new ArrayList<>()).add(version);
+			}
+			
+			Set<Long> retained = new HashSet<>();
+			for (List<BackupVersion> device : devices.values()) {
+				retained.addAll(retained(device));
+			}
+			List<Long> expired = new ArrayList<>();
+			for (BackupVersion version : versions) {
+				if (!retained.contains(version.getVersionId())) expired.add(version.getVersionId());
+			}
+			if (!expired.isEmpty()) versionRepository.markDeletedByIds(expired);
+		}
+
+		retentionCursor = userIds.isEmpty() ? 0 : userIds.get(userIds.size() - 1);
+	}
+
+	/**
+	 * Remove deleted versions and their files
+	 * until the delete budget is spent. Versions
+	 * whose file could not be removed count against
+	 * the budget and are tried again on the next run.
+	 */
+	private void deleteMarkedVersions() {
+		int deletes = 0;
+		long bytes = 0;
+		long cursor = 0;
+
+		while (deletes < properties.getMaxDeletesPerRun() && bytes < properties.getMaxBytesPerRun()) {
+			List<BackupVersion> versions = versionRepository
+					.findByDeletedTrueAndVersionIdGreaterThanOrderByVersionId(cursor,
+							PageRequest.of(0, properties.getBatchSize()));
+			if (versions.isEmpty()) return;
+
+			for (BackupVersion version : versions) {
+				if (deletes >= properties.getMaxDeletesPerRun()
+						|| bytes >= properties.getMaxBytesPerRun()) return;
+
+				cursor = version.getVersionId();
+				Path file = locate(version.getFilename());
+				long size = sizeOf(file);
+				deletes++;
+				try {
+					storageService.delete(version.getFilename());
+				} catch (StorageException e) {
+					if (file != null && Files.exists(file)) {
+						log.warn("Could not delete file {} of version {}", version.getFilename(),
+								version.getVersionId(), e);
+						continue;
+					}
+					// already removed
+				}
+				versionRepository.delete(version);
+				if (file != null && !Files.exists(file)) bytes += size;
+			}
+		}
+	}
+
+	/**
+	 * Find the file a version is stored in.
+	 *
+	 * @param filename stored file name
+	 * @return path of the file, or null if it cannot be located
+	 */
+	private Path locate(String filename) {
+		try {
+			return storageService.load(filename);
+		} catch (StorageException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the size of a stored file on disk,
+	 * which is its compressed size if it is
+	 * compressed.
+	 *
+	 * @param file stored file, may be null
+	 * @return size in bytes, 0 if it does not exist
+	 */
+	private long sizeOf(Path file) {
+		if (file == null) return 0;
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Pick the versions to retain: the most recent ones,
+	 * plus the newest version of each recent day and week.
+	 *
+	 * @param versions live versions of a device, newest first
+	 * @return ids of the versions to retain
+	 */
+	private Set<Long> retained(List<BackupVersion> versions) {
+		Set<Long> retained = new HashSet<>();
+		Set<LocalDate> days = new HashSet<>();
+		Set<LocalDate> weeks = new HashSet<>();
+
+		for (int i = 0; i < versions.size(); i++) {
+			BackupVersion version = versions.get(i);
+			LocalDate day = version.getCreatedAt().toInstant()
+					.atZone(ZoneId.systemDefault()).toLocalDate();
+			LocalDate week = day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+
+			boolean keep = i < properties.getKeepLast();
+			if (!days.contains(day) && days.size() < properties.getKeepDaily()) {
+				days.add(day);
+				keep = true;
+			}
+			if (!weeks.contains(week) && weeks.size() < properties.getKeepWeekly()) {
+				weeks.add(week);
+				keep = true;
+			}
+			if (keep) retained.add(version.getVersionId());
+		}
+		return retained;
+	}
+}
@@ -0,0 +1,65 @@
+package com.notesapp.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * A class that decides where backups are stored.
+ * Every user owns a directory, spread over two levels
+ * of 256 subdirectories picked by a hash of the user id
+ * so no directory grows with the number of users. A
+ * backup of user 42 is stored under a name like
+ * {@code users/a1/d0/42/<uuid>-backup.db}.
+ *
+ * @author stephen
+ *
+ */
+@Component
+public class BackupLayout {
+
+	/**
+	 * Top level directory of the layout.
+	 */
+	public static final String PREFIX = "users/";
+
+	/**
+	 * Get the directory holding a user's backups.
+	 *
+	 * @param userId owner of the backups
+	 * @return directory relative to the storage root
+	 */
+	public String directory(long userId) {
+		String hash = DigestUtils.md5DigestAsHex(
+				Long.toString(userId).getBytes(StandardCharsets.UTF_8));
+		return PREFIX + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + userId;
+	}
+
+	/**
+	 * Get a unique name to store a new backup
+	 * version of a user under.
+	 *
+	 * @param userId owner of the backup
+	 * @param filename name of the uploaded file
+	 * @return name relative to the storage root
+	 */
+	public String keyFor(long userId, String filename) {
+		return directory(userId) + "/" + UUID.randomUUID() + "-" + sanitize(filename);
+	}
+
+	/**
+	 * Strip any directories from a client supplied
+	 * file name so it cannot leave the user directory.
+	 *
+	 * @param filename client supplied name, may be null
+	 * @return plain file name
+	 */
+	private String sanitize(String filename) {
+		String name = StringUtils.getFilename(StringUtils.cleanPath(
+				filename != null ? filename.replace('\\', '/') : ""));
+		return StringUtils.hasText(name) && !name.equals("..") ? name : "backup";
+	}
+}
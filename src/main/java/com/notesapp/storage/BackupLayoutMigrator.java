@@ -0,0 +1,169 @@
+package com.notesapp.storage;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.notesapp.model.BackupVersion;
+import com.notesapp.model.User;
+import com.notesapp.repository.BackupVersionRepository;
+import com.notesapp.repository.UserRepository;
+
+/**
+ * A class that moves backups stored in the flat
+ * storage directory into the per user {@link BackupLayout}
+ * while the application keeps serving requests. Each
+ * file is first linked under its new name, then the
+ * rows pointing at it are switched over, and only then
+ * is the old name removed, so a backup can always be
+ * found under the name its row holds. The switch and
+ * the removal hold the user's backup lock, so an upload
+ * or delete cannot slip in between them. Runs are
+ * limited to a batch of files and only happen when
+ * {@code storage.layout-migration} is enabled.
+ *
+ * @author stephen
+ *
+ */
+@Component
+@ConditionalOnProperty(prefix = "storage", name = "mode", havingValue = "filesystem", 
+		matchIfMissing = true)
+public class BackupLayoutMigrator {
+
+	private static final Logger log = LoggerFactory.getLogger(BackupLayoutMigrator.class);
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private BackupVersionRepository versionRepository;
+
+	@Autowired
+	private StorageService storageService;
+
+	@Autowired
+	private BackupLayout backupLayout;
+
+	@Autowired
+	private StorageProperties properties;
+
+	@Autowired
+	private BackupLocks backupLocks;
+
+	/**
+	 * Ids of the last version and user checked,
+	 * so successive runs work through all rows.
+	 */
+	private long versionCursor = 0;
+	private long userCursor = 0;
+
+	/**
+	 * Run one migration batch if the migration is enabled.
+	 */
+	@Scheduled(initialDelayString = "${storage.layout-migration-interval:60000}",
+			fixedDelayString = "${storage.layout-migration-interval:60000}")
+	public void run() {
+		if (properties.isLayoutMigration()) {
+			migrateBatch();
+		}
+	}
+
+	/**
+	 * Move one batch of backup versions and one
+	 * batch of user backups into the new layout.
+	 *
+	 * @return number of files moved
+	 */
+	public synchronized int migrateBatch() {
+		String pattern = BackupLayout.PREFIX + "%";
+		PageRequest batch = PageRequest.of(0, properties.getLayoutMigrationBatchSize());
+		int moved = 0;
+
+		List<BackupVersion> versions = versionRepository
+				.findByVersionIdGreaterThanAndDeletedFalseAndFilenameNotLikeOrderByVersionId(
+						versionCursor, pattern, batch);
+		for (BackupVersion version : versions) {
+			if (migrate(version.getUserId(), version.getFilename())) moved++;
+		}
+		versionCursor = versions.isEmpty() ? 0 : versions.get(versions.size() - 1).getVersionId();
+
+		List<User> users = userRepository
+				.findByUserIdGreaterThanAndBackupNameNotLikeOrderByUserId(userCursor, pattern, batch);
+		for (User user : users) {
+			if (migrate(user.getUserId(), user.getBackupName())) moved++;
+		}
+		userCursor = users.isEmpty() ? 0 : users.get(users.size() - 1).getUserId();
+
+		return moved;
+	}
+
+	/**
+	 * Move a user's backup file into the user's directory.
+	 * The old file is removed once no user or version
+	 * points at it any more.
+	 *
+	 * @param userId owner of the backup
+	 * @param filename current file name
+	 * @return true if the file was moved
+	 */
+	private boolean migrate(long userId, String filename) {
+		Path source = storageService.load(filename);
+		if (!Files.exists(source)) return false;
+
+		String target = backupLayout.directory(userId) + "/" + source.getFileName();
+		try {
+			link(source, storageService.load(target));
+
+			synchronized (backupLocks.lockFor(userId)) {
+				versionRepository.renameFile(userId, filename, target);
+				userRepository.renameBackup(userId, filename, target);
+
+				if (userRepository.countByBackupName(filename) == 0
+						&& versionRepository.countByFilename(filename) == 0) {
+					Files.deleteIfExists(source);
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			log.warn("Could not move backup {} of user {}", filename, userId, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Make a file available under a second name,
+	 * with a hard link where the file system allows
+	 * it and an atomically placed copy otherwise.
+	 *
+	 * @param source existing file
+	 * @param target new name
+	 * @throws IOException
+	 */
+	private void link(Path source, Path target) throws IOException {
+		Files.createDirectories(target.getParent());
+		try {
+			Files.createLink(target, source);
+		} catch (FileAlreadyExistsException e) {
+			// placed by an earlier run that was interrupted
+		} catch (UnsupportedOperationException | IOException e) {
+			Path temp = Files.createTempFile(target.getParent(), "migrate", ".tmp");
+			try {
+				Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.notesapp.storage;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * A table of locks serializing the changes to
+ * each user's backup. Uploads, deletes and the
+ * bookkeeping that publishes a new backup hold the
+ * lock of their user; restores never take it, since
+ * a published backup file is never changed in place.
+ * Users share a fixed number of lock stripes.
+ *
+ * @author stephen
+ *
+ */
+@Component
+public class BackupLocks {
+
+	private static final int LOCK_STRIPES = 256;
+
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	public BackupLocks() {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Get the lock guarding a user's backup.
+	 *
+	 * @param userId owner of the backup
+	 * @return lock object
+	 */
+	public Object lockFor(long userId) {
+		return locks[Math.floorMod(Long.hashCode(userId), locks.length)];
+	}
+}
@@ -0,0 +1,288 @@
+package com.notesapp.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.notesapp.repository.BackupVersionRepository;
+import com.notesapp.repository.UserRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.stream.Stream;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * A storage service that stores each distinct file
+ * once, named by the SHA-256 hash of its content, in a
+ * directory tree sharded by the first two bytes of
+ * the hash. Files are shared by every user whose
+ * backup points at the same hash and are removed
+ * once none of those pointers is left. Every store
+ * refreshes the modification time of its blob, and
+ * blobs stored within the grace period are never
+ * removed, since the pointer to them is only written
+ * after the store returns. Blobs that outlive their
+ * grace period without a pointer are swept up later.
+ *
+ * @author stephen
+ *
+ */
+@Service
+@ConditionalOnProperty(prefix = "storage", name = "mode", havingValue = "content-addressed")
+public class ContentAddressableStorageService extends FileSystemStorageService {
+
+	private static final Logger log = LoggerFactory.getLogger(ContentAddressableStorageService.class);
+	
+	private static final int LOCK_STRIPES = 64;
+
+	private final Path blobLocation;
+	
+	private final long gracePeriod;
+
+	/**
+	 * Locks guarding the check-then-act sequences on
+	 * a blob, striped by hash.
+	 */
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private BackupVersionRepository versionRepository;
+
+	@Autowired
+	public ContentAddressableStorageService(StorageProperties properties) {
+		super(properties);
+		this.blobLocation = rootLocation.resolve("blobs");
+		this.gracePeriod = properties.getBlobGracePeriod();
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Store content under its hash. The content
+	 * is written to a temporary file while both its
+	 * SHA-256 key and MD5 checksum are computed, then
+	 * moved into place unless a blob with the same
+	 * content already exists. The name requested by
+	 * the caller is ignored in favour of the hash,
+	 * which is always that of the uncompressed content.
+	 */
+	@Override
+	public StoredFile store(InputStream in, String filename, String checksum) {
+		Path temp = null;
+		try {
+			Files.createDirectories(blobLocation);
+			temp = Files.createTempFile(blobLocation, "upload", ".tmp");
+
+			MessageDigest sha = newDigest("SHA-256");
+			MessageDigest md5 = newDigest();
+			long size = write(new DigestInputStream(new DigestInputStream(in, sha), md5), temp);
+			String actual = DatatypeConverter.printHexBinary(md5.digest());
+			verify(filename, size, actual, checksum);
+
+			String key = encodedName(DatatypeConverter.printHexBinary(sha.digest()).toLowerCase());
+			placeBlob(temp, key);
+			return new StoredFile(key, size, actual);
+		} catch (IOException e) {
+			throw new StorageException("Failed to store file " + filename, e);
+		} finally {
+			deleteQuietly(temp);
+		}
+	}
+
+	/**
+	 * Hash a staging file and move it into
+	 * the blob tree. The name requested by the
+	 * caller is ignored in favour of the hash.
+	 */
+	@Override
+	public StoredFile commit(String stagingName, String filename) {
+		Path staged = stagingLocation.resolve(stagingName);
+		Path temp = null;
+		try {
+			MessageDigest sha = newDigest("SHA-256");
+			MessageDigest md5 = newDigest();
+			long size;
+			try (InputStream in = new DigestInputStream(
+					new DigestInputStream(Files.newInputStream(staged), sha), md5)) {
+				if (compression) {
+					Files.createDirectories(blobLocation);
+					temp = Files.createTempFile(blobLocation, "commit", ".tmp");
+					size = write(in, temp);
+				} else {
+					size = in.transferTo(OutputStream.nullOutputStream());
+					sync(staged);
+				}
+			}
+			
+			String key = encodedName(DatatypeConverter.printHexBinary(sha.digest()).toLowerCase());
+			placeBlob(temp != null ? temp : staged, key);
+			deleteQuietly(staged);
+			return new StoredFile(key, size, DatatypeConverter.printHexBinary(md5.digest()));
+		} catch (IOException e) {
+			throw new StorageException("Failed to store file " + filename, e);
+		} finally {
+			deleteQuietly(temp);
+		}
+	}
+
+	@Override
+	public Stream<Path> loadAll() {
+		try {
+			return Files.walk(this.blobLocation, 3)
+					.filter(path -> blobLocation.relativize(path).getNameCount() == 3)
+					.map(Path::getFileName);
+		} catch (IOException e) {
+			throw new StorageException("Failed to read stored files", e);
+		}
+	}
+
+	/**
+	 * Load path to blob. A blob with hash
+	 * {@code abcd...} lives at {@code blobs/ab/cd/abcd...}.
+	 */
+	@Override
+	public Path load(String filename) {
+		if (filename.length() < 4) {
+			throw new StorageFileNotFoundException("Could not read file: " + filename);
+		}
+		return blobLocation.resolve(filename.substring(0, 2))
+				.resolve(filename.substring(2, 4))
+				.resolve(filename);
+	}
+
+	/**
+	 * Release a reference to a blob. The blob is
+	 * removed once no user or live backup version
+	 * points at it any more, so callers must clear
+	 * their pointer first. A blob still within its
+	 * grace period is left for {@link #sweep()}.
+	 */
+	@Override
+	public void delete(String filename) {
+		Path blob = load(filename);
+		try {
+			if (!removeUnreferenced(blob, filename) && !Files.exists(blob)) {
+				throw new StorageFileNotFoundException("Could not read file: " + filename);
+			}
+		} catch (IOException e) {
+			throw new StorageFileNotFoundException("Could not read file: " + filename, e);
+		}
+	}
+	
+	/**
+	 * Remove blobs that nothing points at any more
+	 * and whose grace period is over.
+	 * 
+	 * @return number of blobs removed
+	 */
+	@Scheduled(initialDelayString = "${storage.blob-sweep-interval:3600000}",
+			fixedDelayString = "${storage.blob-sweep-interval:3600000}")
+	public int sweep() {
+		int removed = 0;
+		try (Stream<Path> names = loadAll()) {
+			for (Path name : (Iterable<Path>) names::iterator) {
+				String key = name.toString();
+				try {
+					if (removeUnreferenced(load(key), key)) removed++;
+				} catch (IOException e) {
+					log.warn("Could not sweep blob {}", key, e);
+				}
+			}
+		}
+		return removed;
+	}
+
+	@Override
+	public void init() {
+		try {
+			Files.createDirectories(blobLocation);
+		} catch (IOException e) {
+			throw new StorageException("Could not initialize storage", e);
+		}
+	}
+
+	/**
+	 * Move a fully written file into the blob tree
+	 * unless a blob with the same hash already exists,
+	 * in which case the existing blob is touched and
+	 * the file is left for the caller to remove.
+	 *
+	 * @param file file holding the blob content
+	 * @param key blob hash
+	 * @throws IOException
+	 */
+	private void placeBlob(Path file, String key) throws IOException {
+		Path blob = load(key);
+		synchronized (lockFor(key)) {
+			if (Files.exists(blob)) {
+				Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+			} else {
+				Files.createDirectories(blob.getParent());
+				try {
+					publish(file, blob);
+				} catch (FileAlreadyExistsException e) {
+					// written by another node sharing the directory
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a blob if nothing points at it
+	 * and its grace period is over.
+	 * 
+	 * @param blob path of the blob
+	 * @param key blob hash
+	 * @return true if the blob was removed
+	 * @throws IOException
+	 */
+	private boolean removeUnreferenced(Path blob, String key) throws IOException {
+		synchronized (lockFor(key)) {
+			if (!Files.exists(blob)) return false;
+			if (Files.getLastModifiedTime(blob).toMillis() > System.currentTimeMillis() - gracePeriod
+					|| userRepository.countByBackupName(key) > 0
+					|| versionRepository.countByFilenameAndDeletedFalse(key) > 0) return false;
+			return Files.deleteIfExists(blob);
+		}
+	}
+	
+	/**
+	 * Get the lock guarding a blob.
+	 *
+	 * @param key blob hash
+	 * @return lock object
+	 */
+	private Object lockFor(String key) {
+		return locks[Math.floorMod(key.hashCode(), locks.length)];
+	}
+
+	/**
+	 * Delete a temporary file if it still exists.
+	 *
+	 * @param path file to delete, may be null
+	 */
+	private void deleteQuietly(Path path) {
+		if (path == null) return;
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.warn("Could not delete temporary file {}", path, e);
+		}
+	}
+}
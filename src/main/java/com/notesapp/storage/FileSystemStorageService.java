@@ -1,6 +1,7 @@
 package com.notesapp.storage;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.stereotype.Service;
@@ -8,48 +9,242 @@ import org.springframework.util.FileSystemUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.bind.DatatypeConverter;
 
 /**
  * A class that represents the file system
- * storage service of the application.
+ * storage service of the application. When
+ * compression is enabled files are gzip compressed
+ * as they are written and stored with a {@code .gz}
+ * suffix, so the encoding of every file can be told
+ * from its name and files written before compression
+ * was enabled are still read as they are.
  * 
  * @author stephen
  *
  */
 @Service
+@ConditionalOnProperty(prefix = "storage", name = "mode", havingValue = "filesystem", 
+		matchIfMissing = true)
 public class FileSystemStorageService implements StorageService {
+	
+	private static final long TRANSFER_SIZE = 1024 * 1024;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private static final String GZIP_SUFFIX = ".gz";
 
-	private final Path rootLocation;
+	protected final Path rootLocation;
+	
+	protected final Path stagingLocation;
+	
+	protected final boolean compression;
+	
+	private final int compressionLevel;
 
 	@Autowired
 	public FileSystemStorageService(StorageProperties properties) {
 		this.rootLocation = Paths.get(properties.getLocation());
+		this.stagingLocation = rootLocation.resolve("staging");
+		this.compression = properties.isCompression();
+		this.compressionLevel = properties.getCompressionLevel();
+	}
+
+	@Override
+	public StoredFile store(MultipartFile file, String filename) {
+		if (file.isEmpty()) {
+			throw new StorageException("Failed to store empty file " + filename);
+		}
+		try (InputStream in = file.getInputStream()) {
+			return store(in, filename, null);
+		} catch (IOException e) {
+			throw new StorageException("Failed to store file " + filename, e);
+		}
+	}
+	
+	@Override
+	public StoredFile store(InputStream in, String filename, String checksum) {
+		try {
+			String storedName = encodedName(filename);
+			Path target = this.rootLocation.resolve(storedName);
+			Files.createDirectories(target.getParent());
+			Path temp = Files.createTempFile(target.getParent(), "write", ".tmp");
+			try {
+				MessageDigest messageDigest = newDigest();
+				long size = write(new DigestInputStream(in, messageDigest), temp);
+				String actual = DatatypeConverter.printHexBinary(messageDigest.digest());
+				verify(filename, size, actual, checksum);
+				publish(temp, target);
+				return new StoredFile(storedName, size, actual);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to store file " + filename, e);
+		}
+	}
+	
+	@Override
+	public String checksum(String filename) {
+		MessageDigest messageDigest = newDigest();
+		try (InputStream in = new DigestInputStream(open(filename), messageDigest)) {
+			in.transferTo(OutputStream.nullOutputStream());
+			return DatatypeConverter.printHexBinary(messageDigest.digest());
+		} catch (IOException e) {
+			throw new StorageFileNotFoundException("Could not read file: " + filename, e);
+		}
+	}
+	
+	@Override
+	public InputStream open(String filename) {
+		InputStream in = null;
+		try {
+			in = Files.newInputStream(load(filename));
+			return isCompressed(filename) ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+		} catch (IOException e) {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+			}
+			throw new StorageFileNotFoundException("Could not read file: " + filename, e);
+		}
+	}
+	
+	@Override
+	public boolean isCompressed(String filename) {
+		return filename.endsWith(GZIP_SUFFIX);
 	}
 
 	@Override
-	public void store(MultipartFile file) {
+	public long append(String stagingName, long offset, InputStream chunk, String checksum) {
+		Path staged = stagingLocation.resolve(stagingName);
+		try {
+			Files.createDirectories(stagingLocation);
+			MessageDigest messageDigest = newDigest();
+			try (FileChannel channel = FileChannel.open(staged, 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+					ReadableByteChannel in = Channels.newChannel(
+							new DigestInputStream(chunk, messageDigest))) {
+				if (channel.size() < offset) {
+					throw new StorageException("Staged file is shorter than expected " + stagingName);
+				}
+				channel.truncate(offset);
+				
+				long position = offset;
+				long transferred;
+				while ((transferred = channel.transferFrom(in, position, TRANSFER_SIZE)) > 0) {
+					position += transferred;
+				}
+				
+				String actual = DatatypeConverter.printHexBinary(messageDigest.digest());
+				if (checksum != null && !checksum.equalsIgnoreCase(actual)) {
+					channel.truncate(offset);
+					throw new StorageChecksumException("Checksum mismatch for chunk of " + stagingName);
+				}
+				channel.force(false);
+				return position;
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to stage file " + stagingName, e);
+		}
+	}
+	
+	@Override
+	public AsynchronousFileChannel openStaging(String stagingName) {
+		try {
+			Files.createDirectories(stagingLocation);
+			return AsynchronousFileChannel.open(stagingLocation.resolve(stagingName), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+					StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException e) {
+			throw new StorageException("Failed to stage file " + stagingName, e);
+		}
+	}
+	
+	@Override
+	public StoredFile commit(String stagingName, String filename) {
+		Path staged = stagingLocation.resolve(stagingName);
+		try {
+			String storedName = encodedName(filename);
+			Path target = this.rootLocation.resolve(storedName);
+			Files.createDirectories(target.getParent());
+			if (!compression) {
+				StoredFile stored = new StoredFile(filename, Files.size(staged), checksum(staged));
+				sync(staged);
+				publish(staged, target);
+				return stored;
+			}
+			
+			MessageDigest messageDigest = newDigest();
+			long size;
+			try (InputStream in = new DigestInputStream(Files.newInputStream(staged), messageDigest)) {
+				size = writeAtomically(in, target);
+			}
+			Files.delete(staged);
+			return new StoredFile(storedName, size, 
+					DatatypeConverter.printHexBinary(messageDigest.digest()));
+		} catch (IOException e) {
+			throw new StorageException("Failed to store file " + filename, e);
+		}
+	}
+	
+	@Override
+	public void discard(String stagingName) {
 		try {
-			if (file.isEmpty()) {
-				throw new StorageException("Failed to store empty file " + file.getOriginalFilename());
+			Files.deleteIfExists(stagingLocation.resolve(stagingName));
+		} catch (IOException e) {
+			throw new StorageException("Failed to discard file " + stagingName, e);
+		}
+	}
+	
+	@Override
+	public int discardStagedBefore(long time) {
+		if (!Files.isDirectory(stagingLocation)) return 0;
+		int discarded = 0;
+		try (Stream<Path> files = Files.list(stagingLocation)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				try {
+					if (Files.getLastModifiedTime(file).toMillis() < time && Files.deleteIfExists(file)) {
+						discarded++;
+					}
+				} catch (NoSuchFileException e) {
+					// committed or discarded in the meantime
+				}
 			}
-			Files.copy(file.getInputStream(), this.rootLocation.resolve(file.getOriginalFilename()),
-					StandardCopyOption.REPLACE_EXISTING);
 		} catch (IOException e) {
-			throw new StorageException("Failed to store file " + file.getOriginalFilename(), e);
+			throw new StorageException("Failed to discard staged files", e);
 		}
+		return discarded;
 	}
 
 	@Override
 	public Stream<Path> loadAll() {
 		try {
-			return Files.walk(this.rootLocation, 1)
-					.filter(path -> !path.equals(this.rootLocation))
+			return Files.walk(this.rootLocation)
+					.filter(path -> !path.startsWith(this.stagingLocation) && Files.isRegularFile(path))
 					.map(path -> this.rootLocation.relativize(path));
 		} catch (IOException e) {
 			throw new StorageException("Failed to read stored files", e);
@@ -106,4 +301,164 @@ public class FileSystemStorageService implements StorageService {
 			throw new StorageException("Could not initialize storage", e);
 		}
 	}
+
+	/**
+	 * Get the name a file is stored under,
+	 * which carries the suffix of its encoding.
+	 * 
+	 * @param filename requested name
+	 * @return name to store the file under
+	 */
+	protected String encodedName(String filename) {
+		return compression ? filename + GZIP_SUFFIX : filename;
+	}
+	
+	/**
+	 * Write a stream to a file, compressing it
+	 * if compression is enabled. The file is synced
+	 * to disk before this method returns.
+	 * 
+	 * @param in content to write
+	 * @param target file to write to
+	 * @return number of bytes read from the stream
+	 * @throws IOException
+	 */
+	protected long write(InputStream in, Path target) throws IOException {
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				OutputStream out = compression ? newGzip(Channels.newOutputStream(channel)) 
+						: Channels.newOutputStream(channel)) {
+			long size = in.transferTo(out);
+			if (out instanceof GZIPOutputStream) {
+				((GZIPOutputStream) out).finish();
+			}
+			channel.force(true);
+			return size;
+		}
+	}
+	
+	/**
+	 * Write a stream to a temporary file next to
+	 * the target and rename it into place once it is
+	 * on disk, so a reader sees either the previous
+	 * file or the complete new one, even after a crash.
+	 * 
+	 * @param in content to write
+	 * @param target file to write to
+	 * @return number of bytes read from the stream
+	 * @throws IOException
+	 */
+	protected long writeAtomically(InputStream in, Path target) throws IOException {
+		Path temp = Files.createTempFile(target.getParent(), "write", ".tmp");
+		try {
+			long size = write(in, temp);
+			publish(temp, target);
+			return size;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	/**
+	 * Check that written content is not empty
+	 * and matches its expected checksum.
+	 * 
+	 * @param filename name of the file
+	 * @param size number of bytes written
+	 * @param actual hex encoded MD5 digest of the written bytes
+	 * @param expected expected digest, or null to skip verification
+	 */
+	protected void verify(String filename, long size, String actual, String expected) {
+		if (size == 0) {
+			throw new StorageException("Failed to store empty file " + filename);
+		}
+		if (expected != null && !expected.equalsIgnoreCase(actual)) {
+			throw new StorageChecksumException("Checksum mismatch for " + filename);
+		}
+	}
+	
+	/**
+	 * Force the content of a file to disk.
+	 * 
+	 * @param file file to sync
+	 * @throws IOException
+	 */
+	protected void sync(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+	
+	/**
+	 * Atomically rename a file that is already on
+	 * disk and sync the directory holding it, so
+	 * the new name survives a crash.
+	 * 
+	 * @param file complete file
+	 * @param target name to publish it under
+	 * @throws IOException
+	 */
+	protected void publish(Path file, Path target) throws IOException {
+		Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+		try (FileChannel directory = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+			directory.force(true);
+		} catch (IOException e) {
+			// directories cannot be opened for syncing on every platform
+		}
+	}
+	
+	/**
+	 * Wrap a stream in a gzip stream using the
+	 * configured compression level.
+	 * 
+	 * @param out stream to write compressed data to
+	 * @return gzip stream
+	 * @throws IOException
+	 */
+	private GZIPOutputStream newGzip(OutputStream out) throws IOException {
+		return new GZIPOutputStream(out, BUFFER_SIZE) {
+			{
+				def.setLevel(compressionLevel);
+			}
+		};
+	}
+
+	/**
+	 * Compute the checksum of a file in
+	 * a single streaming pass.
+	 * 
+	 * @param path file to read
+	 * @return hex encoded MD5 digest
+	 * @throws IOException
+	 */
+	protected String checksum(Path path) throws IOException {
+		MessageDigest messageDigest = newDigest();
+		try (InputStream in = new DigestInputStream(Files.newInputStream(path), messageDigest)) {
+			in.transferTo(OutputStream.nullOutputStream());
+			return DatatypeConverter.printHexBinary(messageDigest.digest());
+		}
+	}
+	
+	/**
+	 * Create the digest used for file checksums.
+	 * 
+	 * @return MD5 message digest
+	 */
+	protected MessageDigest newDigest() {
+		return newDigest("MD5");
+	}
+	
+	/**
+	 * Create a message digest for the given algorithm.
+	 * 
+	 * @param algorithm digest algorithm
+	 * @return message digest
+	 */
+	protected MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new StorageException("Checksum algorithm not available", e);
+		}
+	}
 }
@@ -0,0 +1,24 @@
+package com.notesapp.storage;
+
+/**
+ * A class to handle a page delta that cannot
+ * be applied to the stored backup.
+ * 
+ * @author stephen
+ *
+ */
+public class InvalidDeltaException extends StorageException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 6927015243771148930L;
+
+	public InvalidDeltaException(String message) {
+		super(message);
+	}
+
+	public InvalidDeltaException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
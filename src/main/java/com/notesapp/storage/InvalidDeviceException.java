@@ -0,0 +1,20 @@
+package com.notesapp.storage;
+
+/**
+ * A class to handle a backup uploaded
+ * with a device id that cannot be stored.
+ * 
+ * @author stephen
+ *
+ */
+public class InvalidDeviceException extends StorageException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2318873526905927764L;
+
+	public InvalidDeviceException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,295 @@
+package com.notesapp.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * A class for exchanging SQLite backups page by page.
+ * A client describes its database with the MD5 digest of
+ * every page and only the pages that differ are sent in
+ * either direction. Pages travel as a stream of records,
+ * each a 4 byte big endian page number followed by the
+ * page content, in ascending page order. Page numbers
+ * start at 1 like they do in SQLite. A manifest may not
+ * describe more pages than {@code storage.max-manifest-pages},
+ * nor a database larger than the backup size limit.
+ *
+ * @author stephen
+ *
+ */
+@Service
+public class PageDeltaService {
+
+	private static final int MIN_PAGE_SIZE = 512;
+	private static final int MAX_PAGE_SIZE = 65536;
+	private static final Pattern PAGE_HASH = Pattern.compile("[0-9a-fA-F]{32}");
+
+	private final StorageService storageService;
+
+	private final StorageProperties properties;
+
+	@Autowired
+	public PageDeltaService(StorageService storageService, StorageProperties properties) {
+		this.storageService = storageService;
+		this.properties = properties;
+	}
+
+	/**
+	 * Find the pages of a client's database that
+	 * differ from a stored backup.
+	 *
+	 * @param filename stored backup, or null if there is none
+	 * @param pageSize database page size
+	 * @param hashes hex encoded MD5 digest of each client page
+	 * @return page numbers the client has to send
+	 */
+	public List<Integer> missingPages(String filename, int pageSize, List<String> hashes) {
+		checkManifest(pageSize, hashes);
+		List<Integer> missing = new ArrayList<>();
+		MessageDigest messageDigest = newDigest();
+
+		try (InputStream in = openPrevious(filename)) {
+			for (int page = 1; page <= hashes.size(); page++) {
+				byte[] bytes = in.readNBytes(pageSize);
+				String hash = DatatypeConverter.printHexBinary(messageDigest.digest(bytes));
+				if (bytes.length == 0 || !hash.equalsIgnoreCase(hashes.get(page - 1))) {
+					missing.add(page);
+				}
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to read file " + filename, e);
+		}
+		return missing;
+	}
+
+	/**
+	 * Build a new backup from a stored backup and
+	 * the pages that changed. The result is staged and
+	 * only committed if it matches the checksum of the
+	 * client's database.
+	 *
+	 * @param previous stored backup, or null if there is none
+	 * @param filename name to store the new backup under
+	 * @param pageSize database page size
+	 * @param size size of the new database in bytes
+	 * @param delta stream of page records
+	 * @param checksum hex encoded MD5 digest of the new database
+	 * @return description of the stored backup
+	 */
+	public StoredFile applyDelta(String previous, String filename, int pageSize, long size,
+			InputStream delta, String checksum) {
+		checkPageSize(pageSize);
+		if (size <= 0) throw new InvalidDeltaException("File cannot be empty");
+
+		String stagingName = UUID.randomUUID().toString();
+		try (InputStream old = openPrevious(previous)) {
+			PageMerge merge = new PageMerge(old, new DataInputStream(delta), pageSize, size);
+			try {
+				storageService.append(stagingName, 0, new SequenceInputStream(merge), checksum);
+			} catch (UncheckedIOException e) {
+				throw new InvalidDeltaException("Could not read page delta", e.getCause());
+			}
+			merge.checkFinished();
+			return storageService.commit(stagingName, filename);
+		} catch (IOException e) {
+			throw new StorageException("Failed to read file " + previous, e);
+		} finally {
+			storageService.discard(stagingName);
+		}
+	}
+
+	/**
+	 * Write the pages of a stored backup that
+	 * differ from a client's database.
+	 *
+	 * @param filename stored backup
+	 * @param pageSize database page size
+	 * @param hashes hex encoded MD5 digest of each client page
+	 * @param out stream to write page records to
+	 * @throws IOException
+	 */
+	public void writeDelta(String filename, int pageSize, List<String> hashes,
+			OutputStream out) throws IOException {
+		checkManifest(pageSize, hashes);
+		MessageDigest messageDigest = newDigest();
+		DataOutputStream data = new DataOutputStream(out);
+
+		try (InputStream in = storageService.open(filename)) {
+			byte[] bytes;
+			for (int page = 1; (bytes = in.readNBytes(pageSize)).length > 0; page++) {
+				String hash = DatatypeConverter.printHexBinary(messageDigest.digest(bytes));
+				if (page > hashes.size() || !hash.equalsIgnoreCase(hashes.get(page - 1))) {
+					data.writeInt(page);
+					data.write(bytes);
+				}
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Check that a manifest has a usable page size,
+	 * no more pages than allowed, and a well formed
+	 * hash for every page.
+	 *
+	 * @param pageSize page size in bytes
+	 * @param hashes hex encoded MD5 digest of each page
+	 */
+	public void checkManifest(int pageSize, List<String> hashes) {
+		checkPageSize(pageSize);
+		if (hashes == null) throw new InvalidDeltaException("Page hashes are missing");
+		long maxPages = Math.min(properties.getMaxManifestPages(),
+				(properties.getMaxBackupSize() + pageSize - 1) / pageSize);
+		if (hashes.size() > maxPages) {
+			throw new InvalidDeltaException("Manifest has more than " + maxPages + " pages");
+		}
+		for (int page = 1; page <= hashes.size(); page++) {
+			String hash = hashes.get(page - 1);
+			if (hash == null || !PAGE_HASH.matcher(hash).matches()) {
+				throw new InvalidDeltaException("Invalid hash of page " + page);
+			}
+		}
+	}
+
+	/**
+	 * Open a stored backup for sequential reading.
+	 *
+	 * @param filename stored backup, or null if there is none
+	 * @return stream of the backup, empty if there is none
+	 * @throws IOException
+	 */
+	private InputStream openPrevious(String filename) throws IOException {
+		if (filename == null) return InputStream.nullInputStream();
+		return storageService.open(filename);
+	}
+
+	/**
+	 * Check that a page size is one SQLite can use.
+	 *
+	 * @param pageSize page size in bytes
+	 */
+	private void checkPageSize(int pageSize) {
+		if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE
+				|| Integer.bitCount(pageSize) != 1) {
+			throw new InvalidDeltaException("Invalid page size " + pageSize);
+		}
+	}
+
+	/**
+	 * Create the digest used for page hashes.
+	 *
+	 * @return MD5 message digest
+	 */
+	private MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new StorageException("Checksum algorithm not available", e);
+		}
+	}
+
+	/**
+	 * Produces the pages of the new database in order,
+	 * taking each one from the delta if it was sent or
+	 * from the previous backup otherwise. Only one page
+	 * is held in memory at a time.
+	 */
+	private static class PageMerge implements Enumeration<InputStream> {
+		private final InputStream previous;
+		private final DataInputStream delta;
+		private final int pageSize;
+		private final long size;
+		private final long pageCount;
+		private long page = 1;
+		private long nextDeltaPage;
+
+		PageMerge(InputStream previous, DataInputStream delta, int pageSize, long size)
+				throws IOException {
+			this.previous = previous;
+			this.delta = delta;
+			this.pageSize = pageSize;
+			this.size = size;
+			this.pageCount = (size + pageSize - 1) / pageSize;
+			this.nextDeltaPage = readPageNumber();
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return page <= pageCount;
+		}
+
+		@Override
+		public InputStream nextElement() {
+			if (!hasMoreElements()) throw new NoSuchElementException();
+			long current = page++;
+			int length = (int) Math.min(pageSize, size - (current - 1) * pageSize);
+
+			try {
+				byte[] old = previous.readNBytes(pageSize);
+				byte[] bytes;
+				if (current == nextDeltaPage) {
+					bytes = delta.readNBytes(length);
+					if (bytes.length < length) {
+						throw new InvalidDeltaException("Page " + current + " is incomplete");
+					}
+					nextDeltaPage = readPageNumber();
+				} else {
+					if (old.length < length) {
+						throw new InvalidDeltaException("Page " + current + " is missing");
+					}
+					bytes = old;
+				}
+				return new ByteArrayInputStream(bytes, 0, length);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/**
+		 * Check that every record in the delta was used.
+		 */
+		void checkFinished() {
+			if (nextDeltaPage != -1) {
+				throw new InvalidDeltaException("Page " + nextDeltaPage + " is out of order");
+			}
+		}
+
+		/**
+		 * Read the page number of the next record.
+		 *
+		 * @return page number or -1 at the end of the delta
+		 * @throws IOException
+		 */
+		private long readPageNumber() throws IOException {
+			try {
+				long number = delta.readInt();
+				if (number < page || number > pageCount) {
+					throw new InvalidDeltaException("Page " + number + " is out of order");
+				}
+				return number;
+			} catch (EOFException e) {
+				return -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.notesapp.storage;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * A class for configuring the background
+ * processing of uploaded backups.
+ * 
+ * @author stephen
+ *
+ */
+@ConfigurationProperties("backup.pipeline")
+public class PipelineProperties {
+
+	/**
+	 * Number of threads processing uploads.
+	 */
+	private int threads = 2;
+	
+	/**
+	 * Number of spooled uploads that may wait for
+	 * a thread before new uploads are rejected.
+	 */
+	private int queueCapacity = 16;
+	
+	/**
+	 * Milliseconds the state of a finished
+	 * job is kept for clients to poll.
+	 */
+	private long jobRetention = 60L * 60 * 1000;
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public long getJobRetention() {
+		return jobRetention;
+	}
+
+	public void setJobRetention(long jobRetention) {
+		this.jobRetention = jobRetention;
+	}
+}
@@ -0,0 +1,95 @@
+package com.notesapp.storage;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * A class for configuring how many backup versions
+ * are retained and how much work the compactor may
+ * do in one run.
+ * 
+ * @author stephen
+ *
+ */
+@ConfigurationProperties("backup.retention")
+public class RetentionProperties {
+
+	/**
+	 * Number of most recent versions always retained.
+	 */
+	private int keepLast = 5;
+	
+	/**
+	 * Number of most recent days for which the
+	 * newest version of the day is retained.
+	 */
+	private int keepDaily = 7;
+	
+	/**
+	 * Number of most recent weeks for which the
+	 * newest version of the week is retained.
+	 */
+	private int keepWeekly = 4;
+	
+	/**
+	 * Number of users or versions loaded per batch.
+	 */
+	private int batchSize = 100;
+	
+	/**
+	 * Maximum number of files deleted in one run.
+	 */
+	private int maxDeletesPerRun = 500;
+	
+	/**
+	 * Maximum number of bytes deleted in one run.
+	 */
+	private long maxBytesPerRun = 512L * 1024 * 1024;
+
+	public int getKeepLast() {
+		return keepLast;
+	}
+
+	public void setKeepLast(int keepLast) {
+		this.keepLast = keepLast;
+	}
+
+	public int getKeepDaily() {
+		return keepDaily;
+	}
+
+	public void setKeepDaily(int keepDaily) {
+		this.keepDaily = keepDaily;
+	}
+
+	public int getKeepWeekly() {
+		return keepWeekly;
+	}
+
+	public void setKeepWeekly(int keepWeekly) {
+		this.keepWeekly = keepWeekly;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getMaxDeletesPerRun() {
+		return maxDeletesPerRun;
+	}
+
+	public void setMaxDeletesPerRun(int maxDeletesPerRun) {
+		this.maxDeletesPerRun = maxDeletesPerRun;
+	}
+
+	public long getMaxBytesPerRun() {
+		return maxBytesPerRun;
+	}
+
+	public void setMaxBytesPerRun(long maxBytesPerRun) {
+		this.maxBytesPerRun = maxBytesPerRun;
+	}
+}
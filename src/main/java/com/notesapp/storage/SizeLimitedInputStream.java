@@ -0,0 +1,61 @@
+package com.notesapp.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream that fails with an {@link UploadTooLargeException}
+ * as soon as more than a given number of bytes is read
+ * from it, so an upload without a trustworthy length
+ * cannot fill the disk.
+ * 
+ * @author stephen
+ *
+ */
+public class SizeLimitedInputStream extends FilterInputStream {
+
+	private final long limit;
+	
+	private long count;
+	
+	/**
+	 * @param in stream to read
+	 * @param limit largest number of bytes allowed
+	 */
+	public SizeLimitedInputStream(InputStream in, long limit) {
+		super(in);
+		this.limit = limit;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) count(1);
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read > 0) count(read);
+		return read;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count(skipped);
+		return skipped;
+	}
+	
+	/**
+	 * Count bytes read and fail once the limit is passed.
+	 * 
+	 * @param n number of bytes read
+	 */
+	private void count(long n) {
+		count += n;
+		if (count > limit) throw new UploadTooLargeException(limit);
+	}
+}
@@ -0,0 +1,51 @@
+package com.notesapp.storage;
+
+import java.util.Date;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.notesapp.model.UploadSession;
+import com.notesapp.repository.UploadSessionRepository;
+
+/**
+ * A class that removes abandoned uploads in the
+ * background. Chunked uploads that were started longer
+ * ago than the staging retention are discarded with
+ * their staging files, and staging files that have not
+ * been written to for that long are removed, which also
+ * covers streamed uploads cut off by a restart.
+ *
+ * @author stephen
+ *
+ */
+@Component
+public class StagingSweeper {
+
+	@Autowired
+	private UploadSessionRepository uploadSessionRepository;
+
+	@Autowired
+	private StorageService storageService;
+
+	@Autowired
+	private StorageProperties properties;
+
+	/**
+	 * Run one sweep.
+	 *
+	 * @return number of staging files removed
+	 */
+	@Scheduled(initialDelayString = "${storage.staging-sweep-interval:3600000}",
+			fixedDelayString = "${storage.staging-sweep-interval:3600000}")
+	public int sweep() {
+		long cutoff = System.currentTimeMillis() - properties.getStagingRetention();
+		for (UploadSession session : uploadSessionRepository.findByCreatedAtBefore(new Date(cutoff))) {
+			if (uploadSessionRepository.claim(session.getSessionId()) > 0) {
+				storageService.discard(session.getSessionId());
+			}
+		}
+		return storageService.discardStagedBefore(cutoff);
+	}
+}
@@ -0,0 +1,24 @@
+package com.notesapp.storage;
+
+/**
+ * A class to handle data that does not match
+ * the checksum sent with it.
+ * 
+ * @author stephen
+ *
+ */
+public class StorageChecksumException extends StorageException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2318062675142553817L;
+
+	public StorageChecksumException(String message) {
+		super(message);
+	}
+
+	public StorageChecksumException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -15,6 +15,67 @@ public class StorageProperties {
 	 * Folder location for storing files
 	 */
 	private String location = "upload-dir";
+	
+	/**
+	 * Storage implementation to use. Either
+	 * "filesystem" to store files by name or
+	 * "content-addressed" to store deduplicated
+	 * blobs by hash.
+	 */
+	private String mode = "filesystem";
+	
+	/**
+	 * Compress files with gzip as they are stored.
+	 */
+	private boolean compression = true;
+	
+	/**
+	 * Deflate level used for compression, from 1
+	 * (fastest) to 9 (smallest).
+	 */
+	private int compressionLevel = 6;
+	
+	/**
+	 * Largest backup, in bytes, that may be uploaded
+	 * in one request or assembled from chunks.
+	 */
+	private long maxBackupSize = 1024L * 1024 * 1024;
+	
+	/**
+	 * Largest chunk, in bytes, of a chunked upload.
+	 */
+	private long maxChunkSize = 64L * 1024 * 1024;
+	
+	/**
+	 * Most pages a page manifest may describe.
+	 */
+	private int maxManifestPages = 256 * 1024;
+	
+	/**
+	 * Milliseconds a content-addressed blob is kept
+	 * after it was last stored, even if nothing points
+	 * at it, so a backup that is being published cannot
+	 * lose its blob.
+	 */
+	private long blobGracePeriod = 60L * 60 * 1000;
+	
+	/**
+	 * Milliseconds a chunked upload may take before it
+	 * is discarded, and a staging file may go unwritten
+	 * before it is removed.
+	 */
+	private long stagingRetention = 24L * 60 * 60 * 1000;
+	
+	/**
+	 * Move files stored before the per user layout
+	 * into it in the background.
+	 */
+	private boolean layoutMigration = false;
+	
+	/**
+	 * Number of files moved per migration run.
+	 */
+	private int layoutMigrationBatchSize = 100;
 
 	public String getLocation() {
 		return location;
@@ -24,4 +85,84 @@ public class StorageProperties {
 		this.location = location;
 	}
 
+	public String getMode() {
+		return mode;
+	}
+
+	public void setMode(String mode) {
+		this.mode = mode;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public long getMaxBackupSize() {
+		return maxBackupSize;
+	}
+
+	public void setMaxBackupSize(long maxBackupSize) {
+		this.maxBackupSize = maxBackupSize;
+	}
+
+	public long getMaxChunkSize() {
+		return maxChunkSize;
+	}
+
+	public void setMaxChunkSize(long maxChunkSize) {
+		this.maxChunkSize = maxChunkSize;
+	}
+
+	public int getMaxManifestPages() {
+		return maxManifestPages;
+	}
+
+	public void setMaxManifestPages(int maxManifestPages) {
+		this.maxManifestPages = maxManifestPages;
+	}
+
+	public long getBlobGracePeriod() {
+		return blobGracePeriod;
+	}
+
+	public void setBlobGracePeriod(long blobGracePeriod) {
+		this.blobGracePeriod = blobGracePeriod;
+	}
+
+	public long getStagingRetention() {
+		return stagingRetention;
+	}
+
+	public void setStagingRetention(long stagingRetention) {
+		this.stagingRetention = stagingRetention;
+	}
+
+	public boolean isLayoutMigration() {
+		return layoutMigration;
+	}
+
+	public void setLayoutMigration(boolean layoutMigration) {
+		this.layoutMigration = layoutMigration;
+	}
+
+	public int getLayoutMigrationBatchSize() {
+		return layoutMigrationBatchSize;
+	}
+
+	public void setLayoutMigrationBatchSize(int layoutMigrationBatchSize) {
+		this.layoutMigrationBatchSize = layoutMigrationBatchSize;
+	}
+
 }
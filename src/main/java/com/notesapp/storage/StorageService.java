@@ -3,6 +3,8 @@ package com.notesapp.storage;
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.file.Path;
 import java.util.stream.Stream;
 
@@ -20,11 +22,92 @@ public interface StorageService {
 	void init();
 	
 	/**
-	 * Store file in file system.
+	 * Store file in file system. The checksum
+	 * of the file is computed while it is written.
+	 * The name of the stored file may differ from
+	 * the requested one, for example when it
+	 * is compressed.
 	 * 
 	 * @param file to be stored
+	 * @param filename name to store the file under
+	 * @return description of the stored file
 	 */
-	void store(MultipartFile file);
+	StoredFile store(MultipartFile file, String filename);
+	
+	/**
+	 * Store the content of a stream in a single pass,
+	 * computing its size and checksum on the way. The
+	 * file is only published if the stream is not empty
+	 * and matches the expected checksum.
+	 * 
+	 * @param in content to be stored, read to its end
+	 * @param filename name to store the file under
+	 * @param checksum hex encoded MD5 digest of the content,
+	 * or null to skip verification
+	 * @return description of the stored file
+	 */
+	StoredFile store(InputStream in, String filename, String checksum);
+	
+	/**
+	 * Compute the checksum of a stored file
+	 * in a single streaming pass.
+	 * 
+	 * @param filename name of file
+	 * @return hex encoded MD5 digest
+	 */
+	String checksum(String filename);
+	
+	/**
+	 * Append a chunk to a staging file. Anything
+	 * past the offset is discarded first, so a chunk
+	 * whose previous attempt was cut off can be resent.
+	 * If the chunk does not match its checksum the
+	 * staging file is truncated back to the offset.
+	 * 
+	 * @param stagingName name of the staging file
+	 * @param offset number of bytes already staged
+	 * @param chunk chunk content
+	 * @param checksum hex encoded MD5 digest of the chunk, 
+	 * or null to skip verification
+	 * @return size of the staging file after the append
+	 */
+	long append(String stagingName, long offset, InputStream chunk, String checksum);
+	
+	/**
+	 * Open an empty staging file for writing without
+	 * blocking. Any previous content is discarded. The
+	 * caller closes the channel before committing.
+	 * 
+	 * @param stagingName name of the staging file
+	 * @return channel to write the staging file with
+	 */
+	AsynchronousFileChannel openStaging(String stagingName);
+	
+	/**
+	 * Move a staging file into place atomically,
+	 * replacing any file with the same name.
+	 * 
+	 * @param stagingName name of the staging file
+	 * @param filename name to store the file under
+	 * @return description of the stored file
+	 */
+	StoredFile commit(String stagingName, String filename);
+	
+	/**
+	 * Delete a staging file if it exists.
+	 * 
+	 * @param stagingName name of the staging file
+	 */
+	void discard(String stagingName);
+	
+	/**
+	 * Delete the staging files that were last
+	 * written to before a point in time.
+	 * 
+	 * @param time milliseconds since the epoch
+	 * @return number of files deleted
+	 */
+	int discardStagedBefore(long time);
 	
 	/**
 	 * Get all files.
@@ -41,6 +124,23 @@ public interface StorageService {
 	 */
 	Path load(String filename);
 	
+	/**
+	 * Open a file for reading. Compressed
+	 * files are decompressed as they are read.
+	 * 
+	 * @param filename name of file
+	 * @return stream of the file content
+	 */
+	InputStream open(String filename);
+	
+	/**
+	 * Check whether a file is stored gzip compressed.
+	 * 
+	 * @param filename name of file
+	 * @return true if the file is compressed
+	 */
+	boolean isCompressed(String filename);
+	
 	/**
 	 * Load file as resource.
 	 * 
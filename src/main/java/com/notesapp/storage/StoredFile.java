@@ -0,0 +1,49 @@
+package com.notesapp.storage;
+
+/**
+ * A class that describes a file written
+ * by the storage service. The size and checksum
+ * are computed while the file is being written
+ * so they never have to be derived from the
+ * stored bytes again.
+ *
+ * @author stephen
+ *
+ */
+public class StoredFile {
+	/**
+	 * Name the file is stored under.
+	 */
+	private final String filename;
+	/**
+	 * Size of the file content, before any compression.
+	 */
+	private final long size;
+	/**
+	 * Hex encoded MD5 digest of the file content.
+	 */
+	private final String checksum;
+
+	/**
+	 * @param filename name the file is stored under
+	 * @param size size of the file content
+	 * @param checksum hex encoded MD5 digest
+	 */
+	public StoredFile(String filename, long size, String checksum) {
+		this.filename = filename;
+		this.size = size;
+		this.checksum = checksum;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getChecksum() {
+		return checksum;
+	}
+}
@@ -0,0 +1,60 @@
+package com.notesapp.storage;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * A class for configuring how backups travel
+ * over the network. Transfers of at least the
+ * async threshold use non-blocking servlet I/O,
+ * so a slow client does not hold a request thread
+ * while the network is busy.
+ * 
+ * @author stephen
+ *
+ */
+@ConfigurationProperties("backup.transfer")
+public class TransferProperties {
+
+	/**
+	 * Smallest transfer, in bytes, sent or received
+	 * without blocking. Smaller transfers finish on
+	 * the request thread. Uploads of unknown length
+	 * always count as large.
+	 */
+	private long asyncThreshold = 1024 * 1024;
+	
+	/**
+	 * Size of the buffer each transfer moves data through.
+	 */
+	private int bufferSize = 64 * 1024;
+	
+	/**
+	 * Milliseconds a transfer may take before
+	 * it is abandoned, 0 for no limit.
+	 */
+	private long timeout = 60L * 60 * 1000;
+
+	public long getAsyncThreshold() {
+		return asyncThreshold;
+	}
+
+	public void setAsyncThreshold(long asyncThreshold) {
+		this.asyncThreshold = asyncThreshold;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+}
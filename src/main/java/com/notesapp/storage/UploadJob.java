@@ -0,0 +1,86 @@
+package com.notesapp.storage;
+
+/**
+ * A class that tracks an upload being
+ * processed by the {@link UploadPipeline}.
+ * 
+ * @author stephen
+ *
+ */
+public class UploadJob {
+	
+	/**
+	 * Processing state of a job.
+	 */
+	public enum State {
+		QUEUED, PROCESSING, COMPLETED, FAILED
+	}
+	
+	private final String jobId;
+	private final long userId;
+	private final String deviceId;
+	private final String filename;
+	private volatile State state = State.QUEUED;
+	private volatile String message;
+	private volatile long finishedAt;
+	
+	/**
+	 * @param jobId job identifier, also the name of its staging file
+	 * @param userId owner of the upload
+	 * @param deviceId device that sent the upload, may be null
+	 * @param filename name of the uploaded file
+	 */
+	public UploadJob(String jobId, long userId, String deviceId, String filename) {
+		this.jobId = jobId;
+		this.userId = userId;
+		this.deviceId = deviceId;
+		this.filename = filename;
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public long getUserId() {
+		return userId;
+	}
+
+	public String getDeviceId() {
+		return deviceId;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public long getFinishedAt() {
+		return finishedAt;
+	}
+	
+	/**
+	 * Mark the job as being processed.
+	 */
+	void start() {
+		state = State.PROCESSING;
+	}
+	
+	/**
+	 * Mark the job as finished.
+	 * 
+	 * @param state final state
+	 * @param message outcome of the job
+	 */
+	void finish(State state, String message) {
+		this.message = message;
+		this.finishedAt = System.currentTimeMillis();
+		this.state = state;
+	}
+}
@@ -0,0 +1,261 @@
+package com.notesapp.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.notesapp.model.BackupVersion;
+import com.notesapp.repository.BackupVersionRepository;
+import com.notesapp.repository.UserRepository;
+
+/**
+ * A class that stores uploaded backups off the
+ * request thread. The request only spools the upload
+ * to a staging file, checking its checksum on the way;
+ * hashing, compressing and committing the file and
+ * recording the new version run on a bounded pool of
+ * threads. Uploads are rejected while the queue in front
+ * of the pool is full, so a burst of large uploads cannot
+ * pile up unbounded work. Jobs are kept in memory and
+ * do not survive a restart.
+ * 
+ * @author stephen
+ *
+ */
+@Service
+public class UploadPipeline {
+
+	private static final Logger log = LoggerFactory.getLogger(UploadPipeline.class);
+	
+	private final ConcurrentMap<String, UploadJob> jobs = new ConcurrentHashMap<>();
+	
+	private final ThreadPoolExecutor executor;
+	
+	private final PipelineProperties properties;
+	
+	@Autowired
+	private StorageService storageService;
+	
+	@Autowired
+	private UserRepository userRepository;
+	
+	@Autowired
+	private BackupVersionRepository versionRepository;
+	
+	@Autowired
+	private BackupLayout backupLayout;
+	
+	@Autowired
+	private BackupLocks backupLocks;
+	
+	private final TransactionTemplate transaction;
+	
+	@Autowired
+	public UploadPipeline(PipelineProperties properties, 
+			PlatformTransactionManager transactionManager) {
+		this.properties = properties;
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.executor = new ThreadPoolExecutor(properties.getThreads(), properties.getThreads(),
+				0L, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(Math.max(1, properties.getQueueCapacity())),
+				new CustomizableThreadFactory("upload-"));
+	}
+	
+	/**
+	 * Spool an upload and queue it for processing.
+	 * 
+	 * @param userId owner of the upload
+	 * @param deviceId device that sent the upload, may be null
+	 * @param file uploaded file
+	 * @param checksum hex encoded MD5 digest of the file, may be null
+	 * @return the queued job
+	 */
+	public UploadJob submit(long userId, String deviceId, MultipartFile file, String checksum) {
+		checkDevice(deviceId);
+		if (executor.getQueue().remainingCapacity() == 0) {
+			throw new UploadRejectedException("Too many uploads in progress");
+		}
+		
+		UploadJob job = new UploadJob(UUID.randomUUID().toString(), userId, deviceId,
+				file.getOriginalFilename());
+		try (InputStream in = file.getInputStream()) {
+			storageService.append(job.getJobId(), 0, in, checksum);
+		} catch (IOException e) {
+			storageService.discard(job.getJobId());
+			throw new StorageException("Failed to spool upload " + job.getJobId(), e);
+		} catch (StorageException e) {
+			storageService.discard(job.getJobId());
+			throw e;
+		}
+		
+		jobs.put(job.getJobId(), job);
+		try {
+			executor.execute(() -> process(job));
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.getJobId());
+			storageService.discard(job.getJobId());
+			throw new UploadRejectedException("Too many uploads in progress", e);
+		}
+		return job;
+	}
+	
+	/**
+	 * Commit a staged upload and publish it on the
+	 * upload pool, so the calling thread is not held
+	 * while the file is synced and moved into place.
+	 * The staging file is discarded either way.
+	 * 
+	 * @param userId owner of the upload
+	 * @param deviceId device that sent the upload, may be null
+	 * @param stagingName name of the staging file
+	 * @param filename name of the uploaded file
+	 * @return completes with false if the account no longer exists
+	 */
+	public CompletableFuture<Boolean> publishStaged(long userId, String deviceId, 
+			String stagingName, String filename) {
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					StoredFile stored = storageService.commit(stagingName, 
+							backupLayout.keyFor(userId, filename));
+					return publish(userId, deviceId, stored);
+				} finally {
+					storageService.discard(stagingName);
+				}
+			}, executor);
+		} catch (RejectedExecutionException e) {
+			storageService.discard(stagingName);
+			throw new UploadRejectedException("Too many uploads in progress", e);
+		}
+	}
+	
+	/**
+	 * Find a job owned by a user.
+	 * 
+	 * @param jobId job identifier
+	 * @param userId owner of the job
+	 * @return the job or null if the user has no such job
+	 */
+	public UploadJob getJob(String jobId, long userId) {
+		UploadJob job = jobs.get(jobId);
+		if (job == null || job.getUserId() != userId) return null;
+		return job;
+	}
+	
+	/**
+	 * Record a newly stored file as the latest
+	 * version of a device's backup, and of the user's
+	 * backup as a whole. Older versions are left to the
+	 * {@link BackupCompactor}. Only the backup columns of
+	 * the user are written, under the user's backup lock,
+	 * so a concurrent upload or account change is never
+	 * overwritten with stale values. The user and the new
+	 * version are written in one transaction, so the user
+	 * never points at a backup without a version. The file
+	 * is dropped if either write fails, if the account
+	 * was deleted while it was being uploaded, or if
+	 * the device id cannot be stored.
+	 * 
+	 * @param userId user that owns the backup
+	 * @param deviceId device that sent the backup, may be null
+	 * @param stored the stored file
+	 * @return false if the account no longer exists
+	 */
+	public boolean publish(long userId, String deviceId, StoredFile stored) {
+		try {
+			checkDevice(deviceId);
+		} catch (InvalidDeviceException e) {
+			storageService.delete(stored.getFilename());
+			throw e;
+		}
+		
+		synchronized (backupLocks.lockFor(userId)) {
+			boolean published;
+			try {
+				published = transaction.execute(status -> {
+					Date date = new Date();
+					if (userRepository.updateBackup(userId, stored.getFilename(), date, 
+							stored.getSize(), stored.getChecksum()) == 0) return false;
+					versionRepository.save(new BackupVersion(userId, deviceId, 
+							stored.getFilename(), stored.getSize(), stored.getChecksum(), date));
+					return true;
+				});
+			} catch (RuntimeException e) {
+				storageService.delete(stored.getFilename());
+				throw e;
+			}
+			if (!published) storageService.delete(stored.getFilename());
+			return published;
+		}
+	}
+	
+	/**
+	 * Forget finished jobs once clients
+	 * have had time to poll them.
+	 */
+	@Scheduled(fixedDelayString = "${backup.pipeline.job-retention:3600000}")
+	public void expireJobs() {
+		long cutoff = System.currentTimeMillis() - properties.getJobRetention();
+		jobs.values().removeIf(job -> job.getFinishedAt() != 0 && job.getFinishedAt() < cutoff);
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	/**
+	 * Check that a device id fits in a backup version.
+	 * 
+	 * @param deviceId device id sent by the client, may be null
+	 */
+	private void checkDevice(String deviceId) {
+		if (deviceId != null && (deviceId.isBlank() 
+				|| deviceId.length() > BackupVersion.MAX_DEVICE_ID_LENGTH)) {
+			throw new InvalidDeviceException("Invalid device id");
+		}
+	}
+	
+	/**
+	 * Commit a spooled upload and publish it.
+	 * 
+	 * @param job job to process
+	 */
+	private void process(UploadJob job) {
+		job.start();
+		try {
+			StoredFile stored = storageService.commit(job.getJobId(), 
+					backupLayout.keyFor(job.getUserId(), job.getFilename()));
+			if (publish(job.getUserId(), job.getDeviceId(), stored)) {
+				job.finish(UploadJob.State.COMPLETED, "Success");
+			} else {
+				job.finish(UploadJob.State.FAILED, "Account no longer exists");
+			}
+		} catch (RuntimeException e) {
+			log.error("Failed to process upload job {}", job.getJobId(), e);
+			job.finish(UploadJob.State.FAILED, "Failed to store backup");
+		} finally {
+			storageService.discard(job.getJobId());
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.notesapp.storage;
+
+/**
+ * A class to handle uploads that cannot be
+ * queued because the upload pipeline is full.
+ * 
+ * @author stephen
+ *
+ */
+public class UploadRejectedException extends StorageException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4127350918263740415L;
+
+	public UploadRejectedException(String message) {
+		super(message);
+	}
+
+	public UploadRejectedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,20 @@
+package com.notesapp.storage;
+
+/**
+ * A class to handle an upload that is
+ * larger than the storage allows.
+ * 
+ * @author stephen
+ *
+ */
+public class UploadTooLargeException extends StorageException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4630917297150485217L;
+
+	public UploadTooLargeException(long limit) {
+		super("Upload exceeds the limit of " + limit + " bytes");
+	}
+}
@@ -0,0 +1,86 @@
+package com.notesapp.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.spring5.SpringTemplateEngine;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import com.notesapp.services.VerificationTemplate;
+
+/**
+ * Compares rendering the verification email with the
+ * template engine against the precompiled
+ * {@link VerificationTemplate}. Both produce the
+ * UTF-8 encoded body. Run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.notesapp.benchmark.VerificationTemplateBenchmark}.
+ * 
+ * @author stephen
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerificationTemplateBenchmark {
+
+	private static final String RECEIVER = "test@yahoo.com";
+	private static final int CODE = 123456;
+	
+	private TemplateEngine templateEngine;
+	
+	private VerificationTemplate verificationTemplate;
+	
+	@Setup
+	public void setup() {
+		ClassLoaderTemplateResolver resolver = new ClassLoaderTemplateResolver();
+		resolver.setPrefix("templates/");
+		resolver.setSuffix(".html");
+		resolver.setTemplateMode(TemplateMode.HTML);
+		resolver.setCharacterEncoding("UTF-8");
+		
+		SpringTemplateEngine engine = new SpringTemplateEngine();
+		engine.setTemplateResolver(resolver);
+		templateEngine = engine;
+		verificationTemplate = new VerificationTemplate(engine);
+	}
+	
+	@Benchmark
+	public byte[] templateEngine() {
+		Context context = new Context();
+		context.setVariable("receiver", RECEIVER);
+		context.setVariable("receiverFirstLetter", String.valueOf(RECEIVER.charAt(0)).toUpperCase());
+		context.setVariable("code", CODE);
+		return templateEngine.process("verification", context).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public byte[] precompiled() {
+		return verificationTemplate.render(RECEIVER, CODE);
+	}
+	
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(VerificationTemplateBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -1,6 +1,7 @@
 package com.notesapp.test;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
@@ -8,15 +9,37 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import javax.mail.internet.MimeMessage;
 import javax.transaction.Transactional;
+import javax.xml.bind.DatatypeConverter;
+import javax.persistence.EntityManagerFactory;
 import org.assertj.core.api.Assertions;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.joda.time.DateTime;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.boot.jdbc.EmbeddedDatabaseConnection;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -24,22 +47,49 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMultipartHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.DecodedJWT;
 import com.icegreen.greenmail.configuration.GreenMailConfiguration;
 import com.icegreen.greenmail.junit5.GreenMailExtension;
 import com.icegreen.greenmail.util.GreenMailUtil;
 import com.icegreen.greenmail.util.ServerSetupTest;
+import com.jayway.jsonpath.JsonPath;
+import io.micrometer.core.instrument.MeterRegistry;
+import com.notesapp.model.BackupVersion;
+import com.notesapp.model.OutgoingMail;
 import com.notesapp.model.Salt;
+import com.notesapp.model.UploadSession;
 import com.notesapp.model.User;
+import com.notesapp.repository.BackupVersionRepository;
+import com.notesapp.repository.OutgoingMailRepository;
 import com.notesapp.repository.SaltRepository;
+import com.notesapp.repository.UploadSessionRepository;
 import com.notesapp.repository.UserRepository;
+import com.notesapp.services.AccountPurger;
+import com.notesapp.services.MailOutbox;
+import com.notesapp.services.OneTimeCodes;
+import com.notesapp.services.TokenVersionRegistry;
+import com.notesapp.services.VerificationTemplate;
+import com.notesapp.storage.BackupCompactor;
+import com.notesapp.storage.BackupLayout;
+import com.notesapp.storage.BackupLayoutMigrator;
+import com.notesapp.storage.RetentionProperties;
+import com.notesapp.storage.StagingSweeper;
+import com.notesapp.storage.StorageService;
 
 @SpringBootTest
 @AutoConfigureMockMvc
@@ -59,6 +109,63 @@ class ApplicationTests {
 	
 	@Autowired
 	PasswordEncoder passwordEncoder;
+	
+	@Autowired
+	private StorageService storageService;
+	
+	@Autowired
+	private BackupCompactor compactor;
+	
+	@Autowired
+	private RetentionProperties retentionProperties;
+	
+	@Autowired
+	private BackupVersionRepository versionRepository;
+	
+	@Autowired
+	private BackupLayout backupLayout;
+	
+	@Autowired
+	private BackupLayoutMigrator layoutMigrator;
+	
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+	
+	@Autowired
+	private MailOutbox mailOutbox;
+	
+	@Autowired
+	private OneTimeCodes oneTimeCodes;
+	
+	@Autowired
+	private UploadSessionRepository uploadSessionRepository;
+	
+	@Autowired
+	private StagingSweeper stagingSweeper;
+	
+	@Autowired
+	private AutowireCapableBeanFactory beanFactory;
+	
+	@Autowired
+	private TokenVersionRegistry tokenVersions;
+	
+	@Autowired
+	private AccountPurger accountPurger;
+	
+	@Autowired
+	private MeterRegistry meterRegistry;
+	
+	@Autowired
+	private VerificationTemplate verificationTemplate;
+	
+	@Autowired
+	private TemplateEngine templateEngine;
+	
+	@Autowired
+	private OutgoingMailRepository mailRepository;
+	
+	@Value("${secret}")
+	private String secret;
 		
 	@Test
 	void contextLoads() {
@@ -170,6 +277,370 @@ class ApplicationTests {
 				.string("Content-Disposition", containsString("backup.db")));		
 	}
 	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testChecksumComputedOnUploadIsServedOnRestore() throws Exception {
+		createUser();
+		
+		byte[] bytes = new ClassPathResource("backup.db").getInputStream().readAllBytes();
+		MockMultipartFile backup = new MockMultipartFile("file", "backup.db", "db", bytes);
+		
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup").file(backup))
+		.andExpect(status().isOk());
+		
+		User u = userRepository.findByEmail("test@yahoo.com");
+		String expected = DatatypeConverter.printHexBinary(
+				MessageDigest.getInstance("MD5").digest(bytes));
+		Assertions.assertThat(u.getBackupChecksum()).isEqualTo(expected);
+		
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.header().string("Checksum", expected))
+		.andExpect(content().bytes(bytes));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testBackupStoredCompressedAndNegotiatedOnRestore() throws Exception {
+		createUser();
+		byte[] bytes = "compressible page ".repeat(1000).getBytes();
+		MockMultipartFile backup = new MockMultipartFile("file", "backup.db", "db", bytes);
+		
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup").file(backup))
+		.andExpect(status().isOk());
+		
+		User u = userRepository.findByEmail("test@yahoo.com");
+		Path stored = storageService.load(u.getBackupName());
+		Assertions.assertThat(storageService.isCompressed(u.getBackupName())).isTrue();
+		Assertions.assertThat(Files.size(stored)).isLessThan(bytes.length);
+		Assertions.assertThat(u.getLastBackUpSize()).isEqualTo(bytes.length);
+		
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.header().doesNotExist("Content-Encoding"))
+		.andExpect(MockMvcResultMatchers.header()
+				.string("Content-Disposition", containsString("backup.db\"")))
+		.andExpect(content().bytes(bytes));
+		
+		byte[] encoded = mockMvc.perform(get("/api/restore").header("Accept-Encoding", "gzip"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.header().string("Content-Encoding", "gzip"))
+		.andExpect(MockMvcResultMatchers.header().string("Checksum", md5(bytes)))
+		.andReturn().getResponse().getContentAsByteArray();
+		Assertions.assertThat(encoded).isEqualTo(Files.readAllBytes(stored));
+		Assertions.assertThat(new GZIPInputStream(new ByteArrayInputStream(encoded))
+				.readAllBytes()).isEqualTo(bytes);
+		
+		mockMvc.perform(get("/api/restore").header("Accept-Encoding", "gzip;q=0, identity"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.header().doesNotExist("Content-Encoding"))
+		.andExpect(content().bytes(bytes));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testRestoreAnswersConditionalRequestWithNotModified() throws Exception {
+		createUser();
+		byte[] bytes = "conditional restore".getBytes();
+		MockMultipartFile backup = new MockMultipartFile("file", "backup.db", "db", bytes);
+		
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup").file(backup))
+		.andExpect(status().isOk());
+		
+		MockHttpServletResponse response = mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.header().string("ETag", "\"" + md5(bytes) + "\""))
+		.andExpect(MockMvcResultMatchers.header().exists("Last-Modified"))
+		.andReturn().getResponse();
+		
+		mockMvc.perform(get("/api/restore").header("If-None-Match", response.getHeader("ETag")))
+		.andExpect(status().isNotModified())
+		.andExpect(content().bytes(new byte[0]));
+		
+		mockMvc.perform(get("/api/restore")
+				.header("If-Modified-Since", response.getHeader("Last-Modified")))
+		.andExpect(status().isNotModified());
+		
+		mockMvc.perform(get("/api/restore").header("If-None-Match", "\"stale\""))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(bytes));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testRestoreServesRequestedRange() throws Exception {
+		createUser();
+		byte[] bytes = "0123456789abcdefghij".getBytes();
+		MockMultipartFile backup = new MockMultipartFile("file", "backup.db", "db", bytes);
+		
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup").file(backup))
+		.andExpect(status().isOk());
+		String etag = "\"" + md5(bytes) + "\"";
+		
+		mockMvc.perform(get("/api/restore").header("Range", "bytes=10-"))
+		.andExpect(status().isPartialContent())
+		.andExpect(MockMvcResultMatchers.header().string("Content-Range", "bytes 10-19/20"))
+		.andExpect(content().bytes("abcdefghij".getBytes()));
+		
+		mockMvc.perform(get("/api/restore").header("Range", "bytes=2-4").header("If-Range", etag))
+		.andExpect(status().isPartialContent())
+		.andExpect(content().bytes("234".getBytes()));
+		
+		mockMvc.perform(get("/api/restore").header("Range", "bytes=2-4")
+				.header("If-Range", "\"stale\""))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(bytes));
+		
+		mockMvc.perform(get("/api/restore").header("Range", "bytes=20-"))
+		.andExpect(status().isRequestedRangeNotSatisfiable())
+		.andExpect(MockMvcResultMatchers.header().string("Content-Range", "bytes */20"));
+		
+		User u = userRepository.findByEmail("test@yahoo.com");
+		byte[] stored = Files.readAllBytes(storageService.load(u.getBackupName()));
+		mockMvc.perform(get("/api/restore").header("Accept-Encoding", "gzip")
+				.header("Range", "bytes=0-9"))
+		.andExpect(status().isPartialContent())
+		.andExpect(MockMvcResultMatchers.header().string("Content-Encoding", "gzip"))
+		.andExpect(MockMvcResultMatchers.header()
+				.string("Content-Range", "bytes 0-9/" + stored.length))
+		.andExpect(content().bytes(Arrays.copyOf(stored, 10)));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testStreamUploadStoresRequestBody() throws Exception {
+		createUser();
+		byte[] bytes = "streamed backup".getBytes();
+		
+		mockMvc.perform(put("/api/backup").param("filename", "backup.db")
+				.contentType(MediaType.APPLICATION_OCTET_STREAM)
+				.header("Checksum", md5(bytes))
+				.content(bytes))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Success"));
+		
+		User u = userRepository.findByEmail("test@yahoo.com");
+		Assertions.assertThat(u.getBackupChecksum()).isEqualTo(md5(bytes));
+		Assertions.assertThat(u.getLastBackUpSize()).isEqualTo(bytes.length);
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(bytes));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testStreamUploadWithWrongChecksumIsRejected() throws Exception {
+		createUser();
+		
+		mockMvc.perform(put("/api/backup")
+				.contentType(MediaType.APPLICATION_OCTET_STREAM)
+				.header("Checksum", md5("other".getBytes()))
+				.content("streamed backup".getBytes()))
+		.andExpect(status().isBadRequest());
+		
+		Assertions.assertThat(userRepository.findByEmail("test@yahoo.com").getBackupName()).isNull();
+		
+		mockMvc.perform(put("/api/backup")
+				.contentType(MediaType.APPLICATION_OCTET_STREAM)
+				.content(new byte[0]))
+		.andExpect(status().isBadRequest());
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testChunkedUploadResumeAndCommit() throws Exception {
+		createUser();
+		byte[] first = "first chunk ".getBytes();
+		byte[] second = "second chunk".getBytes();
+		
+		String body = mockMvc.perform(post("/api/backup/sessions")
+				.param("filename", "backup.db"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.receivedBytes").value(0))
+		.andReturn().getResponse().getContentAsString();
+		String sessionId = JsonPath.read(body, "$.sessionId");
+		
+		mockMvc.perform(put("/api/backup/sessions/" + sessionId + "/chunks/0")
+				.content(first).header("Checksum", md5(first)))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.receivedChunks").value(1));
+		
+		// out of order chunk is rejected
+		mockMvc.perform(put("/api/backup/sessions/" + sessionId + "/chunks/2")
+				.content(second))
+		.andExpect(status().isConflict());
+		
+		// corrupted chunk is rejected and not kept
+		mockMvc.perform(put("/api/backup/sessions/" + sessionId + "/chunks/1")
+				.content(second).header("Checksum", md5(first)))
+		.andExpect(status().isBadRequest());
+		
+		mockMvc.perform(get("/api/backup/sessions/" + sessionId))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.receivedChunks").value(1))
+		.andExpect(MockMvcResultMatchers.jsonPath("$.receivedBytes").value(first.length));
+		
+		mockMvc.perform(put("/api/backup/sessions/" + sessionId + "/chunks/1")
+				.content(second).header("Checksum", md5(second)))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.receivedBytes")
+				.value(first.length + second.length));
+		
+		mockMvc.perform(post("/api/backup/sessions/" + sessionId + "/commit"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Success"));
+		
+		byte[] whole = "first chunk second chunk".getBytes();
+		User u = userRepository.findByEmail("test@yahoo.com");
+		Assertions.assertThat(u.getLastBackUpSize()).isEqualTo(whole.length);
+		Assertions.assertThat(u.getBackupChecksum()).isEqualTo(md5(whole));
+		
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(whole));
+		
+		mockMvc.perform(get("/api/backup/sessions/" + sessionId))
+		.andExpect(status().isNotFound());
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testAbandonedUploadsAreSwept() throws Exception {
+		createUser();
+		String body = mockMvc.perform(post("/api/backup/sessions"))
+		.andExpect(status().isOk())
+		.andReturn().getResponse().getContentAsString();
+		String sessionId = JsonPath.read(body, "$.sessionId");
+		mockMvc.perform(put("/api/backup/sessions/" + sessionId + "/chunks/0")
+				.content("abandoned".getBytes()))
+		.andExpect(status().isOk());
+		UploadSession session = uploadSessionRepository.findById(sessionId).get();
+		session.setCreatedAt(new DateTime().minusDays(2).toDate());
+		uploadSessionRepository.save(session);
+		
+		String interrupted = UUID.randomUUID().toString();
+		String recent = UUID.randomUUID().toString();
+		storageService.append(interrupted, 0, new ByteArrayInputStream("cut off".getBytes()), null);
+		storageService.append(recent, 0, new ByteArrayInputStream("writing".getBytes()), null);
+		FileTime old = FileTime.fromMillis(new DateTime().minusDays(2).getMillis());
+		Files.setLastModifiedTime(storageService.load("staging/" + interrupted), old);
+		
+		Assertions.assertThat(stagingSweeper.sweep()).isGreaterThanOrEqualTo(1);
+		Assertions.assertThat(uploadSessionRepository.existsById(sessionId)).isFalse();
+		Assertions.assertThat(storageService.load("staging/" + sessionId)).doesNotExist();
+		Assertions.assertThat(storageService.load("staging/" + interrupted)).doesNotExist();
+		Assertions.assertThat(storageService.load("staging/" + recent)).exists();
+		storageService.discard(recent);
+		
+		mockMvc.perform(post("/api/backup/sessions/" + sessionId + "/commit"))
+		.andExpect(status().isNotFound());
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testManifestWithoutPagesIsRejected() throws Exception {
+		createUser();
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+				.file(new MockMultipartFile("file", "backup.db", "db", new byte[512])))
+		.andExpect(status().isOk());
+		
+		mockMvc.perform(post("/api/backup/delta/manifest")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"pageSize\":512}"))
+		.andExpect(status().isBadRequest())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Page hashes are missing"));
+		
+		mockMvc.perform(post("/api/restore/delta")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"pageSize\":512}"))
+		.andExpect(status().isBadRequest());
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testManifestWithMalformedHashIsRejected() throws Exception {
+		createUser();
+		
+		mockMvc.perform(post("/api/backup/delta/manifest")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"pageSize\":512,\"pages\":[\"" + md5(new byte[512]) + "\",\"not a hash\"]}"))
+		.andExpect(status().isBadRequest())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Invalid hash of page 2"));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testManifestWithTooManyPagesIsRejected() throws Exception {
+		createUser();
+		int pageSize = 65536;
+		long maxPages = 1024L * 1024 * 1024 / pageSize;
+		List<String> pages = new ArrayList<>();
+		for (long i = 0; i <= maxPages; i++) pages.add(md5(new byte[0]));
+		
+		mockMvc.perform(post("/api/backup/delta/manifest")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"pageSize\":" + pageSize + ",\"pages\":[\"" 
+						+ String.join("\",\"", pages) + "\"]}"))
+		.andExpect(status().isBadRequest())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.message")
+				.value("Manifest has more than " + maxPages + " pages"));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testDeltaBackupSendsOnlyChangedPages() throws Exception {
+		createUser();
+		int pageSize = 512;
+		byte[] original = new byte[pageSize * 3];
+		Arrays.fill(original, (byte) 1);
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+				.file(new MockMultipartFile("file", "backup.db", "db", original)))
+		.andExpect(status().isOk());
+		
+		byte[] updated = Arrays.copyOf(original, original.length);
+		Arrays.fill(updated, pageSize, pageSize * 2, (byte) 2);
+		
+		mockMvc.perform(post("/api/backup/delta/manifest")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(manifest(updated, pageSize)))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.pages.length()").value(1))
+		.andExpect(MockMvcResultMatchers.jsonPath("$.pages[0]").value(2));
+		
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		DataOutputStream records = new DataOutputStream(delta);
+		records.writeInt(2);
+		records.write(updated, pageSize, pageSize);
+		
+		// a delta that does not produce the client's database is rejected
+		mockMvc.perform(put("/api/backup/delta")
+				.param("pageSize", String.valueOf(pageSize))
+				.param("size", String.valueOf(updated.length))
+				.header("Checksum", md5(original))
+				.content(delta.toByteArray()))
+		.andExpect(status().isBadRequest());
+		
+		mockMvc.perform(put("/api/backup/delta")
+				.param("pageSize", String.valueOf(pageSize))
+				.param("size", String.valueOf(updated.length))
+				.header("Checksum", md5(updated))
+				.content(delta.toByteArray()))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Success"));
+		
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(updated));
+		
+		// a client holding the original only receives page 2
+		mockMvc.perform(post("/api/restore/delta")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(manifest(original, pageSize)))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.header().string("Checksum", md5(updated)))
+		.andExpect(content().bytes(delta.toByteArray()));
+	}
+	
 	@Test
 	@WithMockUser(username = "test@yahoo.com")
 	public void testRestoreBackUpWhenNoBackupReturnsNotFound() throws Exception {
@@ -205,6 +676,252 @@ class ApplicationTests {
 		Assertions.assertThat(u.getBackupName()).isNull();
 	}
 	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testDeletedBackUpFilesRemovedByCompactor() throws Exception {
+		createUser();
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+				.file(new MockMultipartFile("file", "backup.db", "db", "deleted".getBytes())))
+		.andExpect(status().isOk());
+		Path file = storageService.load(userRepository.findByEmail("test@yahoo.com").getBackupName());
+		
+		mockMvc.perform(delete("/api/deletebackup"))
+		.andExpect(status().isOk());
+		Assertions.assertThat(Files.exists(file)).isTrue();
+		
+		compactor.compact();
+		Assertions.assertThat(Files.exists(file)).isFalse();
+		mockMvc.perform(get("/api/backups"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(0));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testRestoreBackUpVersion() throws Exception {
+		createUser();
+		for (String content : new String[] {"first", "second"}) {
+			mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+					.file(new MockMultipartFile("file", "backup.db", "db", content.getBytes())))
+			.andExpect(status().isOk());
+		}
+		
+		String body = mockMvc.perform(get("/api/backups"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(2))
+		.andReturn().getResponse().getContentAsString();
+		Integer oldest = JsonPath.read(body, "$[1].versionId");
+		
+		mockMvc.perform(get("/api/restore/" + oldest))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.header().string("Checksum", md5("first".getBytes())))
+		.andExpect(content().bytes("first".getBytes()));
+		
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes("second".getBytes()));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testCompactorEnforcesRetention() throws Exception {
+		createUser();
+		int uploads = retentionProperties.getKeepLast() + 1;
+		for (int i = 0; i < uploads; i++) {
+			mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+					.file(new MockMultipartFile("file", "backup.db", "db", ("v" + i).getBytes())))
+			.andExpect(status().isOk());
+		}
+		
+		compactor.compact();
+		
+		mockMvc.perform(get("/api/backups"))
+		.andExpect(status().isOk())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.length()")
+				.value(retentionProperties.getKeepLast()));
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(content().bytes(("v" + (uploads - 1)).getBytes()));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testDevicesKeepTheirOwnBackups() throws Exception {
+		createUser();
+		for (String device : new String[] {"phone", "tablet"}) {
+			mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+					.file(new MockMultipartFile("file", "backup.db", "db", device.getBytes()))
+					.header("Device-Id", device))
+			.andExpect(status().isOk());
+		}
+		
+		mockMvc.perform(get("/api/restore").header("Device-Id", "phone"))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes("phone".getBytes()));
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes("tablet".getBytes()));
+		mockMvc.perform(get("/api/restore").header("Device-Id", "laptop"))
+		.andExpect(status().isNotFound());
+		
+		mockMvc.perform(get("/api/getbackupinfo").header("Device-Id", "phone"))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.size").value("phone".length()));
+		mockMvc.perform(get("/api/backups").header("Device-Id", "tablet"))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.length()").value(1))
+		.andExpect(jsonPath("$[0].deviceId").value("tablet"));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testInvalidDeviceIdIsRejected() throws Exception {
+		createUser();
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+				.file(new MockMultipartFile("file", "backup.db", "db", "content".getBytes()))
+				.header("Device-Id", "d".repeat(BackupVersion.MAX_DEVICE_ID_LENGTH + 1)))
+		.andExpect(status().isBadRequest());
+		
+		Assertions.assertThat(userRepository.findByEmail("test@yahoo.com").getBackupName()).isNull();
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testListVersionsByCursor() throws Exception {
+		createUser();
+		for (int i = 0; i < 3; i++) {
+			mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+					.file(new MockMultipartFile("file", "backup.db", "db", ("v" + i).getBytes())))
+			.andExpect(status().isOk());
+		}
+		
+		MvcResult first = mockMvc.perform(get("/api/backups").param("limit", "2"))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.length()").value(2))
+		.andExpect(MockMvcResultMatchers.header().exists("Next-Cursor"))
+		.andReturn();
+		Integer newest = JsonPath.read(first.getResponse().getContentAsString(), "$[0].versionId");
+		Integer middle = JsonPath.read(first.getResponse().getContentAsString(), "$[1].versionId");
+		Assertions.assertThat(newest).isGreaterThan(middle);
+		
+		mockMvc.perform(get("/api/backups").param("limit", "2")
+				.param("cursor", first.getResponse().getHeader("Next-Cursor")))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.length()").value(1))
+		.andExpect(jsonPath("$[0].versionId").value(lessThan(middle)))
+		.andExpect(MockMvcResultMatchers.header().doesNotExist("Next-Cursor"));
+		
+		mockMvc.perform(get("/api/backups").param("cursor", "yesterday"))
+		.andExpect(status().isBadRequest());
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testCompactorEnforcesRetentionPerDevice() throws Exception {
+		createUser();
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+				.file(new MockMultipartFile("file", "backup.db", "db", "tablet".getBytes()))
+				.header("Device-Id", "tablet"))
+		.andExpect(status().isOk());
+		int uploads = retentionProperties.getKeepLast() + 1;
+		for (int i = 0; i < uploads; i++) {
+			mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+					.file(new MockMultipartFile("file", "backup.db", "db", ("v" + i).getBytes()))
+					.header("Device-Id", "phone"))
+			.andExpect(status().isOk());
+		}
+		
+		compactor.compact();
+		
+		mockMvc.perform(get("/api/backups").header("Device-Id", "phone"))
+		.andExpect(jsonPath("$.length()").value(retentionProperties.getKeepLast()));
+		mockMvc.perform(get("/api/restore").header("Device-Id", "tablet"))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes("tablet".getBytes()));
+	}
+	
+	@Test
+	public void testCompactorDropsVersionsOnlyOnceTheirFileIsGone() throws Exception {
+		User u = createUser();
+		String stored = storageService.store(new ByteArrayInputStream("expired".getBytes()), 
+				backupLayout.keyFor(u.getUserId(), "expired.db"), null).getFilename();
+		BackupVersion expired = new BackupVersion(u.getUserId(), stored, 7, null, new Date());
+		expired.setDeleted(true);
+		expired = versionRepository.save(expired);
+		// left behind by a run that removed the file and stopped
+		BackupVersion interrupted = new BackupVersion(u.getUserId(), 
+				backupLayout.keyFor(u.getUserId(), "interrupted.db"), 7, null, new Date());
+		interrupted.setDeleted(true);
+		interrupted = versionRepository.save(interrupted);
+		
+		compactor.compact();
+		
+		Assertions.assertThat(storageService.load(stored)).doesNotExist();
+		Assertions.assertThat(versionRepository.existsById(expired.getVersionId())).isFalse();
+		Assertions.assertThat(versionRepository.existsById(interrupted.getVersionId())).isFalse();
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testBackupStoredInUserDirectory() throws Exception {
+		User u = createUser();
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+				.file(new MockMultipartFile("file", "../backup.db", "db", "owned".getBytes())))
+		.andExpect(status().isOk());
+		
+		String name = userRepository.findByEmail("test@yahoo.com").getBackupName();
+		Assertions.assertThat(name).startsWith(backupLayout.directory(u.getUserId()) + "/");
+		Assertions.assertThat(name).doesNotContain("..");
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testUploadLeavesOnlyPublishedFiles() throws Exception {
+		User u = createUser();
+		for (String content : new String[] {"first", "second"}) {
+			mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup")
+					.file(new MockMultipartFile("file", "backup.db", "db", content.getBytes())))
+			.andExpect(status().isOk());
+		}
+		
+		Path directory = storageService.load(backupLayout.directory(u.getUserId()));
+		Path latest = storageService.load(userRepository.findByEmail("test@yahoo.com").getBackupName());
+		try (Stream<Path> files = Files.list(directory)) {
+			Assertions.assertThat(files.map(path -> path.getFileName().toString()))
+			.contains(latest.getFileName().toString())
+			.noneMatch(name -> name.endsWith(".tmp"));
+		}
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(content().bytes("second".getBytes()));
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testLayoutMigrationMovesLegacyBackups() throws Exception {
+		User u = createUser();
+		byte[] bytes = "legacy backup".getBytes();
+		Path legacy = storageService.load("legacy-backup.db");
+		Files.createDirectories(legacy.getParent());
+		Files.write(legacy, bytes);
+		u.setBackupName("legacy-backup.db");
+		u.setLastBackUpDate(new Date());
+		u.setLastBackUpSize((long) bytes.length);
+		userRepository.save(u);
+		versionRepository.save(new BackupVersion(u.getUserId(), "legacy-backup.db", 
+				bytes.length, md5(bytes), new Date()));
+		
+		Assertions.assertThat(layoutMigrator.migrateBatch()).isGreaterThan(0);
+		
+		String name = userRepository.findByEmail("test@yahoo.com").getBackupName();
+		Assertions.assertThat(name)
+		.isEqualTo(backupLayout.directory(u.getUserId()) + "/legacy-backup.db");
+		Assertions.assertThat(Files.exists(legacy)).isFalse();
+		Assertions.assertThat(versionRepository.countByFilename(name)).isEqualTo(1);
+		
+		mockMvc.perform(get("/api/restore"))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(bytes));
+	}
+	
 	@Test 
 	@WithMockUser(username = "test@yahoo.com")
 	public void testDeleteBackUpWhenNoBackUpReturnsNotFound() throws Exception {
@@ -226,6 +943,7 @@ class ApplicationTests {
 		Assertions.assertThat(u).isNotNull();
 		Assertions.assertThat(u.isEnabled()).isFalse();
 		
+		mailOutbox.drain();
 		MimeMessage receivedMessage = greenMail.getReceivedMessages()[0];
 		String recepient = receivedMessage.getAllRecipients()[0].toString();
 		String body = GreenMailUtil.getBody(receivedMessage);
@@ -266,14 +984,47 @@ class ApplicationTests {
 	}
 	
 	@Test
-	public void testEnableAccountSuccessful() throws Exception {
+	public void testPurgeRemovesOnlyStaleUnverifiedUsers() throws Exception {
+		Date old = new DateTime().minusDays(2).toDate();
+		User stale = new User("stale@yahoo.com", "Test123$");
+		stale.setCreatedAt(old);
+		userRepository.save(stale);
+		User verified = new User("verified@yahoo.com", "Test123$");
+		verified.setEnabled(true);
+		verified.setCreatedAt(old);
+		userRepository.save(verified);
+		createInActiveUser();
+		
+		Assertions.assertThat(accountPurger.purge()).isEqualTo(1);
+		Assertions.assertThat(userRepository.findByEmail("stale@yahoo.com")).isNull();
+		Assertions.assertThat(userRepository.findByEmail("verified@yahoo.com")).isNotNull();
+		Assertions.assertThat(userRepository.findByEmail("test@yahoo.com")).isNotNull();
+	}
+	
+	@Test
+	public void testRegisterReusesUnverifiedUser() throws Exception {
 		User u = createInActiveUser();
-		u.setOneTimePassword();
+		u.setCreatedAt(new DateTime().minusDays(2).toDate());
 		userRepository.save(u);
 		
+		mockMvc.perform(post("/api/register")
+				.param("email", "test@yahoo.com")
+				.param("password", "Test123$"))
+		.andExpect(status().isOk());
+		
+		User registered = userRepository.findByEmail("test@yahoo.com");
+		Assertions.assertThat(registered.getUserId()).isEqualTo(u.getUserId());
+		Assertions.assertThat(registered.getCreatedAt()).isAfter(new DateTime().minusMinutes(1).toDate());
+		Assertions.assertThat(accountPurger.purge()).isEqualTo(0);
+	}
+	
+	@Test
+	public void testEnableAccountSuccessful() throws Exception {
+		User u = createInActiveUser();
+		
 		mockMvc.perform(post("/api/enableaccount")
 				.param("email", "test@yahoo.com")
-				.param("code", String.valueOf(u.getOneTimePassword())))
+				.param("code", String.valueOf(oneTimeCodes.issue(u, OneTimeCodes.Purpose.ACCOUNT))))
 		.andDo(print())
 		.andExpect(status().isOk())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Success"));
@@ -282,6 +1033,72 @@ class ApplicationTests {
 		Assertions.assertThat(u.isEnabled()).isTrue();
 	}
 	
+	@Test
+	public void testVerificationCodeCannotBeReused() throws Exception {
+		User u = createInActiveUser();
+		int code = oneTimeCodes.issue(u, OneTimeCodes.Purpose.ACCOUNT);
+		
+		mockMvc.perform(post("/api/enableaccount")
+				.param("email", "test@yahoo.com")
+				.param("code", String.valueOf(code)))
+		.andExpect(status().isOk());
+		
+		mockMvc.perform(put("/api/resetpassword")
+				.param("email", "test@yahoo.com")
+				.param("password", "NewPassword")
+				.param("code", String.valueOf(code)))
+		.andExpect(status().isUnauthorized())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.message")
+				.value("Invalid Verification Code"));
+	}
+	
+	@Test
+	public void testVerificationCodeIsBurnedAfterFailedAttempts() throws Exception {
+		User u = createInActiveUser();
+		int code = oneTimeCodes.issue(u, OneTimeCodes.Purpose.ACCOUNT);
+		
+		for (int i = 0; i < 5; i++) {
+			mockMvc.perform(post("/api/enableaccount")
+					.param("email", "test@yahoo.com")
+					.param("code", String.valueOf(code == 1000 ? 1001 : 1000)))
+			.andExpect(status().isUnauthorized());
+		}
+		
+		mockMvc.perform(post("/api/enableaccount")
+				.param("email", "test@yahoo.com")
+				.param("code", String.valueOf(code)))
+		.andExpect(status().isUnauthorized())
+		.andExpect(MockMvcResultMatchers.jsonPath("$.message")
+				.value("Invalid Verification Code"));
+		
+		mockMvc.perform(post("/api/enableaccount")
+				.param("email", "test@yahoo.com")
+				.param("code", String.valueOf(oneTimeCodes.issue(u, OneTimeCodes.Purpose.ACCOUNT))))
+		.andExpect(status().isOk());
+	}
+	
+	@Test
+	public void testVerificationCodeIsAcceptedByAnotherInstance() throws Exception {
+		User u = createInActiveUser();
+		int code = oneTimeCodes.issue(u, OneTimeCodes.Purpose.ACCOUNT);
+		OneTimeCodes other = beanFactory.createBean(OneTimeCodes.class);
+		
+		Assertions.assertThat(other.verify(u, OneTimeCodes.Purpose.ACCOUNT, code))
+		.isEqualTo(OneTimeCodes.Result.VALID);
+		Assertions.assertThat(oneTimeCodes.verify(u, OneTimeCodes.Purpose.ACCOUNT, code))
+		.isEqualTo(OneTimeCodes.Result.INVALID);
+	}
+	
+	@Test
+	public void testLoginCodeCannotEnableAccount() throws Exception {
+		User u = createInActiveUser();
+		
+		mockMvc.perform(post("/api/enableaccount")
+				.param("email", "test@yahoo.com")
+				.param("code", String.valueOf(oneTimeCodes.issue(u, OneTimeCodes.Purpose.LOGIN))))
+		.andExpect(status().isUnauthorized());
+	}
+	
 	@Test
 	public void testEnableAccountUserNotExistsReturnsBadRequest() throws Exception {
 		mockMvc.perform(post("/api/enableaccount")
@@ -295,12 +1112,10 @@ class ApplicationTests {
 	@Test
 	public void testEnableAccountInvalidCodeReturnsUnauthorized() throws Exception {
 		User u = createInActiveUser();
-		u.setOneTimePassword();
-		userRepository.save(u);
 		
 		mockMvc.perform(post("/api/enableaccount")
 				.param("email", "test@yahoo.com")
-				.param("code", String.valueOf(u.getOneTimePassword() + 1)))
+				.param("code", "0"))
 		.andDo(print())
 		.andExpect(status().isUnauthorized())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Invalid Verification Code"));
@@ -312,13 +1127,11 @@ class ApplicationTests {
 	@Test
 	public void testEnableAccountExpiredCodeReturnsUnauthorized() throws Exception {
 		User u = createInActiveUser();
-		u.setOneTimePassword();
-		u.setOneTimePasswordDateAdded(new DateTime().minusDays(1).toDate());
-		userRepository.save(u);
+		int code = oneTimeCodes.issue(u, OneTimeCodes.Purpose.ACCOUNT, new DateTime().minusMinutes(6).toDate());
 		
 		mockMvc.perform(post("/api/enableaccount")
 				.param("email", "test@yahoo.com")
-				.param("code", String.valueOf(u.getOneTimePassword())))
+				.param("code", String.valueOf(code)))
 		.andDo(print())
 		.andExpect(status().isUnauthorized())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message")
@@ -336,6 +1149,84 @@ class ApplicationTests {
 		.andExpect(status().isBadRequest());
 	}
 	
+	@Test
+	public void testRequestTokenReturnsBeforeEmailIsSent() throws Exception {
+		createUser();
+		
+		mockMvc.perform(post("/api/requesttoken")
+				.param("email", "test@yahoo.com"))
+		.andExpect(status().isOk());
+		
+		Assertions.assertThat(greenMail.getReceivedMessages()).isEmpty();
+		Assertions.assertThat(mailRepository.count()).isEqualTo(1);
+		Assertions.assertThat(mailOutbox.drain()).isEqualTo(1);
+		Assertions.assertThat(greenMail.getReceivedMessages()).hasSize(1);
+		Assertions.assertThat(mailRepository.count()).isEqualTo(0);
+	}
+	
+	@Test
+	public void testPrecompiledTemplateMatchesTemplateEngine() {
+		String to = "o'neil<x>@yahoo.com";
+		Context context = new Context();
+		context.setVariable("receiver", to);
+		context.setVariable("receiverFirstLetter", "O");
+		context.setVariable("code", 123456);
+		
+		Assertions.assertThat(new String(verificationTemplate.render(to, 123456), StandardCharsets.UTF_8))
+		.isEqualTo(templateEngine.process("verification", context));
+	}
+	
+	@Test
+	public void testQueuedEmailsShareOneConnection() throws Exception {
+		for (String email : new String[] {"a@yahoo.com", "b@yahoo.com", "c@yahoo.com"}) {
+			User u = new User(email, "Test123$");
+			u.setEnabled(true);
+			userRepository.save(u);
+			mockMvc.perform(post("/api/requesttoken")
+					.param("email", email))
+			.andExpect(status().isOk());
+		}
+		double connects = meterRegistry.counter("mail.transport.connects").count();
+		
+		Assertions.assertThat(mailOutbox.drain()).isEqualTo(3);
+		Assertions.assertThat(greenMail.getReceivedMessages()).hasSize(3);
+		Assertions.assertThat(meterRegistry.counter("mail.transport.connects").count())
+		.isEqualTo(connects + 1);
+		Assertions.assertThat(meterRegistry.get("mail.send").tag("outcome", "success")
+				.timer().count()).isGreaterThanOrEqualTo(3);
+	}
+	
+	@Test
+	public void testFailedEmailIsRetriedLater() throws Exception {
+		createUser();
+		greenMail.stop();
+		
+		mockMvc.perform(post("/api/requesttoken")
+				.param("email", "test@yahoo.com"))
+		.andExpect(status().isOk());
+		
+		Assertions.assertThat(mailOutbox.drain()).isEqualTo(0);
+		OutgoingMail mail = mailRepository.findAll().iterator().next();
+		Assertions.assertThat(mail.getAttempts()).isEqualTo(1);
+		Assertions.assertThat(mail.isFailed()).isFalse();
+		Assertions.assertThat(mail.getNextAttemptAt()).isInTheFuture();
+	}
+	
+	@Test
+	public void testFailedEmailIsPurgedAfterRetention() throws Exception {
+		OutgoingMail expired = new OutgoingMail("old@yahoo.com", "Verification", 123456);
+		expired.setFailed(true);
+		expired.setNextAttemptAt(new Date(System.currentTimeMillis() - 8L * 24 * 60 * 60 * 1000));
+		expired = mailRepository.save(expired);
+		OutgoingMail recent = new OutgoingMail("new@yahoo.com", "Verification", 654321);
+		recent.setFailed(true);
+		recent = mailRepository.save(recent);
+		
+		Assertions.assertThat(mailOutbox.purge()).isEqualTo(1);
+		Assertions.assertThat(mailRepository.existsById(expired.getMailId())).isFalse();
+		Assertions.assertThat(mailRepository.existsById(recent.getMailId())).isTrue();
+	}
+	
 	@Test
 	public void testRequestTokenUserSuccessful() throws Exception {
 		createUser();
@@ -346,6 +1237,7 @@ class ApplicationTests {
 		.andExpect(status().isOk());
 		
 
+		mailOutbox.drain();
 		MimeMessage receivedMessage = greenMail.getReceivedMessages()[0];
 		String recepient = receivedMessage.getAllRecipients()[0].toString();
 		String body = GreenMailUtil.getBody(receivedMessage);
@@ -381,6 +1273,7 @@ class ApplicationTests {
 		.andExpect(status().isOk())
 		.andExpect(content().string("false"));
 		
+		Assertions.assertThat(mailOutbox.drain()).isEqualTo(0);
 		MimeMessage[] receivedMessages = greenMail.getReceivedMessages();
 		Assertions.assertThat(receivedMessages.length).isEqualTo(0);
 	}
@@ -397,6 +1290,7 @@ class ApplicationTests {
 		.andExpect(status().isOk())
 		.andExpect(content().string("true"));
 		
+		mailOutbox.drain();
 		MimeMessage receivedMessage = greenMail.getReceivedMessages()[0];
 		String recepient = receivedMessage.getAllRecipients()[0].toString();
 		String body = GreenMailUtil.getBody(receivedMessage);
@@ -466,14 +1360,12 @@ class ApplicationTests {
 	
 	@Test
 	public void testResetPasswordVerificationCodeInvalidRequestUnauthorized() throws Exception {
-		User u = createUser();
-		u.setOneTimePassword();
-		userRepository.save(u);
+		createUser();
 		
 		mockMvc.perform(put("/api/resetpassword")
 				.param("email", "test@yahoo.com")
 				.param("password", "NewPassword")
-				.param("code", String.valueOf(u.getOneTimePassword() + 1)))
+				.param("code", "0"))
 		.andExpect(status().isUnauthorized())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message")
 				.value("Invalid Verification Code"));
@@ -482,14 +1374,12 @@ class ApplicationTests {
 	@Test
 	public void testResetPasswordVerificationCodeExpiredRequestUnauthorized() throws Exception {
 		User u = createUser();
-		u.setOneTimePassword();
-		u.setOneTimePasswordDateAdded(new DateTime().minusDays(1).toDate());
-		userRepository.save(u);
+		int code = oneTimeCodes.issue(u, OneTimeCodes.Purpose.ACCOUNT, new DateTime().minusMinutes(6).toDate());
 		
 		mockMvc.perform(put("/api/resetpassword")
 				.param("email", "test@yahoo.com")
 				.param("password", "NewPassword")
-				.param("code", String.valueOf(u.getOneTimePassword())))
+				.param("code", String.valueOf(code)))
 		.andExpect(status().isUnauthorized())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message")
 				.value("The Verification Code is Expired"));
@@ -498,14 +1388,11 @@ class ApplicationTests {
 	@Test
 	public void testResetPasswordSuccessful() throws Exception {
 		User u = createUser();
-		u.setOneTimePassword();
-		u = userRepository.save(u);
-		
 		
 		mockMvc.perform(put("/api/resetpassword")
 				.param("email", "test@yahoo.com")
 				.param("password", "NewPassword")
-				.param("code", String.valueOf(u.getOneTimePassword())))
+				.param("code", String.valueOf(oneTimeCodes.issue(u, OneTimeCodes.Purpose.ACCOUNT))))
 		.andExpect(status().isOk())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Success"));
 		
@@ -581,6 +1468,145 @@ class ApplicationTests {
 		Assertions.assertThat(salt).isNotNull();
 	}
 	
+	@Test
+	public void testLoginReadsUserOnce() throws Exception {
+		User user = new User("test@yahoo.com", passwordEncoder.encode("Test123$"));
+		user.setEnabled(true);
+		userRepository.save(user);
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+		
+		try {
+			mockMvc.perform(post("/login")
+					.param("email", "test@yahoo.com")
+					.param("password", "Test123$"))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.token").exists());
+			Assertions.assertThat(statistics.getQueryExecutionCount()).isEqualTo(1);
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testGetBackupInfoDoesNotLoadUser() throws Exception {
+		User u = createUser();
+		userRepository.updateBackup(u.getUserId(), "backup.db", new Date(), 1024L, null);
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+
+		try {
+			mockMvc.perform(get("/api/getbackupinfo"))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.size").value(1024));
+			Assertions.assertThat(statistics.getQueryExecutionCount()).isEqualTo(1);
+			Assertions.assertThat(statistics.getEntityLoadCount()).isZero();
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+
+	@Test
+	public void testCachedTokenIsDroppedWhenUserIsDeleted() throws Exception {
+		User user = new User("test@yahoo.com", passwordEncoder.encode("Test123$"));
+		user.setEnabled(true);
+		userRepository.save(user);
+		
+		String body = mockMvc.perform(post("/login")
+				.param("email", "test@yahoo.com")
+				.param("password", "Test123$"))
+		.andExpect(status().isOk())
+		.andReturn().getResponse().getContentAsString();
+		String token = "Bearer " + JsonPath.read(body, "$.token");
+		
+		for (int i = 0; i < 2; i++) {
+			mockMvc.perform(get("/api/getbackupinfo").header("Authorization", token))
+			.andExpect(status().isOk());
+		}
+		
+		userRepository.delete(user);
+		mockMvc.perform(get("/api/getbackupinfo").header("Authorization", token))
+		.andExpect(status().isUnauthorized());
+	}
+	
+	@Test
+	public void testTokenCarriesClaimsAndIsRevokedByPasswordReset() throws Exception {
+		User user = new User("test@yahoo.com", passwordEncoder.encode("Test123$"));
+		user.setEnabled(true);
+		userRepository.save(user);
+		
+		String body = mockMvc.perform(post("/login")
+				.param("email", "test@yahoo.com")
+				.param("password", "Test123$"))
+		.andExpect(status().isOk())
+		.andReturn().getResponse().getContentAsString();
+		String jwt = JsonPath.read(body, "$.token");
+		DecodedJWT decoded = JWT.decode(jwt);
+		Assertions.assertThat(decoded.getClaim("uid").asLong()).isEqualTo(user.getUserId());
+		Assertions.assertThat(decoded.getClaim("enabled").asBoolean()).isTrue();
+		Assertions.assertThat(decoded.getClaim("ver").asInt()).isEqualTo(0);
+		
+		mockMvc.perform(get("/api/getbackupinfo").header("Authorization", "Bearer " + jwt))
+		.andExpect(status().isOk());
+		
+		mockMvc.perform(put("/api/resetpassword")
+				.param("email", "test@yahoo.com")
+				.param("password", "NewPassword")
+				.param("code", String.valueOf(oneTimeCodes.issue(user, OneTimeCodes.Purpose.ACCOUNT))))
+		.andExpect(status().isOk());
+		// the query flushes the reset, which publishes the user change
+		userRepository.findByEmail("test@yahoo.com");
+		
+		mockMvc.perform(get("/api/getbackupinfo").header("Authorization", "Bearer " + jwt))
+		.andExpect(status().isUnauthorized());
+	}
+	
+	@Test
+	@WithMockUser(username = "test@yahoo.com")
+	public void testMetricsEndpointIsNotExposed() throws Exception {
+		mockMvc.perform(get("/actuator/metrics"))
+		.andExpect(status().isNotFound());
+	}
+	
+	@Test
+	@Transactional(Transactional.TxType.NOT_SUPPORTED)
+	public void testRevokedTokenIsRejectedFromCache() throws Exception {
+		User u = new User("revoked@yahoo.com", "Test123$");
+		u.setEnabled(true);
+		userRepository.save(u);
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		try {
+			Assertions.assertThat(tokenVersions.isCurrent(u.getUserId(), 0)).isTrue();
+			u.revokeTokens();
+			userRepository.save(u);
+			
+			statistics.setStatisticsEnabled(true);
+			statistics.clear();
+			for (int i = 0; i < 3; i++) {
+				Assertions.assertThat(tokenVersions.isCurrent(u.getUserId(), 0)).isFalse();
+			}
+			Assertions.assertThat(tokenVersions.isCurrent(u.getUserId(), 1)).isTrue();
+			Assertions.assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+		} finally {
+			statistics.setStatisticsEnabled(false);
+			userRepository.delete(u);
+		}
+	}
+	
+	@Test
+	public void testTokenWithoutClaimsIsAccepted() throws Exception {
+		createUser();
+		String jwt = JWT.create().withSubject("test@yahoo.com")
+				.withIssuedAt(new Date())
+				.sign(Algorithm.HMAC512(secret));
+		
+		mockMvc.perform(get("/api/getbackupinfo").header("Authorization", "Bearer " + jwt))
+		.andExpect(status().isOk());
+	}
+	
 	@Test
 	public void testLoginSuccessful2FADisabled() throws Exception {
 		User user = new User("test@yahoo.com", passwordEncoder.encode("Test123$"));
@@ -601,13 +1627,12 @@ class ApplicationTests {
 		User user = new User("test@yahoo.com", passwordEncoder.encode("Test123$"));
 		user.setEnabled(true);
 		user.setTwoFactorAuthentication(true);
-		user.setOneTimePassword();
 		userRepository.save(user);
 		
 		mockMvc.perform(post("/login")
 				.param("email", "test@yahoo.com")
 				.param("password", "Test123$")
-				.param("code", String.valueOf(user.getOneTimePassword())))
+				.param("code", String.valueOf(oneTimeCodes.issue(user, OneTimeCodes.Purpose.LOGIN))))
 		.andDo(print())
 		.andExpect(status().isOk())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Success"))
@@ -656,14 +1681,13 @@ class ApplicationTests {
 	public void testLoginUnauthorizedInvalidCodeWhen2faEnabled() throws Exception {
 		User user = new User("test@yahoo.com", passwordEncoder.encode("Test123$"));
 		user.setTwoFactorAuthentication(true);
-		user.setOneTimePassword();
 		user.setEnabled(true);
 		userRepository.save(user);
 		
 		mockMvc.perform(post("/login")
 				.param("email", "test@yahoo.com")
 				.param("password", "Test123$")
-				.param("code", String.valueOf(user.getOneTimePassword() - 1)))
+				.param("code", "0"))
 		.andDo(print())
 		.andExpect(status().isUnauthorized())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Invalid Verification Code"))
@@ -674,15 +1698,14 @@ class ApplicationTests {
 	public void testUnauthorizedExpiredVerificationCodeWhen2faEnabled() throws Exception {
 		User user = new User("test@yahoo.com", passwordEncoder.encode("Test123$"));
 		user.setTwoFactorAuthentication(true);
-		user.setOneTimePassword();
-		user.setOneTimePasswordDateAdded(new DateTime().minusDays(1).toDate());
 		user.setEnabled(true);
 		userRepository.save(user);
+		int code = oneTimeCodes.issue(user, OneTimeCodes.Purpose.LOGIN, new DateTime().minusMinutes(6).toDate());
 		
 		mockMvc.perform(post("/login")
 				.param("email", "test@yahoo.com")
 				.param("password", "Test123$")
-				.param("code", String.valueOf(user.getOneTimePassword())))
+				.param("code", String.valueOf(code)))
 		.andDo(print())
 		.andExpect(status().isUnauthorized())
 		.andExpect(MockMvcResultMatchers.jsonPath("$.message").value("Verification Code is Expired"))
@@ -690,6 +1713,19 @@ class ApplicationTests {
 	}
 	
 	
+	private String manifest(byte[] database, int pageSize) throws Exception {
+		List<String> pages = new ArrayList<>();
+		for (int offset = 0; offset < database.length; offset += pageSize) {
+			pages.add(md5(Arrays.copyOfRange(database, offset, offset + pageSize)));
+		}
+		return "{\"pageSize\":" + pageSize + ",\"pages\":[\"" 
+				+ String.join("\",\"", pages) + "\"]}";
+	}
+	
+	private String md5(byte[] bytes) throws Exception {
+		return DatatypeConverter.printHexBinary(MessageDigest.getInstance("MD5").digest(bytes));
+	}
+	
 	private User createUser() {
 		User u =  new User("test@yahoo.com", "Test123$");
 		u.setEnabled(true);
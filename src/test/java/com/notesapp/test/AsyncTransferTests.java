@@ -0,0 +1,207 @@
+package com.notesapp.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import javax.xml.bind.DatatypeConverter;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.jdbc.EmbeddedDatabaseConnection;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.context.ActiveProfiles;
+import com.jayway.jsonpath.JsonPath;
+import com.notesapp.model.User;
+import com.notesapp.repository.BackupVersionRepository;
+import com.notesapp.repository.UserRepository;
+
+/**
+ * Non-blocking transfers only happen on a real
+ * container, so these tests run against an embedded
+ * server with every transfer counting as large. Sendfile
+ * is turned off so files are written by the application.
+ */
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = {
+		"backup.transfer.async-threshold=1",
+		"storage.max-backup-size=4194304",
+		"storage.max-chunk-size=1048576"
+})
+@AutoConfigureTestDatabase(connection = EmbeddedDatabaseConnection.H2)
+@ActiveProfiles("test")
+class AsyncTransferTests {
+
+	private static final String EMAIL = "async@yahoo.com";
+	private static final String PASSWORD = "Test123$";
+
+	@TestConfiguration
+	static class NoSendfile {
+		@Bean
+		WebServerFactoryCustomizer<TomcatServletWebServerFactory> noSendfile() {
+			return factory -> factory.addConnectorCustomizers(
+					connector -> connector.setProperty("useSendfile", "false"));
+		}
+	}
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private BackupVersionRepository versionRepository;
+
+	@Autowired
+	private PasswordEncoder passwordEncoder;
+
+	private final HttpClient client = HttpClient.newHttpClient();
+
+	private String token;
+
+	@BeforeEach
+	public void createUser() throws Exception {
+		User u = new User(EMAIL, passwordEncoder.encode(PASSWORD));
+		u.setEnabled(true);
+		userRepository.save(u);
+
+		String form = "email=" + URLEncoder.encode(EMAIL, StandardCharsets.UTF_8)
+				+ "&password=" + URLEncoder.encode(PASSWORD, StandardCharsets.UTF_8);
+		HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri("/login"))
+				.header("Content-Type", "application/x-www-form-urlencoded")
+				.POST(HttpRequest.BodyPublishers.ofString(form)).build(),
+				HttpResponse.BodyHandlers.ofString());
+		token = "Bearer " + JsonPath.read(response.body(), "$.token");
+	}
+
+	@AfterEach
+	public void deleteUser() {
+		User u = userRepository.findByEmail(EMAIL);
+		if (u != null) {
+			versionRepository.markDeletedByUserId(u.getUserId());
+			userRepository.delete(u);
+		}
+	}
+
+	@Test
+	public void testLargeBackupIsTransferredWithoutBlocking() throws Exception {
+		byte[] bytes = new byte[3 * 1024 * 1024 + 17];
+		new Random(42).nextBytes(bytes);
+
+		HttpResponse<String> upload = client.send(HttpRequest.newBuilder(uri("/api/backup"))
+				.header("Authorization", token)
+				.header("Content-Type", "application/octet-stream")
+				.header("Checksum", md5(bytes))
+				.PUT(HttpRequest.BodyPublishers.ofByteArray(bytes)).build(),
+				HttpResponse.BodyHandlers.ofString());
+		Assertions.assertThat(upload.statusCode()).isEqualTo(200);
+		Assertions.assertThat((Boolean) JsonPath.read(upload.body(), "$.error")).isFalse();
+
+		HttpResponse<byte[]> plain = restore(null, null);
+		Assertions.assertThat(plain.statusCode()).isEqualTo(200);
+		Assertions.assertThat(plain.body()).isEqualTo(bytes);
+
+		HttpResponse<byte[]> encoded = restore("gzip", null);
+		Assertions.assertThat(encoded.statusCode()).isEqualTo(200);
+		Assertions.assertThat(encoded.headers().firstValue("Content-Encoding")).hasValue("gzip");
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(encoded.body()))) {
+			Assertions.assertThat(in.readAllBytes()).isEqualTo(bytes);
+		}
+
+		HttpResponse<byte[]> range = restore(null, "bytes=1000000-1999999");
+		Assertions.assertThat(range.statusCode()).isEqualTo(206);
+		Assertions.assertThat(range.body()).isEqualTo(Arrays.copyOfRange(bytes, 1000000, 2000000));
+	}
+
+	@Test
+	public void testLargeBackupWithWrongChecksumIsRejected() throws Exception {
+		byte[] bytes = new byte[256 * 1024];
+		new Random(7).nextBytes(bytes);
+
+		HttpResponse<String> upload = client.send(HttpRequest.newBuilder(uri("/api/backup"))
+				.header("Authorization", token)
+				.header("Content-Type", "application/octet-stream")
+				.header("Checksum", "00000000000000000000000000000000")
+				.PUT(HttpRequest.BodyPublishers.ofByteArray(bytes)).build(),
+				HttpResponse.BodyHandlers.ofString());
+		Assertions.assertThat(upload.statusCode()).isEqualTo(400);
+		Assertions.assertThat((Boolean) JsonPath.read(upload.body(), "$.error")).isTrue();
+		Assertions.assertThat(userRepository.findByEmail(EMAIL).getBackupName()).isNull();
+	}
+
+	@Test
+	public void testOversizedUploadsAreRejected() throws Exception {
+		byte[] bytes = new byte[5 * 1024 * 1024];
+
+		HttpResponse<String> declared = client.send(HttpRequest.newBuilder(uri("/api/backup"))
+				.header("Authorization", token)
+				.header("Content-Type", "application/octet-stream")
+				.PUT(HttpRequest.BodyPublishers.ofByteArray(bytes)).build(),
+				HttpResponse.BodyHandlers.ofString());
+		Assertions.assertThat(declared.statusCode()).isEqualTo(413);
+
+		HttpResponse<String> streamed = client.send(HttpRequest.newBuilder(uri("/api/backup"))
+				.header("Authorization", token)
+				.header("Content-Type", "application/octet-stream")
+				.PUT(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(bytes)))
+				.build(), HttpResponse.BodyHandlers.ofString());
+		Assertions.assertThat(streamed.statusCode()).isEqualTo(413);
+
+		HttpResponse<String> delta = client.send(HttpRequest.newBuilder(
+				uri("/api/backup/delta?pageSize=4096&size=" + bytes.length))
+				.header("Authorization", token)
+				.header("Checksum", md5(bytes))
+				.PUT(HttpRequest.BodyPublishers.ofByteArray(new byte[0])).build(),
+				HttpResponse.BodyHandlers.ofString());
+		Assertions.assertThat(delta.statusCode()).isEqualTo(413);
+
+		HttpResponse<String> session = client.send(HttpRequest.newBuilder(uri("/api/backup/sessions"))
+				.header("Authorization", token)
+				.POST(HttpRequest.BodyPublishers.noBody()).build(),
+				HttpResponse.BodyHandlers.ofString());
+		String sessionId = JsonPath.read(session.body(), "$.sessionId");
+		HttpResponse<String> chunk = client.send(HttpRequest.newBuilder(
+				uri("/api/backup/sessions/" + sessionId + "/chunks/0"))
+				.header("Authorization", token)
+				.PUT(HttpRequest.BodyPublishers.ofByteArray(Arrays.copyOf(bytes, 1024 * 1024 + 1)))
+				.build(), HttpResponse.BodyHandlers.ofString());
+		Assertions.assertThat(chunk.statusCode()).isEqualTo(413);
+
+		Assertions.assertThat(userRepository.findByEmail(EMAIL).getBackupName()).isNull();
+	}
+
+	private HttpResponse<byte[]> restore(String encoding, String range)
+			throws IOException, InterruptedException {
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri("/api/restore"))
+				.header("Authorization", token);
+		if (encoding != null) request.header("Accept-Encoding", encoding);
+		if (range != null) request.header("Range", range);
+		return client.send(request.GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+	}
+
+	private URI uri(String path) {
+		return URI.create("http://localhost:" + port + path);
+	}
+
+	private String md5(byte[] bytes) throws Exception {
+		return DatatypeConverter.printHexBinary(MessageDigest.getInstance("MD5").digest(bytes));
+	}
+}
@@ -0,0 +1,54 @@
+package com.notesapp.test;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.jdbc.EmbeddedDatabaseConnection;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import com.notesapp.model.User;
+import com.notesapp.repository.UserRepository;
+
+/**
+ * Users are only cached outside of transactions,
+ * so these tests do not run inside a transaction
+ * and clean up after themselves.
+ */
+@SpringBootTest
+@AutoConfigureTestDatabase(connection = EmbeddedDatabaseConnection.H2)
+@ActiveProfiles("test")
+class CachingUserRepositoryTests {
+
+	private static final String EMAIL = "cached@yahoo.com";
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@AfterEach
+	public void deleteUser() {
+		User u = userRepository.findByEmail(EMAIL);
+		if (u != null) userRepository.delete(u);
+	}
+
+	@Test
+	public void testCachedUserIsDroppedOnChange() throws Exception {
+		createUser();
+		User cached = userRepository.findByEmail(EMAIL);
+		cached.setEnabled(false);
+		Assertions.assertThat(userRepository.findByEmail(EMAIL).isEnabled()).isTrue();
+
+		userRepository.save(cached);
+		Assertions.assertThat(userRepository.findByEmail(EMAIL).isEnabled()).isFalse();
+
+		userRepository.updateBackup(cached.getUserId(), "cached.db", null, 1L, null);
+		Assertions.assertThat(userRepository.findByEmail(EMAIL).getBackupName()).isEqualTo("cached.db");
+	}
+
+	private void createUser() {
+		User u = new User(EMAIL, "Test123$");
+		u.setEnabled(true);
+		userRepository.save(u);
+	}
+}
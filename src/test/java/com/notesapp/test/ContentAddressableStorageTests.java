@@ -0,0 +1,141 @@
+package com.notesapp.test;
+
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import javax.transaction.Transactional;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.jdbc.EmbeddedDatabaseConnection;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import com.notesapp.model.User;
+import com.notesapp.repository.UserRepository;
+import com.notesapp.storage.BackupCompactor;
+import com.notesapp.storage.ContentAddressableStorageService;
+import com.notesapp.storage.StorageService;
+
+@SpringBootTest(properties = {
+		"storage.mode=content-addressed",
+		"storage.location=target/cas-test-dir"
+})
+@AutoConfigureMockMvc
+@AutoConfigureTestDatabase(connection = EmbeddedDatabaseConnection.H2)
+@Transactional
+@ActiveProfiles("test")
+class ContentAddressableStorageTests {
+
+	@Autowired
+	MockMvc mockMvc;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private StorageService storageService;
+
+	@Autowired
+	private BackupCompactor compactor;
+
+	@Test
+	public void testIdenticalBackupsShareOneBlob() throws Exception {
+		createUser("first@yahoo.com");
+		createUser("second@yahoo.com");
+		byte[] bytes = "identical backup".getBytes();
+
+		upload("first@yahoo.com", bytes);
+		upload("second@yahoo.com", bytes);
+
+		String first = userRepository.findByEmail("first@yahoo.com").getBackupName();
+		String second = userRepository.findByEmail("second@yahoo.com").getBackupName();
+		Assertions.assertThat(first).isEqualTo(second);
+		Assertions.assertThat(Files.exists(storageService.load(first))).isTrue();
+
+		mockMvc.perform(get("/api/restore").with(user("second@yahoo.com")))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(bytes));
+	}
+
+	@Test
+	public void testBlobRemovedWhenLastReferenceDeleted() throws Exception {
+		createUser("first@yahoo.com");
+		createUser("second@yahoo.com");
+		byte[] bytes = "shared then deleted".getBytes();
+
+		upload("first@yahoo.com", bytes);
+		upload("second@yahoo.com", bytes);
+		Path blob = storageService.load(userRepository.findByEmail("first@yahoo.com").getBackupName());
+
+		mockMvc.perform(delete("/api/deletebackup").with(user("first@yahoo.com")))
+		.andExpect(status().isOk());
+		compactor.compact();
+		Assertions.assertThat(Files.exists(blob)).isTrue();
+
+		mockMvc.perform(delete("/api/deleteaccount").with(user("second@yahoo.com")))
+		.andExpect(status().isOk());
+		Assertions.assertThat(Files.exists(blob)).isTrue();
+		age(blob);
+		compactor.compact();
+		Assertions.assertThat(Files.exists(blob)).isFalse();
+	}
+
+	@Test
+	public void testRecentlyStoredBlobIsKeptUntilSwept() throws Exception {
+		createUser("first@yahoo.com");
+
+		upload("first@yahoo.com", "deleted while published".getBytes());
+		String key = userRepository.findByEmail("first@yahoo.com").getBackupName();
+		Path blob = storageService.load(key);
+
+		mockMvc.perform(delete("/api/deleteaccount").with(user("first@yahoo.com")))
+		.andExpect(status().isOk());
+		compactor.compact();
+		Assertions.assertThat(Files.exists(blob)).isTrue();
+
+		age(blob);
+		Assertions.assertThat(((ContentAddressableStorageService) storageService).sweep())
+				.isGreaterThanOrEqualTo(1);
+		Assertions.assertThat(Files.exists(blob)).isFalse();
+	}
+
+	@Test
+	public void testRetainedVersionsKeepTheirBlobs() throws Exception {
+		createUser("first@yahoo.com");
+
+		upload("first@yahoo.com", "first version".getBytes());
+		Path previous = storageService.load(userRepository.findByEmail("first@yahoo.com").getBackupName());
+		upload("first@yahoo.com", "second version".getBytes());
+		compactor.compact();
+
+		Assertions.assertThat(Files.exists(previous)).isTrue();
+	}
+
+	private void upload(String email, byte[] bytes) throws Exception {
+		MockMultipartFile backup = new MockMultipartFile("file", "backup", "db", bytes);
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup").file(backup)
+				.with(user(email)))
+		.andExpect(status().isOk());
+	}
+
+	private void age(Path blob) throws Exception {
+		Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis() - 2 * 3600000));
+	}
+
+	private User createUser(String email) {
+		User u = new User(email, "Test123$");
+		u.setEnabled(true);
+		userRepository.save(u);
+		return u;
+	}
+}
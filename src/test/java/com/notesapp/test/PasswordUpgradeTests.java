@@ -0,0 +1,92 @@
+package com.notesapp.test;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import java.security.MessageDigest;
+import javax.transaction.Transactional;
+import javax.xml.bind.DatatypeConverter;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.jdbc.EmbeddedDatabaseConnection;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import com.notesapp.model.User;
+import com.notesapp.repository.SaltRepository;
+import com.notesapp.repository.UserRepository;
+
+@SpringBootTest(properties = {
+		"password.encoder.mode=pbkdf2",
+		"password.encoder.iterations=1000"
+})
+@AutoConfigureMockMvc
+@AutoConfigureTestDatabase(connection = EmbeddedDatabaseConnection.H2)
+@Transactional
+@ActiveProfiles("test")
+class PasswordUpgradeTests {
+
+	@Autowired
+	MockMvc mockMvc;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private SaltRepository saltRepository;
+
+	@Autowired
+	PasswordEncoder passwordEncoder;
+
+	@Test
+	public void testPasswordsGetTheirOwnSalt() {
+		String first = passwordEncoder.encode("Test123$");
+		String second = passwordEncoder.encode("Test123$");
+
+		Assertions.assertThat(first).startsWith("{pbkdf2}1000$").isNotEqualTo(second);
+		Assertions.assertThat(passwordEncoder.matches("Test123$", first)).isTrue();
+		Assertions.assertThat(passwordEncoder.matches("Test123$", second)).isTrue();
+		Assertions.assertThat(passwordEncoder.matches("Wrong123$", first)).isFalse();
+	}
+
+	@Test
+	public void testLegacyHashIsUpgradedOnLogin() throws Exception {
+		String legacy = legacyHash("Test123$");
+		User user = new User("test@yahoo.com", legacy);
+		user.setEnabled(true);
+		userRepository.save(user);
+
+		mockMvc.perform(post("/login")
+				.param("email", "test@yahoo.com")
+				.param("password", "Test123$"))
+		.andExpect(status().isOk());
+
+		String upgraded = userRepository.findByEmail("test@yahoo.com").getPassword();
+		Assertions.assertThat(upgraded).startsWith("{pbkdf2}");
+		Assertions.assertThat(passwordEncoder.matches("Test123$", upgraded)).isTrue();
+
+		mockMvc.perform(post("/login")
+				.param("email", "test@yahoo.com")
+				.param("password", "Test123$"))
+		.andExpect(status().isOk());
+		Assertions.assertThat(userRepository.findByEmail("test@yahoo.com").getPassword())
+		.isEqualTo(upgraded);
+	}
+
+	@Test
+	public void testWeakerWorkFactorIsUpgraded() {
+		Assertions.assertThat(passwordEncoder.upgradeEncoding(passwordEncoder.encode("Test123$")))
+		.isFalse();
+		Assertions.assertThat(passwordEncoder.upgradeEncoding("{pbkdf2}10$c2FsdA==$aGFzaA=="))
+		.isTrue();
+	}
+
+	private String legacyHash(String password) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(saltRepository.findBySaltName("Default").getSalt());
+		return DatatypeConverter.printHexBinary(md.digest(password.getBytes())).toLowerCase();
+	}
+}
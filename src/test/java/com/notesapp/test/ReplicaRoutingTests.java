@@ -0,0 +1,164 @@
+package com.notesapp.test;
+
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.sql.DataSource;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import com.notesapp.model.User;
+import com.notesapp.repository.ReplicaLagMonitor;
+import com.notesapp.repository.UserRepository;
+
+@SpringBootTest(properties = {
+		"spring.datasource.url=jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1",
+		"spring.datasource.username=sa",
+		"spring.datasource.password=",
+		"spring.datasource.driver-class-name=org.h2.Driver",
+		"datasource.replica.url=jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1",
+		"datasource.replica.username=sa",
+		"datasource.replica.password=",
+		"datasource.replica.driver-class-name=org.h2.Driver",
+		"datasource.replica.max-lag=5000",
+		"datasource.replica.check-interval=3600000"
+})
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+class ReplicaRoutingTests {
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	@Qualifier("primaryDataSource")
+	private DataSource primaryDataSource;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private ReplicaLagMonitor monitor;
+
+	@Autowired
+	@Qualifier("replicaDataSource")
+	private DataSource replicaDataSource;
+
+	private JdbcTemplate replica;
+
+	@BeforeEach
+	public void setUp() {
+		// stands in for the copy replication would keep of the heartbeat table
+		replica = new JdbcTemplate(replicaDataSource);
+		replica.execute("create table if not exists replica_heartbeat "
+				+ "(heartbeat_id int primary key, beat_at bigint not null)");
+		replica.update("delete from replica_heartbeat");
+	}
+
+	@Test
+	public void testReadOnlyTransactionsUseReplica() {
+		replicate(System.currentTimeMillis());
+		monitor.check();
+
+		Assertions.assertThat(database(true)).isEqualToIgnoringCase("replica");
+		Assertions.assertThat(database(false)).isEqualToIgnoringCase("primary");
+		Assertions.assertThat(database(true)).isEqualToIgnoringCase("replica");
+	}
+
+	@Test
+	public void testLaggingReplicaFallsBackToPrimary() {
+		replicate(System.currentTimeMillis() - 60000);
+		monitor.check();
+
+		Assertions.assertThat(monitor.getLag()).isGreaterThanOrEqualTo(60000);
+		Assertions.assertThat(database(true)).isEqualToIgnoringCase("primary");
+	}
+
+	@Test
+	public void testUnreadableReplicaFallsBackToPrimary() {
+		replica.execute("drop table replica_heartbeat");
+		monitor.check();
+
+		Assertions.assertThat(monitor.isReplicaUsable()).isFalse();
+		Assertions.assertThat(database(true)).isEqualToIgnoringCase("primary");
+	}
+
+	@Test
+	public void testHeartbeatIsWrittenToPrimary() {
+		long before = System.currentTimeMillis();
+		monitor.check();
+
+		Number beat = (Number) new TransactionTemplate(transactionManager).execute(status -> 
+				entityManager.createNativeQuery("select beat_at from replica_heartbeat")
+						.getSingleResult());
+		Assertions.assertThat(beat.longValue()).isGreaterThanOrEqualTo(before);
+	}
+
+	@Test
+	public void testUserChangesDoNotWriteBackReplicaReads() throws Exception {
+		User u = new User("replica@yahoo.com", "Test123$");
+		u.setEnabled(true);
+		userRepository.save(u);
+		
+		// the replica holds the user as it was before the backup below
+		new JdbcTemplate(primaryDataSource).execute("script to 'target/replica.sql'");
+		replica.execute("drop all objects");
+		replica.execute("runscript from 'target/replica.sql'");
+		replica.update("delete from replica_heartbeat");
+		replicate(System.currentTimeMillis());
+		monitor.check();
+		
+		try {
+			userRepository.updateBackup(u.getUserId(), "primary.db", null, 1L, null);
+			Assertions.assertThat(userRepository.findByEmail("replica@yahoo.com").getBackupName())
+					.isNull();
+			
+			mockMvc.perform(post("/api/enablemfa").param("enabled", "true")
+					.with(user("replica@yahoo.com")))
+			.andExpect(status().isOk());
+			
+			Map<String, Object> row = new JdbcTemplate(primaryDataSource).queryForMap(
+					"select backup_name, two_factor_authentication from user where user_id = ?",
+					u.getUserId());
+			Assertions.assertThat(row.get("backup_name")).isEqualTo("primary.db");
+			Assertions.assertThat(row.get("two_factor_authentication")).isEqualTo(true);
+		} finally {
+			new JdbcTemplate(primaryDataSource).update("delete from user where user_id = ?", 
+					u.getUserId());
+		}
+	}
+
+	/**
+	 * Set the heartbeat the replica has caught up to.
+	 */
+	private void replicate(long beatAt) {
+		replica.update("insert into replica_heartbeat (heartbeat_id, beat_at) values (1, ?)", beatAt);
+	}
+
+	/**
+	 * Get the name of the database a transaction runs on.
+	 */
+	private String database(boolean readOnly) {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setReadOnly(readOnly);
+		return transaction.execute(status -> 
+				(String) entityManager.createNativeQuery("select database()").getSingleResult());
+	}
+}
@@ -0,0 +1,111 @@
+package com.notesapp.test;
+
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.jdbc.EmbeddedDatabaseConnection;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import com.jayway.jsonpath.JsonPath;
+import com.notesapp.model.User;
+import com.notesapp.repository.BackupVersionRepository;
+import com.notesapp.repository.UserRepository;
+
+/**
+ * Upload jobs run on their own threads and only see
+ * committed data, so these tests do not run inside a
+ * transaction and clean up after themselves.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@AutoConfigureTestDatabase(connection = EmbeddedDatabaseConnection.H2)
+@ActiveProfiles("test")
+class UploadPipelineTests {
+
+	private static final String EMAIL = "pipeline@yahoo.com";
+
+	@Autowired
+	MockMvc mockMvc;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private BackupVersionRepository versionRepository;
+
+	@AfterEach
+	public void deleteUser() {
+		User u = userRepository.findByEmail(EMAIL);
+		if (u != null) {
+			versionRepository.markDeletedByUserId(u.getUserId());
+			userRepository.delete(u);
+		}
+	}
+
+	@Test
+	public void testUploadJobIsProcessedInBackground() throws Exception {
+		createUser();
+		byte[] bytes = "queued backup".getBytes();
+
+		String body = mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup/jobs")
+				.file(new MockMultipartFile("file", "backup.db", "db", bytes))
+				.with(user(EMAIL)))
+		.andExpect(status().isAccepted())
+		.andExpect(header().exists("Location"))
+		.andReturn().getResponse().getContentAsString();
+		String jobId = JsonPath.read(body, "$.jobId");
+
+		String state = null;
+		for (int i = 0; i < 100 && !"COMPLETED".equals(state); i++) {
+			Thread.sleep(50);
+			body = mockMvc.perform(get("/api/backup/jobs/" + jobId).with(user(EMAIL)))
+			.andExpect(status().isOk())
+			.andReturn().getResponse().getContentAsString();
+			state = JsonPath.read(body, "$.state");
+		}
+
+		mockMvc.perform(get("/api/backup/jobs/" + jobId).with(user(EMAIL)))
+		.andExpect(jsonPath("$.state").value("COMPLETED"));
+		mockMvc.perform(get("/api/restore").with(user(EMAIL)))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(bytes));
+	}
+
+	@Test
+	public void testUploadJobWithWrongChecksumIsRejected() throws Exception {
+		createUser();
+
+		mockMvc.perform(MockMvcRequestBuilders.multipart("/api/backup/jobs")
+				.file(new MockMultipartFile("file", "backup.db", "db", "corrupt".getBytes()))
+				.header("Checksum", "00000000000000000000000000000000")
+				.with(user(EMAIL)))
+		.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	public void testUploadJobOfAnotherUserIsNotFound() throws Exception {
+		createUser();
+
+		mockMvc.perform(get("/api/backup/jobs/unknown").with(user(EMAIL)))
+		.andExpect(status().isNotFound());
+	}
+
+	private User createUser() {
+		User u = new User(EMAIL, "Test123$");
+		u.setEnabled(true);
+		userRepository.save(u);
+		return u;
+	}
+}
@@ -0,0 +1,151 @@
+package com.notesapp.test;
+
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.jdbc.EmbeddedDatabaseConnection;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.RequestBuilder;
+import com.jayway.jsonpath.JsonPath;
+import com.notesapp.model.UploadSession;
+import com.notesapp.model.User;
+import com.notesapp.repository.BackupVersionRepository;
+import com.notesapp.repository.UploadSessionRepository;
+import com.notesapp.repository.UserRepository;
+import com.notesapp.storage.StorageService;
+
+/**
+ * Requests to the same upload session from several
+ * threads only take turns once their transactions
+ * commit, so these tests do not run inside a
+ * transaction and clean up after themselves.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@AutoConfigureTestDatabase(connection = EmbeddedDatabaseConnection.H2)
+@ActiveProfiles("test")
+class UploadSessionTests {
+
+	private static final String EMAIL = "sessions@yahoo.com";
+
+	@Autowired
+	MockMvc mockMvc;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private BackupVersionRepository versionRepository;
+
+	@Autowired
+	private UploadSessionRepository uploadSessionRepository;
+
+	@Autowired
+	private StorageService storageService;
+
+	@AfterEach
+	public void deleteUser() {
+		for (UploadSession session : uploadSessionRepository.findByEmail(EMAIL)) {
+			storageService.discard(session.getSessionId());
+			uploadSessionRepository.delete(session);
+		}
+		User u = userRepository.findByEmail(EMAIL);
+		if (u != null) {
+			versionRepository.markDeletedByUserId(u.getUserId());
+			userRepository.delete(u);
+		}
+	}
+
+	@Test
+	public void testConcurrentChunkRetriesAreWrittenOnce() throws Exception {
+		createUser();
+		String sessionId = createSession();
+		byte[] chunk = "retried chunk".getBytes();
+
+		List<Integer> statuses = concurrently(4, () -> put("/api/backup/sessions/" + sessionId + "/chunks/0")
+				.content(chunk).with(user(EMAIL)));
+		Assertions.assertThat(statuses).containsOnly(200);
+
+		mockMvc.perform(post("/api/backup/sessions/" + sessionId + "/commit").with(user(EMAIL)))
+		.andExpect(status().isOk());
+		mockMvc.perform(get("/api/restore").with(user(EMAIL)))
+		.andExpect(status().isOk())
+		.andExpect(content().bytes(chunk));
+	}
+
+	@Test
+	public void testConcurrentCommitsPublishOnce() throws Exception {
+		createUser();
+		String sessionId = createSession();
+		mockMvc.perform(put("/api/backup/sessions/" + sessionId + "/chunks/0")
+				.content("committed".getBytes()).with(user(EMAIL)))
+		.andExpect(status().isOk());
+
+		List<Integer> statuses = concurrently(4, () -> post("/api/backup/sessions/" + sessionId + "/commit")
+				.with(user(EMAIL)));
+		Assertions.assertThat(statuses).containsOnlyOnce(200);
+		Assertions.assertThat(statuses).containsOnly(200, 404);
+		Assertions.assertThat(versionRepository.countByFilename(
+				userRepository.findByEmail(EMAIL).getBackupName())).isEqualTo(1);
+	}
+
+	/**
+	 * Send the same request from several threads at once.
+	 *
+	 * @param threads number of requests
+	 * @param request builds the request
+	 * @return response statuses
+	 * @throws Exception
+	 */
+	private List<Integer> concurrently(int threads, Callable<RequestBuilder> request) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Integer>> responses = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				responses.add(executor.submit(() -> {
+					RequestBuilder builder = request.call();
+					start.await();
+					return mockMvc.perform(builder).andReturn().getResponse().getStatus();
+				}));
+			}
+			start.countDown();
+			List<Integer> statuses = new ArrayList<>();
+			for (Future<Integer> response : responses) statuses.add(response.get());
+			return statuses;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private String createSession() throws Exception {
+		String body = mockMvc.perform(post("/api/backup/sessions").with(user(EMAIL)))
+		.andExpect(status().isOk())
+		.andReturn().getResponse().getContentAsString();
+		return JsonPath.read(body, "$.sessionId");
+	}
+
+	private void createUser() {
+		User u = new User(EMAIL, "Test123$");
+		u.setEnabled(true);
+		userRepository.save(u);
+	}
+}